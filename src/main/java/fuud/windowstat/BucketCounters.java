@@ -0,0 +1,140 @@
+package fuud.windowstat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Array of counters of one chunk.
+ */
+abstract class BucketCounters {
+
+    static BucketCounters atomic(int length) {
+        return new Atomic(length);
+    }
+
+    static BucketCounters striped(int length) {
+        return new Striped(length);
+    }
+
+    abstract void add(int index, long delta);
+
+    abstract long get(int index);
+
+    /**
+     * Should be called only when nobody writes to counters
+     */
+    abstract void reset();
+
+    /**
+     * All counters in one {@link AtomicLongArray}. Neighbour counters share cache line.
+     */
+    private static class Atomic extends BucketCounters {
+        private final AtomicLongArray counters;
+
+        private Atomic(int length) {
+            counters = new AtomicLongArray(length);
+        }
+
+        @Override
+        void add(int index, long delta) {
+            counters.addAndGet(index, delta);
+        }
+
+        @Override
+        long get(int index) {
+            return counters.get(index);
+        }
+
+        @Override
+        void reset() {
+            for (int i = 0; i < counters.length(); i++) {
+                counters.set(i, 0);
+            }
+        }
+    }
+
+    /**
+     * Works like {@link java.util.concurrent.atomic.LongAdder}: counters are updated by CAS in base array
+     * until first CAS failure. After that stripes are created and each thread writes to its own stripe
+     * (stripe is chosen by thread hash, thread moves to other stripe on CAS failure, see {@link Striping}). Stripes are separated by cache line padding:
+     * <pre>
+     *   | padding | stripe 0: counter 0 ... counter N | padding | stripe 1: counter 0 ... counter N | padding | ...
+     * </pre>
+     * Value of counter is sum of base value and values in all stripes.
+     * Stripes are kept on reset, so once created they are reused by all next chunks.
+     */
+    private static class Striped extends BucketCounters {
+        private static final int PADDING = Striping.PADDING;
+        private static final int STRIPES_COUNT = Striping.STRIPES_COUNT;
+
+        private static final AtomicReferenceFieldUpdater<Striped, AtomicLongArray> STRIPES_UPDATER =
+                AtomicReferenceFieldUpdater.newUpdater(Striped.class, AtomicLongArray.class, "stripes");
+
+        private final int length;
+        private final int stride;
+        private final AtomicLongArray base;
+        private volatile AtomicLongArray stripes;
+
+        private Striped(int length) {
+            this.length = length;
+            this.stride = length + PADDING;
+            this.base = new AtomicLongArray(length);
+        }
+
+        @Override
+        void add(int index, long delta) {
+            AtomicLongArray stripes = this.stripes;
+            if (stripes == null) {
+                final long value = base.get(index);
+                if (base.compareAndSet(index, value, value + delta)) {
+                    return;
+                }
+                // contention detected
+                stripes = getOrCreateStripes();
+            }
+            int offset = PADDING + Striping.getStripe() * stride + index;
+            while (true) {
+                final long value = stripes.get(offset);
+                if (stripes.compareAndSet(offset, value, value + delta)) {
+                    return;
+                }
+                // another thread writes to the same stripe, let's move to other one
+                offset = PADDING + Striping.rehashStripe() * stride + index;
+            }
+        }
+
+        @Override
+        long get(int index) {
+            long value = base.get(index);
+            final AtomicLongArray stripes = this.stripes;
+            if (stripes != null) {
+                for (int stripe = 0; stripe < STRIPES_COUNT; stripe++) {
+                    value += stripes.get(PADDING + stripe * stride + index);
+                }
+            }
+            return value;
+        }
+
+        @Override
+        void reset() {
+            for (int i = 0; i < length; i++) {
+                base.set(i, 0);
+            }
+            final AtomicLongArray stripes = this.stripes;
+            if (stripes != null) {
+                for (int i = 0; i < stripes.length(); i++) {
+                    stripes.set(i, 0);
+                }
+            }
+        }
+
+        private AtomicLongArray getOrCreateStripes() {
+            final AtomicLongArray newStripes = new AtomicLongArray(PADDING + STRIPES_COUNT * stride);
+            if (STRIPES_UPDATER.compareAndSet(this, null, newStripes)) {
+                return newStripes;
+            } else {
+                return stripes;
+            }
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package fuud.windowstat;
+
+import java.util.Arrays;
+
+/**
+ * Bucket offsets of histogram together with the way to find bucket of value. <br>
+ * Let's bucketOffsets = [1, 2, 10] <br>
+ * Histogram buckets:
+ * <pre>
+ *   |Long.MIN_VALUE  |   1             | 2 | 3 | ... | 9 | 10 |  Long.MAX_VALUE |
+ *   <-- bucket[0] ---><-- bucket[1] ---><---- bucket[2] ------><---- bucket[3] ->
+ *
+ *   bucket[0] - from Long.MIN_VALUE inclusive to bucketOffsets[0] exclusive
+ *   bucket[1] - bucketOffsets[0] inclusive to bucketOffsets[1] exclusive
+ *   bucket[2] - bucketOffsets[1] inclusive to bucketOffsets[2] exclusive
+ *   bucket[3] - bucketOffsets[2] inclusive to Long.MAX_VALUE inclusive
+ * </pre>
+ * If bucket[0] contain values => histogram is underflow. <br>
+ * If last bucket contain values => histogram is overflow.
+ * <p>
+ * Linear, exponential and log-linear layouts compute bucket arithmetically,
+ * layout with arbitrary offsets uses binary search.
+ */
+public abstract class BucketLayout {
+    final long[] bucketOffsets;
+
+    private BucketLayout(long[] bucketOffsets) {
+        for (int i = 1; i < bucketOffsets.length; i++) {
+            if (bucketOffsets[i - 1] >= bucketOffsets[i]) {
+                throw new IllegalArgumentException("Bucket offsets should be monotonically increasing sequence");
+            }
+        }
+        this.bucketOffsets = bucketOffsets;
+    }
+
+    /**
+     * Layout with arbitrary offsets. Bucket is found by binary search.
+     */
+    public static BucketLayout of(long[] bucketOffsets) {
+        return new Arbitrary(bucketOffsets);
+    }
+
+    /**
+     * Layout with offsets start, start + width, ..., start + (count - 1) * width.
+     */
+    public static BucketLayout linear(long start, long width, int count) {
+        if (width <= 0 || count <= 0) {
+            throw new IllegalArgumentException("Width and count should be positive");
+        }
+        return new Linear(start, width, count);
+    }
+
+    /**
+     * Layout with offsets base, base * factor, ..., base * factor^(count - 1). <br>
+     * Bucket is computed by leading zeros count: if factor is power of two it is exact,
+     * otherwise it is estimated for power of two range of value and corrected by one comparison.
+     */
+    public static BucketLayout exponential(long base, long factor, int count) {
+        if (base <= 0 || factor <= 1 || count <= 0) {
+            throw new IllegalArgumentException("Base and count should be positive, factor should be greater than 1");
+        }
+        final long[] bucketOffsets = new long[count];
+        bucketOffsets[0] = base;
+        for (int i = 1; i < count; i++) {
+            bucketOffsets[i] = Math.multiplyExact(bucketOffsets[i - 1], factor);
+        }
+
+        if (Long.bitCount(factor) == 1) {
+            return new PowerOfTwoExponential(bucketOffsets, Long.numberOfTrailingZeros(factor));
+        } else {
+            return new Exponential(bucketOffsets);
+        }
+    }
+
+    /**
+     * Same as {@link #logLinear(long, long, int)} with lowest discernible value 1
+     */
+    public static BucketLayout logLinear(long highestTrackableValue, int significantDigits) {
+        return logLinear(1, highestTrackableValue, significantDigits);
+    }
+
+    /**
+     * Log-linear layout like in HdrHistogram: each power of two range is split into the same count of linear buckets,
+     * so relative error of bucket lower bound is less than 10^-significantDigits for all values:
+     * <pre>
+     *   | 0 | u | 2u | ... | (2S - 1)u | 2Su | (2S + 2)u | ... | (4S - 2)u | 4Su | (4S + 4)u | ... |
+     *   <-- 2S buckets of width u ------><---- S buckets of width 2u -----><-- S buckets of width 4u ...
+     *
+     *   u - lowest discernible value rounded down to power of two
+     *   S - power of two such that 2S >= 2 * 10^significantDigits
+     * </pre>
+     * Bucket is computed by leading zeros count. Negative values are in underflow bucket,
+     * values greater than the highest trackable value (rounded up to bucket boundary) are in overflow bucket.
+     * Buckets count is about S * log2(highestTrackableValue / (2S * u)), e.g. 526 buckets for 1..60e9 (ns up to a minute)
+     * with one significant digit and 3810 buckets with two.
+     *
+     * @param significantDigits 0..5
+     */
+    public static BucketLayout logLinear(long lowestDiscernibleValue, long highestTrackableValue, int significantDigits) {
+        if (significantDigits < 0 || significantDigits > 5) {
+            throw new IllegalArgumentException("Significant digits should be in range 0..5");
+        }
+        if (lowestDiscernibleValue < 1 || highestTrackableValue < 2 * lowestDiscernibleValue) {
+            throw new IllegalArgumentException("Lowest discernible value should be positive, highest trackable value should be at least twice as large");
+        }
+        return new LogLinear(lowestDiscernibleValue, highestTrackableValue, significantDigits);
+    }
+
+    /**
+     * @return offsets of buckets, should not be modified
+     */
+    public long[] getBucketOffsets() {
+        return bucketOffsets;
+    }
+
+    /**
+     * @return buckets count including underflow and overflow buckets, i.e. bucket offsets count + 1
+     */
+    public int getBucketsCount() {
+        return bucketOffsets.length + 1;
+    }
+
+    /**
+     * @return index of bucket that contains value, 0 is underflow bucket, bucket offsets count is overflow bucket
+     */
+    public abstract int getBucketIndex(long value);
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + Arrays.toString(bucketOffsets);
+    }
+
+    private static class Arbitrary extends BucketLayout {
+        private Arbitrary(long[] bucketOffsets) {
+            super(bucketOffsets);
+        }
+
+        @Override
+        public int getBucketIndex(long value) {
+            final int bucket = Arrays.binarySearch(bucketOffsets, value);
+            if (bucket >= 0) {
+                return bucket + 1;
+            } else {
+                return -bucket - 1;
+            }
+        }
+    }
+
+    private static class Linear extends BucketLayout {
+        private final long start;
+        private final long end;
+        private final long width;
+        // if width is power of two - shift instead of division
+        private final int widthShift;
+
+        private Linear(long start, long width, int count) {
+            super(offsets(start, width, count));
+            this.start = start;
+            this.end = bucketOffsets[bucketOffsets.length - 1];
+            this.width = width;
+            this.widthShift = Long.bitCount(width) == 1 ? Long.numberOfTrailingZeros(width) : -1;
+        }
+
+        private static long[] offsets(long start, long width, int count) {
+            final long[] bucketOffsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                bucketOffsets[i] = Math.addExact(start, Math.multiplyExact(width, i));
+            }
+            return bucketOffsets;
+        }
+
+        @Override
+        public int getBucketIndex(long value) {
+            if (value < start) {
+                return 0;
+            }
+            if (value >= end) {
+                return bucketOffsets.length;
+            }
+            // start <= value < end, so there is no overflow
+            final long offset = value - start;
+            if (widthShift >= 0) {
+                return (int) (offset >>> widthShift) + 1;
+            } else {
+                return (int) (offset / width) + 1;
+            }
+        }
+    }
+
+    private static class PowerOfTwoExponential extends BucketLayout {
+        private final long base;
+        private final long end;
+        private final int factorShift;
+        // if base is power of two - shift instead of division
+        private final int baseShift;
+
+        private PowerOfTwoExponential(long[] bucketOffsets, int factorShift) {
+            super(bucketOffsets);
+            this.base = bucketOffsets[0];
+            this.end = bucketOffsets[bucketOffsets.length - 1];
+            this.factorShift = factorShift;
+            this.baseShift = Long.bitCount(base) == 1 ? Long.numberOfTrailingZeros(base) : -1;
+        }
+
+        @Override
+        public int getBucketIndex(long value) {
+            if (value < base) {
+                return 0;
+            }
+            if (value >= end) {
+                return bucketOffsets.length;
+            }
+            // value >= base * 2^(factorShift * i) <=> value / base >= 2^(factorShift * i)
+            final long ratio = baseShift >= 0 ? value >>> baseShift : value / base;
+            final int log2 = 63 - Long.numberOfLeadingZeros(ratio);
+            return log2 / factorShift + 1;
+        }
+    }
+
+    private static class Exponential extends BucketLayout {
+        private final long base;
+        private final long end;
+        /**
+         * bucket of 2^magnitude, factor is at least 2, so range [2^magnitude, 2^(magnitude + 1)) contains at most one offset
+         */
+        private final int[] bucketOfPowerOfTwo = new int[Long.SIZE - 1];
+
+        private Exponential(long[] bucketOffsets) {
+            super(bucketOffsets);
+            this.base = bucketOffsets[0];
+            this.end = bucketOffsets[bucketOffsets.length - 1];
+            int bucket = 0;
+            for (int magnitude = 0; magnitude < bucketOfPowerOfTwo.length; magnitude++) {
+                while (bucket < bucketOffsets.length && bucketOffsets[bucket] <= 1L << magnitude) {
+                    bucket++;
+                }
+                bucketOfPowerOfTwo[magnitude] = bucket;
+            }
+        }
+
+        @Override
+        public int getBucketIndex(long value) {
+            if (value < base) {
+                return 0;
+            }
+            if (value >= end) {
+                return bucketOffsets.length;
+            }
+            // base <= value < end, so bucket is less than offsets count
+            final int bucket = bucketOfPowerOfTwo[63 - Long.numberOfLeadingZeros(value)];
+            return value >= bucketOffsets[bucket] ? bucket + 1 : bucket;
+        }
+    }
+
+    private static class LogLinear extends BucketLayout {
+        private final int unitShift;
+        private final int subBucketHalfCountMagnitude;
+        private final long subBucketCount;
+        private final long end;
+
+        private LogLinear(long lowestDiscernibleValue, long highestTrackableValue, int significantDigits) {
+            this(63 - Long.numberOfLeadingZeros(lowestDiscernibleValue), getSubBucketHalfCountMagnitude(significantDigits), highestTrackableValue);
+        }
+
+        private LogLinear(int unitShift, int subBucketHalfCountMagnitude, long highestTrackableValue) {
+            super(offsets(unitShift, subBucketHalfCountMagnitude, highestTrackableValue));
+            this.unitShift = unitShift;
+            this.subBucketHalfCountMagnitude = subBucketHalfCountMagnitude;
+            this.subBucketCount = 1L << (subBucketHalfCountMagnitude + 1);
+            this.end = bucketOffsets[bucketOffsets.length - 1];
+        }
+
+        private static int getSubBucketHalfCountMagnitude(int significantDigits) {
+            final long largestValueWithSingleUnitResolution = 2 * (long) Math.pow(10, significantDigits);
+            final int subBucketCountMagnitude = 64 - Long.numberOfLeadingZeros(largestValueWithSingleUnitResolution - 1); // ceil(log2)
+            return Math.max(subBucketCountMagnitude, 1) - 1;
+        }
+
+        private static long[] offsets(int unitShift, int subBucketHalfCountMagnitude, long highestTrackableValue) {
+            final int lastIndex = getIndex(highestTrackableValue >>> unitShift, subBucketHalfCountMagnitude);
+            final long[] bucketOffsets = new long[lastIndex + 2];
+            int count = 0;
+            for (int index = 0; index <= lastIndex + 1; index++) {
+                final long lowerBound = getLowerBound(index, unitShift, subBucketHalfCountMagnitude);
+                if (lowerBound < 0) {
+                    // upper bound of the last bucket is out of long range, it is overflow bucket
+                    break;
+                }
+                bucketOffsets[count++] = lowerBound;
+            }
+            return count == bucketOffsets.length ? bucketOffsets : Arrays.copyOf(bucketOffsets, count);
+        }
+
+        /**
+         * @return index of bucket among log-linear buckets (without underflow bucket)
+         */
+        private static int getIndex(long units, int subBucketHalfCountMagnitude) {
+            final int magnitude = 63 - Long.numberOfLeadingZeros(units);
+            if (magnitude <= subBucketHalfCountMagnitude) {
+                // units < 2S, bucket width is one unit
+                return (int) units;
+            }
+            // units in [2^magnitude, 2^(magnitude + 1)), bucket width is 2^shift units
+            final int shift = magnitude - subBucketHalfCountMagnitude;
+            final long subBucketHalfCount = 1L << subBucketHalfCountMagnitude;
+            return (int) ((shift + 1) * subBucketHalfCount + (units >>> shift) - subBucketHalfCount);
+        }
+
+        /**
+         * @return lower bound of bucket, negative if it is out of long range
+         */
+        private static long getLowerBound(int index, int unitShift, int subBucketHalfCountMagnitude) {
+            final long subBucketHalfCount = 1L << subBucketHalfCountMagnitude;
+            final long units;
+            if (index < 2 * subBucketHalfCount) {
+                units = index;
+            } else {
+                final int shift = (int) (index / subBucketHalfCount) - 1;
+                final long subBucket = subBucketHalfCount + index % subBucketHalfCount;
+                if (64 - Long.numberOfLeadingZeros(subBucket) + shift + unitShift > 63) {
+                    return -1;
+                }
+                units = subBucket << shift;
+            }
+            if (64 - Long.numberOfLeadingZeros(units) + unitShift > 63) {
+                return -1;
+            }
+            return units << unitShift;
+        }
+
+        @Override
+        public int getBucketIndex(long value) {
+            if (value < 0) {
+                return 0;
+            }
+            if (value >= end) {
+                return bucketOffsets.length;
+            }
+            final long units = value >>> unitShift;
+            if (units < subBucketCount) {
+                return (int) units + 1;
+            }
+            return getIndex(units, subBucketHalfCountMagnitude) + 1;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package fuud.windowstat;
+
+/**
+ * See {@link TickSource#cached()}
+ */
+class CachedTickSource implements TickSource {
+    static final CachedTickSource INSTANCE = new CachedTickSource(1);
+
+    private final long updateIntervalMs;
+    private volatile long currentTimeMillis;
+
+    private CachedTickSource(long updateIntervalMs) {
+        this.updateIntervalMs = updateIntervalMs;
+        this.currentTimeMillis = System.currentTimeMillis();
+
+        final Thread updater = new Thread(this::update, "window-stat-tick-source");
+        updater.setDaemon(true);
+        updater.start();
+    }
+
+    @Override
+    public long currentTick() {
+        return currentTimeMillis;
+    }
+
+    private void update() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(updateIntervalMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            currentTimeMillis = System.currentTimeMillis();
+        }
+    }
+}
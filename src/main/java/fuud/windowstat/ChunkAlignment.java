@@ -0,0 +1,19 @@
+package fuud.windowstat;
+
+/**
+ * Defines where chunk boundaries of window stat are.
+ */
+public enum ChunkAlignment {
+    /**
+     * First chunk starts when window stat is created.
+     * Window stats created at different moments have different chunk boundaries.
+     */
+    CREATION_TIME,
+    /**
+     * Chunk boundaries are multiples of chunk duration since epoch of tick source (first chunk is started before creation).
+     * Window stats with the same chunk duration and tick source cover identical intervals, so their values can be merged.
+     * Note that {@link TickSource#nanoTime()} has JVM-local epoch, so chunks are aligned across processes
+     * only for tick sources based on wall clock (e.g. {@link TickSource#cached()}).
+     */
+    EPOCH
+}
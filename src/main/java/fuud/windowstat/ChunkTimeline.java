@@ -0,0 +1,303 @@
+package fuud.windowstat;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Splits time into chunks of equal duration and tracks which chunk is actual. <br>
+ * Time and chunk duration are measured in ticks of {@link TickSource}, see {@link TickSource#getTickUnit()}. <br>
+ * Chunk number N (epoch) covers time [startTime + N * chunkDuration, startTime + (N + 1) * chunkDuration). <br>
+ * Start time is creation time or, for {@link ChunkAlignment#EPOCH}, creation time rounded down to multiple of chunk duration. <br>
+ * Chunks are stored in ring buffer of preallocated slots, so window stat keeps its per-chunk data in arrays
+ * indexed by {@link Slot#index} and reuses it instead of allocating new chunk on each rotation.<br>
+ * Ring contains chunkCount + 2 slots:
+ * <pre>
+ *   | recycled | before window | window chunk 1 | ... | previous | actual |
+ * </pre>
+ * Chunk before window is needed for smoothing.
+ * Slot that will be recycled for the next chunk is never read by thread that still sees the actual chunk.<br>
+ * Only one thread rotates at a time (it takes rotation flag by CAS and publishes the next slot after rotation).
+ * Other threads that see expired chunk do not wait for it: they use expired actual chunk,
+ * it becomes previous chunk after rotation and is still within window (see {@link WindowCounter} for late writes),
+ * so operations are lock-free even when rotating thread is preempted.
+ * Rotation can jump over several chunks at once (e.g. after idle period), it costs O(chunkCount) regardless of idle time.
+ * Writes that race with such jump can be lost: chunk that was actual is sealed at once, as it is out of window.
+ * <p>
+ * Several window stats can share one timeline (see {@link #register(Rotatable)}).
+ * Then they are rotated together and one time read per operation is enough for all of them.
+ * <p>
+ * Timeline can be rotated externally by {@link RotationScheduler}, then operations neither read time nor rotate,
+ * they just use actual slot, and chunk is replaced a bit later than it expires (by scheduler delay).
+ * <p>
+ * Concurrency assumption is the same as for chunk based stats:
+ * all writes to chunk are finished before the next chunk is expired.
+ */
+class ChunkTimeline {
+    private final TickSource tickSource;
+    private final int chunkCount;
+    private final long chunkDuration;
+    private final long startTime;
+    private final Slot[] slots;
+    private volatile Rotatable[] rotatables = new Rotatable[0];
+
+    private final AtomicBoolean rotationInProgress = new AtomicBoolean();
+    private volatile Slot actualSlot;
+    private volatile boolean rotatedExternally;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    ChunkTimeline(Duration windowSize, int chunkCount, TickSource tickSource) {
+        this(windowSize, chunkCount, tickSource, ChunkAlignment.CREATION_TIME);
+    }
+
+    ChunkTimeline(Duration windowSize, int chunkCount, TickSource tickSource, ChunkAlignment alignment) {
+        this(tickSource, chunkCount, getChunkDuration(windowSize, chunkCount, tickSource.getTickUnit()), alignment);
+    }
+
+    private ChunkTimeline(TickSource tickSource, int chunkCount, long chunkDuration, ChunkAlignment alignment) {
+        this(tickSource, chunkCount, chunkDuration, getStartTime(tickSource.currentTick(), chunkDuration, alignment), 0);
+    }
+
+    /**
+     * Restores timeline (e.g. persisted before restart), it is rotated up to current time on first access
+     *
+     * @param actualEpoch epoch that was actual
+     */
+    ChunkTimeline(TickSource tickSource, int chunkCount, long chunkDuration, long startTime, long actualEpoch) {
+        this.tickSource = tickSource;
+        this.chunkCount = chunkCount;
+        this.chunkDuration = chunkDuration;
+        this.startTime = startTime;
+
+        slots = new Slot[chunkCount + 2];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot(i, i == 0 ? slots.length - 1 : i - 1);
+            // slot contains the latest chunk with the same index, i.e. actual chunk or (empty) chunk from the past
+            final long epoch = actualEpoch - Math.floorMod(actualEpoch - i, (long) slots.length);
+            slots[i].epoch = epoch;
+            slots[i].expirationTime = getExpirationTime(epoch);
+        }
+        actualSlot = slots[indexOf(actualEpoch)];
+    }
+
+    /**
+     * @return chunk duration in ticks
+     * @throws IllegalArgumentException if chunk count is less than 2 or chunk is shorter than one tick
+     */
+    static long getChunkDuration(Duration windowSize, int chunkCount, TimeUnit tickUnit) {
+        // window stats keep actual and previous chunks apart from accumulated sums of other chunks within window
+        if (chunkCount < 2) {
+            throw new IllegalArgumentException("Chunk count should be at least 2: " + chunkCount);
+        }
+        final long chunkDuration = toTicks(windowSize, tickUnit) / chunkCount;
+        if (chunkDuration <= 0) {
+            throw new IllegalArgumentException("Chunk duration " + windowSize + " / " + chunkCount +
+                    " is less than one tick (" + tickUnit + "), use tick source with finer resolution");
+        }
+        return chunkDuration;
+    }
+
+    private static long getStartTime(long now, long chunkDuration, ChunkAlignment alignment) {
+        return alignment == ChunkAlignment.EPOCH ? Math.floorDiv(now, chunkDuration) * chunkDuration : now;
+    }
+
+    /**
+     * Registers owner of per-chunk data. It will be rotated together with all other owners.
+     */
+    synchronized void register(Rotatable rotatable) {
+        final Rotatable[] newRotatables = Arrays.copyOf(rotatables, rotatables.length + 1);
+        newRotatables[rotatables.length] = rotatable;
+        rotatables = newRotatables;
+    }
+
+    int getRingSize() {
+        return slots.length;
+    }
+
+    int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * @return chunk duration in ticks
+     */
+    long getChunkDuration() {
+        return chunkDuration;
+    }
+
+    long getStartTime() {
+        return startTime;
+    }
+
+    TickSource getTickSource() {
+        return tickSource;
+    }
+
+    /**
+     * @return actual slot without rotation, it can be expired
+     */
+    Slot peekActualSlot() {
+        return actualSlot;
+    }
+
+    long currentTime() {
+        return tickSource.currentTick();
+    }
+
+    Slot getActualSlot() {
+        if (rotatedExternally) {
+            return actualSlot;
+        }
+        return getActualSlot(tickSource.currentTick());
+    }
+
+    /**
+     * @return actual slot, it is expired if another thread rotates timeline right now (or timeline is rotated externally)
+     */
+    Slot getActualSlot(long currentTime) {
+        final Slot slot = this.actualSlot;
+        if (rotatedExternally || !slot.isExpired(currentTime)) {
+            return slot;
+        }
+
+        // actual chunk is expired, let's rotate. If another thread rotates, expired chunk is used
+        tryRotate(currentTime);
+        return this.actualSlot;
+    }
+
+    /**
+     * @param rotatedExternally if true, operations do not rotate timeline, {@link #rotateIfExpired(long)} should be called
+     *                          at chunk boundaries instead
+     */
+    void setRotatedExternally(boolean rotatedExternally) {
+        this.rotatedExternally = rotatedExternally;
+    }
+
+    /**
+     * @return false if timeline is already scheduled by some {@link RotationScheduler}
+     */
+    boolean tryMarkScheduled() {
+        return scheduled.compareAndSet(false, true);
+    }
+
+    void clearScheduled() {
+        scheduled.set(false);
+    }
+
+    /**
+     * Rotates timeline if actual chunk is expired (regardless of {@link #setRotatedExternally(boolean)}).
+     * Unlike operations it waits for rotation by another thread.
+     *
+     * @return expiration time of actual chunk after rotation
+     */
+    long rotateIfExpired(long currentTime) {
+        while (actualSlot.isExpired(currentTime)) {
+            if (!tryRotate(currentTime)) {
+                Thread.yield();
+            }
+        }
+        return actualSlot.expirationTime;
+    }
+
+    int indexOf(long epoch) {
+        return (int) Math.floorMod(epoch, (long) slots.length);
+    }
+
+    /**
+     * @return true if slot for this epoch was not recycled yet, i.e. it contains data of this epoch
+     */
+    boolean contains(long epoch) {
+        return slots[indexOf(epoch)].epoch == epoch;
+    }
+
+    /**
+     * @return first epoch whose slot was recycled during rotation from fromEpoch to toEpoch
+     */
+    long getFirstRecycledEpoch(long fromEpoch, long toEpoch) {
+        return Math.max(fromEpoch + 1, toEpoch - slots.length + 1);
+    }
+
+    /**
+     * @return false if another thread rotates timeline right now
+     */
+    private boolean tryRotate(long currentTime) {
+        if (!rotationInProgress.compareAndSet(false, true)) {
+            return false;
+        }
+
+        try {
+            final Slot slot = this.actualSlot;
+            if (!slot.isExpired(currentTime)) {
+                return true;
+            }
+
+            final long fromEpoch = slot.epoch;
+            final long toEpoch = fromEpoch + (currentTime - slot.expirationTime) / chunkDuration + 1;
+
+            for (long epoch = getFirstRecycledEpoch(fromEpoch, toEpoch); epoch <= toEpoch; epoch++) {
+                final Slot recycled = slots[indexOf(epoch)];
+                recycled.epoch = epoch;
+                recycled.expirationTime = getExpirationTime(epoch);
+            }
+
+            for (Rotatable rotatable : rotatables) {
+                rotatable.rotate(fromEpoch, toEpoch);
+            }
+
+            this.actualSlot = slots[indexOf(toEpoch)];
+            return true;
+        } finally {
+            rotationInProgress.set(false);
+        }
+    }
+
+    static long toTicks(Duration duration, TimeUnit tickUnit) {
+        return Math.addExact(
+                tickUnit.convert(duration.getSeconds(), TimeUnit.SECONDS),
+                tickUnit.convert(duration.getNano(), TimeUnit.NANOSECONDS)
+        );
+    }
+
+    private long getExpirationTime(long epoch) {
+        return startTime + (epoch + 1) * chunkDuration;
+    }
+
+    /**
+     * Owner of per-chunk data.
+     */
+    @FunctionalInterface
+    interface Rotatable {
+        /**
+         * Called when actual chunk changes from fromEpoch to toEpoch. Calls are never concurrent.<br>
+         * Slots of epochs from {@link #getFirstRecycledEpoch(long, long)} to toEpoch are recycled and should be cleared.
+         * All chunks between fromEpoch and toEpoch had no measurements.
+         */
+        void rotate(long fromEpoch, long toEpoch);
+    }
+
+    static class Slot {
+        final int index;
+        final int prevIndex;
+        long epoch;
+        long expirationTime;
+
+        private Slot(int index, int prevIndex) {
+            this.index = index;
+            this.prevIndex = prevIndex;
+        }
+
+        boolean isExpired(long currentTime) {
+            return expirationTime <= currentTime;
+        }
+
+        @Override
+        public String toString() {
+            return "Slot{" +
+                    "index=" + index +
+                    ", epoch=" + epoch +
+                    ", expirationTime=" + expirationTime +
+                    '}';
+        }
+    }
+}
@@ -1,404 +1,554 @@
 package fuud.windowstat;
 
+import java.nio.LongBuffer;
 import java.time.Clock;
 import java.time.Duration;
 import java.util.Arrays;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicLongArray;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.LongAdder;
-import java.util.stream.LongStream;
 
+/**
+ * Histogram within time window. All buckets, min-max, total sum and sum of squares share the same chunks
+ * (see {@link WindowCounter} for algorithm description). <br>
+ * Chunks are stored in ring buffer (see {@link ChunkTimeline}) and are reused on rotation, so rotation does not allocate.
+ * Each chunk keeps live and sealed bucket sums, accumulated bucket sums are kept only for the last chunks that were actual
+ * (see {@link #ACCUMULATED_SUMS_COUNT}), so buckets take about 16 * bucketsCount * (chunkCount + 2) bytes.
+ * <p>
+ * By default bucket counters of chunk are stored in one {@link java.util.concurrent.atomic.AtomicLongArray}.
+ * If many threads write to the same bucket it becomes point of contention,
+ * for such case use striped bucket counters (see {@link #CompactWindowHistogram(BucketLayout, Duration, int, TickSource, boolean)}).
+ */
 public class CompactWindowHistogram implements WindowHistogram {
-
-    private final Clock clock;
-    private final long chunkDurationMs;
-    private final AtomicReference<Chunk> currentChunk;
+    /**
+     * Only accumulated bucket sums of actual chunk are read. Thread that sees expired actual chunk reads its sums
+     * while the next ones are filled, so three buffers are enough: actual, previous actual and the one being filled.
+     * Buffer is chosen by rotation number, not by epoch: rotation can jump over several epochs.
+     */
+    private static final int ACCUMULATED_SUMS_COUNT = 3;
+
+    private final int chunkCount;
+    private final BucketLayout bucketLayout;
+    private final long[] bucketOffsets;
+    private final ChunkTimeline timeline;
+    private final Chunk[] chunks;
+    private final long[][] accumulatedSums;
+    /**
+     * written only by rotating thread
+     */
+    private int accumulatedSumsIndex;
 
     /**
-     * Let's bucketOffsets = [1, 2, 10] <br>
-     * Histogram buckets:
-     * <pre>
-     *   |Long.MIN_VALUE  |   1             | 2 | 3 | ... | 9 | 10 |  Long.MAX_VALUE |
-     *   <-- bucket[0] ---><-- bucket[1] ---><---- bucket[2] ------><---- bucket[3] ->
-     *
-     *   bucket[0] - from Long.MIN_VALUE inclusive to bucketOffsets[0] exclusive
-     *   bucket[1] - bucketOffsets[0] inclusive to bucketOffsets[1] exclusive
-     *   bucket[2] - bucketOffsets[1] inclusive to bucketOffsets[2] exclusive
-     *   bucket[3] - bucketOffsets[2] inclusive to Long.MAX_VALUE inclusive
-     * </pre>
-     * <p>
-     * If bucket[0] contain values => histogram is underflow. <br>
-     * If last bucket contain values => histogram is overflow.
+     * See {@link BucketLayout} for buckets description
      */
+    public CompactWindowHistogram(long[] bucketOffsets, Duration windowSize, int chunkCount) {
+        this(BucketLayout.of(bucketOffsets), windowSize, chunkCount);
+    }
+
     public CompactWindowHistogram(long[] bucketOffsets, Duration windowSize, int chunkCount, Clock clock) {
-        this.clock = clock;
+        this(BucketLayout.of(bucketOffsets), windowSize, chunkCount, TickSource.of(clock));
+    }
 
-        for (int i = 1; i < bucketOffsets.length; i++) {
-            if (bucketOffsets[i - 1] >= bucketOffsets[i]) {
-                throw new IllegalArgumentException("Bucket offsets should be monotonically increasing sequence");
-            }
-        }
+    public CompactWindowHistogram(long[] bucketOffsets, Duration windowSize, int chunkCount, TickSource tickSource) {
+        this(BucketLayout.of(bucketOffsets), windowSize, chunkCount, tickSource);
+    }
 
-        chunkDurationMs = windowSize.toMillis() / chunkCount;
-        currentChunk = new AtomicReference<>(new Chunk(bucketOffsets, chunkCount, clock.millis() + chunkDurationMs));
+    public CompactWindowHistogram(BucketLayout bucketLayout, Duration windowSize, int chunkCount) {
+        this(bucketLayout, windowSize, chunkCount, TickSource.cached());
     }
 
-    private Chunk getActualChunk() {
-        while (true) {
-            final long currentTime = clock.millis();
-            final Chunk currentChunk = this.currentChunk.get();
-            if (!currentChunk.isExpired(currentTime)) {
-                return currentChunk;
-            }
+    public CompactWindowHistogram(BucketLayout bucketLayout, Duration windowSize, int chunkCount, TickSource tickSource) {
+        this(bucketLayout, windowSize, chunkCount, tickSource, false);
+    }
 
-            // current chunk isExpired, let's replace with new
-            replaceChunkWithNew();
-        }
+    public CompactWindowHistogram(BucketLayout bucketLayout, Duration windowSize, int chunkCount, TickSource tickSource, ChunkAlignment alignment) {
+        this(bucketLayout, windowSize, chunkCount, tickSource, alignment, false);
     }
 
-    private void replaceChunkWithNew() {
-        final long currentTime = clock.millis();
+    /**
+     * @param stripedBuckets if true bucket counters work like {@link java.util.concurrent.atomic.LongAdder}:
+     *                       after first contention each thread writes to its own cache line padded stripe.
+     *                       It makes concurrent writes to the same bucket scalable at the cost of memory and slower reads.
+     */
+    public CompactWindowHistogram(BucketLayout bucketLayout, Duration windowSize, int chunkCount, TickSource tickSource, boolean stripedBuckets) {
+        this(bucketLayout, windowSize, chunkCount, tickSource, ChunkAlignment.CREATION_TIME, stripedBuckets);
+    }
 
-        while (true) {
-            final Chunk currentChunk = this.currentChunk.get();
-            if (!currentChunk.isExpired(currentTime)) {
-                break;
-            } else {
-                Chunk newChunk = currentChunk.createNext(chunkDurationMs);
-                this.currentChunk.compareAndSet(currentChunk, newChunk);
-            }
+    /**
+     * @param stripedBuckets see {@link #CompactWindowHistogram(BucketLayout, Duration, int, TickSource, boolean)}
+     */
+    public CompactWindowHistogram(BucketLayout bucketLayout, Duration windowSize, int chunkCount, TickSource tickSource,
+                                  ChunkAlignment alignment, boolean stripedBuckets) {
+        this.chunkCount = chunkCount;
+        this.bucketLayout = bucketLayout;
+        this.bucketOffsets = bucketLayout.getBucketOffsets();
+        this.timeline = new ChunkTimeline(windowSize, chunkCount, tickSource, alignment);
+
+        chunks = new Chunk[timeline.getRingSize()];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = new Chunk(bucketLayout, stripedBuckets);
         }
+        accumulatedSums = new long[ACCUMULATED_SUMS_COUNT][bucketLayout.getBucketsCount()];
+        chunks[timeline.peekActualSlot().index].accumulatedSumExceptThisAndPreviousChunk = accumulatedSums[0];
+        timeline.register(this::rotate);
     }
 
     @Override
     public void add(long value) {
-        getActualChunk().add(value);
+        chunks[timeline.getActualSlot().index].add(value, 1);
     }
 
     @Override
-    public long getMax() {
-        return getActualChunk().getSnapshot().getMax();
+    public void add(long value, long count) {
+        if (SampleBatch.checkCount(value, count)) {
+            chunks[timeline.getActualSlot().index].add(value, count);
+        }
     }
 
     @Override
-    public long getMin() {
-        return getActualChunk().getSnapshot().getMin();
+    public void addAll(long[] values, int offset, int length) {
+        addAll(SampleBatch.of(bucketLayout, values, offset, length));
     }
 
     @Override
-    public long getMean() {
-        return getActualChunk().getSnapshot().getMean();
+    public void addAll(LongBuffer values) {
+        addAll(SampleBatch.of(bucketLayout, values));
+    }
+
+    private void addAll(SampleBatch batch) {
+        if (batch.samplesCount > 0) {
+            chunks[timeline.getActualSlot().index].addAll(batch);
+        }
     }
 
     @Override
-    public long getPercentile(double percentile) {
-        return getActualChunk().getSnapshot().getPercentile(percentile);
+    public long getMax() {
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        return getMax(chunks[slot.index], chunks[slot.prevIndex]);
     }
 
     @Override
-    public boolean isOverflow() {
-        return getActualChunk().getSnapshot().isOverflow();
+    public long getMin() {
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        return getMin(chunks[slot.index], chunks[slot.prevIndex]);
     }
 
     @Override
-    public boolean isUnderflow() {
-        return getActualChunk().getSnapshot().isUnderflow();
+    public long getMean() {
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        final Chunk actualChunk = chunks[slot.index];
+        final Chunk prevChunk = chunks[slot.prevIndex];
+        return (long) (getTotalSum(actualChunk, prevChunk) * 1.0 / getSamplesCount(actualChunk, prevChunk));
     }
 
     @Override
-    public CounterWindowHistogram.Bucket[] getSnapshot() {
-        return new CounterWindowHistogram.Bucket[0];
+    public double getVariance() {
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        final Chunk actualChunk = chunks[slot.index];
+        final Chunk prevChunk = chunks[slot.prevIndex];
+        return SumOfSquares.getVariance(
+                getSamplesCount(actualChunk, prevChunk),
+                getTotalSum(actualChunk, prevChunk),
+                getSquaresLimb(actualChunk, prevChunk, SumOfSquares.LOW),
+                getSquaresLimb(actualChunk, prevChunk, SumOfSquares.MIDDLE),
+                getSquaresLimb(actualChunk, prevChunk, SumOfSquares.HIGH)
+        );
     }
 
     @Override
-    public long getSamplesCount() {
-        return getActualChunk().getSnapshot().getSamplesCount();
+    public double getStdDev() {
+        return Math.sqrt(getVariance());
     }
 
-    private static class Chunk {
-        private final int bucketsCount;
-        private final long[] accumulatedSumExceptThisAndPreviousChunk;
-        private final AtomicLongArray sumInPrevChunk;
-        private final AtomicLongArray sumInThisChunk;
-        /**
-         * byChunkPrevSums[0] - contains value that was in previous to the last chunk in window - needed to smoothing
-         * byChunkPrevSums[1] - contains value that was in last chunk in window
-         * byChunkPrevSums[2] - contains value that was in the next to the last chunk in window
-         * byChunkPrevSums[3] - contains value of chunks in the next to the next to the last chunk in window
-         * etc up to previous chunk (exclusive). Previous value can be found in sumInPrevChunk field
-         */
-        private final long[][] sumInPrevChunks;
+    @Override
+    public long getPercentile(double percentile) {
+        return getPercentile(percentile, false);
+    }
 
-        // --- min-max
-        private final long[] bucketOffsets;
-        private final long maxExceptThisAndPreviousChunk;
-        private final long minExceptThisAndPreviousChunk;
-        private final AtomicLong maxInThisChunk = new AtomicLong(Long.MIN_VALUE);
-        private final AtomicLong minInThisChunk = new AtomicLong(Long.MAX_VALUE);
-        private final AtomicLong maxInPrevChunk;
-        private final AtomicLong minInPrevChunk;
+    @Override
+    public long getInterpolatedPercentile(double percentile) {
+        return getPercentile(percentile, true);
+    }
 
-        private final long[] maxInPrevChunks;
-        private final long[] minInPrevChunks;
+    private long getPercentile(double percentile, boolean interpolate) {
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        final Chunk actualChunk = chunks[slot.index];
+        final Chunk prevChunk = chunks[slot.prevIndex];
 
-        // for mean - total sum
-        private final long totalAccumulatedSumExceptThisAndPreviousChunk;
-        private final LongAdder totalSumInPrevChunk;
-        private final LongAdder totalSumInThisChunk = new LongAdder();
-        private final long[] totalSumInPrevChunks;
-
-        private final long expirationTime;
-
-        // if no previous chunk
-        private Chunk(long[] bucketOffsets, int chunkCount, long expirationTime) {
-            this.bucketOffsets = bucketOffsets;
-            bucketsCount = bucketOffsets.length + 1;
-            this.accumulatedSumExceptThisAndPreviousChunk = new long[bucketsCount];
-            this.sumInPrevChunk = new AtomicLongArray(bucketsCount);
-            this.sumInThisChunk = new AtomicLongArray(bucketsCount);
-            this.sumInPrevChunks = new long[chunkCount - 1 - 1 + 1][bucketsCount]; // except this, except previous, include previous to the last
-
-            // min-max
-            this.maxExceptThisAndPreviousChunk = Long.MIN_VALUE;
-            this.minExceptThisAndPreviousChunk = Long.MAX_VALUE;
-
-            this.maxInPrevChunk = new AtomicLong(Long.MIN_VALUE);
-            this.minInPrevChunk = new AtomicLong(Long.MAX_VALUE);
-
-            this.maxInPrevChunks = new long[chunkCount - 1 - 1]; // except this, except previous
-            for (int i = 0; i < maxInPrevChunks.length; i++) {
-                maxInPrevChunks[i] = Long.MIN_VALUE;
-            }
-            this.minInPrevChunks = new long[chunkCount - 1 - 1]; // except this, except previous
-            for (int i = 0; i < minInPrevChunks.length; i++) {
-                minInPrevChunks[i] = Long.MAX_VALUE;
-            }
+        final long samplesCount = getSamplesCount(actualChunk, prevChunk);
+        if (samplesCount == 0) {
+            return 0;
+        }
 
-            //total
-            this.totalAccumulatedSumExceptThisAndPreviousChunk = 0;
-            this.totalSumInPrevChunk = new LongAdder();
-            this.totalSumInPrevChunks = new long[chunkCount - 1 - 1 + 1];
+        final long countUnderPercentile = Snapshot.getCountUnderPercentile(samplesCount, percentile);
+        final int lastBucket = bucketOffsets.length;
+        int bucket = 0;
+        long countBeforeBucket = 0;
+        long bucketValue = getBucketValue(actualChunk, prevChunk, 0);
+        while (countBeforeBucket + bucketValue < countUnderPercentile && bucket < lastBucket) {
+            countBeforeBucket += bucketValue;
+            bucket++;
+            bucketValue = getBucketValue(actualChunk, prevChunk, bucket);
+        }
+        if (interpolate) {
+            return Snapshot.interpolate(bucketOffsets, bucket, countBeforeBucket, bucketValue, countUnderPercentile,
+                    getMin(actualChunk, prevChunk), getMax(actualChunk, prevChunk));
+        }
+        final long percentileValue = Snapshot.getBucketLowerBound(bucketOffsets, bucket);
+        return percentilesBoundedByMinMax() ?
+                Snapshot.clamp(percentileValue, getMin(actualChunk, prevChunk), getMax(actualChunk, prevChunk)) :
+                percentileValue;
+    }
 
+    @Override
+    public void getPercentiles(double[] percentiles, long[] out) {
+        getPercentiles(percentiles, out, false);
+    }
 
-            this.expirationTime = expirationTime;
+    @Override
+    public void getInterpolatedPercentiles(double[] percentiles, long[] out) {
+        getPercentiles(percentiles, out, true);
+    }
 
-//            System.out.println("newChunk: " + this.toString());
-        }
+    private void getPercentiles(double[] percentiles, long[] out, boolean interpolate) {
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        final Chunk actualChunk = chunks[slot.index];
+        final Chunk prevChunk = chunks[slot.prevIndex];
+        final int lastBucket = bucketOffsets.length;
+        final long samplesCount = getSamplesCount(actualChunk, prevChunk);
+        final boolean bounded = interpolate || percentilesBoundedByMinMax();
+        final long min = bounded ? getMin(actualChunk, prevChunk) : 0;
+        final long max = bounded ? getMax(actualChunk, prevChunk) : 0;
+
+        int bucket = 0;
+        long countBeforeBucket = 0;
+        long countUpToBucket = getBucketValue(actualChunk, prevChunk, 0);
+        for (int i = 0; i < percentiles.length; i++) {
+            if (samplesCount == 0) {
+                out[i] = 0;
+                continue;
+            }
 
-        private Chunk(long[] bucketOffsets,
-                      long[] accumulatedSumExceptThisAndPreviousChunk,
-                      AtomicLongArray sumInPrevChunk,
-                      long[][] sumInPrevChunks,
-
-                      long maxExceptThisAndPreviousChunk,
-                      long minExceptThisAndPreviousChunk,
-                      AtomicLong maxInPrevChunk,
-                      AtomicLong minInPrevChunk,
-                      long[] maxInPrevChunks,
-                      long[] minInPrevChunks,
-
-                      long totalAccumulatedSumExceptThisAndPreviousChunk,
-                      LongAdder totalSumInPrevChunk,
-                      long[] totalSumInPrevChunks,
-
-                      long expirationTime) {
-            this.bucketOffsets = bucketOffsets;
-            bucketsCount = bucketOffsets.length + 1;
-            this.accumulatedSumExceptThisAndPreviousChunk = accumulatedSumExceptThisAndPreviousChunk;
-            this.sumInPrevChunk = sumInPrevChunk;
-            this.sumInThisChunk = new AtomicLongArray(bucketsCount);
-            this.sumInPrevChunks = sumInPrevChunks;
-
-            this.maxExceptThisAndPreviousChunk = maxExceptThisAndPreviousChunk;
-            this.minExceptThisAndPreviousChunk = minExceptThisAndPreviousChunk;
-            this.maxInPrevChunk = maxInPrevChunk;
-            this.minInPrevChunk = minInPrevChunk;
-            this.maxInPrevChunks = maxInPrevChunks;
-            this.minInPrevChunks = minInPrevChunks;
-
-            this.totalAccumulatedSumExceptThisAndPreviousChunk = totalAccumulatedSumExceptThisAndPreviousChunk;
-            this.totalSumInPrevChunk = totalSumInPrevChunk;
-            this.totalSumInPrevChunks = totalSumInPrevChunks;
-
-
-            this.expirationTime = expirationTime;
-
-//            System.out.println("newChunk: " + this.toString());
+            final long countUnderPercentile = Snapshot.getCountUnderPercentile(samplesCount, percentiles[i]);
+            if (countUnderPercentile <= countBeforeBucket) {
+                // percentiles are not ascending, let's start from the beginning
+                bucket = 0;
+                countBeforeBucket = 0;
+                countUpToBucket = getBucketValue(actualChunk, prevChunk, 0);
+            }
+            while (countUpToBucket < countUnderPercentile && bucket < lastBucket) {
+                bucket++;
+                countBeforeBucket = countUpToBucket;
+                countUpToBucket += getBucketValue(actualChunk, prevChunk, bucket);
+            }
+            if (interpolate) {
+                out[i] = Snapshot.interpolate(bucketOffsets, bucket, countBeforeBucket, countUpToBucket - countBeforeBucket, countUnderPercentile, min, max);
+            } else {
+                final long percentileValue = Snapshot.getBucketLowerBound(bucketOffsets, bucket);
+                out[i] = bounded ? Snapshot.clamp(percentileValue, min, max) : percentileValue;
+            }
         }
+    }
 
-        private Chunk createNext(long chunkDurationMs) {
-            final long[] sumInPrevChunk = getSumInPrevChunk();
-            final long[] sumInLastChunkInWindow = getSumInLastChunkInWindow();
+    @Override
+    public boolean isOverflow() {
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        return getBucketValue(chunks[slot.index], chunks[slot.prevIndex], bucketOffsets.length) > 0;
+    }
 
-            final long[] newAccumulatedSumExceptThisAndPreviousChunk = new long[bucketsCount];
-            for (int i = 0; i < bucketsCount; i++) {
-                newAccumulatedSumExceptThisAndPreviousChunk[i] =
-                        accumulatedSumExceptThisAndPreviousChunk[i]
-                                - sumInLastChunkInWindow[i]
-                                + sumInPrevChunk[i];
-            }
+    @Override
+    public boolean isUnderflow() {
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        return getBucketValue(chunks[slot.index], chunks[slot.prevIndex], 0) > 0;
+    }
+
+    @Override
+    public long getSamplesCount() {
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        return getSamplesCount(chunks[slot.index], chunks[slot.prevIndex]);
+    }
 
-            long[][] newSumInPrevChunks = new long[sumInPrevChunks.length][bucketsCount];
-            System.arraycopy(sumInPrevChunks, 1, newSumInPrevChunks, 0, newSumInPrevChunks.length - 1); // shift, add previous to sums
-            newSumInPrevChunks[newSumInPrevChunks.length - 1] = sumInPrevChunk;
+    @Override
+    public Snapshot getSnapshot() {
+        final Snapshot snapshot = new Snapshot(bucketOffsets);
+        snapshotInto(snapshot);
+        return snapshot.readOnly();
+    }
 
-            // min-max
-            final long maxInPrevChunk = getMaxInPrevChunk();
-            final long minInPrevChunk = getMinInPrevChunk();
+    @Override
+    public void snapshotInto(Snapshot snapshot) {
+        final long[] bucketValues = snapshot.getBucketValues(bucketOffsets);
 
-            long newMaxExceptThisAndPreviousChunk = Long.MIN_VALUE;
-            long newMinExceptThisAndPreviousChunk = Long.MAX_VALUE;
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        final Chunk actualChunk = chunks[slot.index];
+        final Chunk prevChunk = chunks[slot.prevIndex];
 
-            for (int i = 1; i < maxInPrevChunks.length; i++) {
-                newMaxExceptThisAndPreviousChunk = Math.max(newMaxExceptThisAndPreviousChunk, maxInPrevChunks[i]);
-                newMinExceptThisAndPreviousChunk = Math.min(newMinExceptThisAndPreviousChunk, minInPrevChunks[i]);
-            }
+        for (int i = 0; i < bucketValues.length; i++) {
+            bucketValues[i] = getBucketValue(actualChunk, prevChunk, i);
+        }
 
-            newMaxExceptThisAndPreviousChunk = Math.max(newMaxExceptThisAndPreviousChunk, maxInPrevChunk);
-            newMinExceptThisAndPreviousChunk = Math.min(newMinExceptThisAndPreviousChunk, minInPrevChunk);
+        snapshot.update(
+                getMin(actualChunk, prevChunk),
+                getMax(actualChunk, prevChunk),
+                getTotalSum(actualChunk, prevChunk),
+                getSquaresLimb(actualChunk, prevChunk, SumOfSquares.LOW),
+                getSquaresLimb(actualChunk, prevChunk, SumOfSquares.MIDDLE),
+                getSquaresLimb(actualChunk, prevChunk, SumOfSquares.HIGH)
+        );
+        if (percentilesBoundedByMinMax()) {
+            snapshot.boundPercentilesByMinMax();
+        }
+    }
 
-            long[] newMaxInPrevChunks = new long[maxInPrevChunks.length];
-            System.arraycopy(maxInPrevChunks, 1, newMaxInPrevChunks, 0, newMaxInPrevChunks.length - 1); // shift, add previous to sums
-            newMaxInPrevChunks[newMaxInPrevChunks.length - 1] = maxInPrevChunk;
+    @Override
+    public void mergeInto(Snapshot snapshot) {
+        final long[] bucketValues = snapshot.getBucketValues(bucketOffsets);
+
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        final Chunk actualChunk = chunks[slot.index];
+        final Chunk prevChunk = chunks[slot.prevIndex];
+
+        long samplesCount = 0;
+        for (int i = 0; i < bucketValues.length; i++) {
+            final long bucketValue = getBucketValue(actualChunk, prevChunk, i);
+            bucketValues[i] += bucketValue;
+            samplesCount += bucketValue;
+        }
 
-            long[] newMinInPrevChunks = new long[minInPrevChunks.length];
-            System.arraycopy(minInPrevChunks, 1, newMinInPrevChunks, 0, newMinInPrevChunks.length - 1); // shift, add previous to sums
-            newMinInPrevChunks[newMinInPrevChunks.length - 1] = minInPrevChunk;
+        if (samplesCount > 0) {
+            snapshot.updateMerged(
+                    getMin(actualChunk, prevChunk),
+                    getMax(actualChunk, prevChunk),
+                    getTotalSum(actualChunk, prevChunk),
+                    getSquaresLimb(actualChunk, prevChunk, SumOfSquares.LOW),
+                    getSquaresLimb(actualChunk, prevChunk, SumOfSquares.MIDDLE),
+                    getSquaresLimb(actualChunk, prevChunk, SumOfSquares.HIGH)
+            );
+        }
+        if (percentilesBoundedByMinMax()) {
+            snapshot.boundPercentilesByMinMax();
+        }
+    }
 
-            //total
-            final long totalSumInPrevChunk = this.totalSumInPrevChunk.longValue();
+    /**
+     * @return true if percentiles that fall into underflow or overflow bucket are reported as min or max
+     * (by getters and snapshots) instead of {@link Long#MIN_VALUE} or {@link Long#MAX_VALUE}
+     */
+    boolean percentilesBoundedByMinMax() {
+        return false;
+    }
 
-            final long newTotalAccumulatedSumExceptThisAndPreviousChunk =
-                    totalAccumulatedSumExceptThisAndPreviousChunk
-                            - getTotalSumInLastChunkInWindow()
-                            + totalSumInPrevChunk;
+    ChunkTimeline getTimeline() {
+        return timeline;
+    }
 
-            long[] newTotalSumInPrevChunks = new long[sumInPrevChunks.length];
-            System.arraycopy(sumInPrevChunks, 1, newSumInPrevChunks, 0, newSumInPrevChunks.length - 1); // shift, add previous to sums
-            newSumInPrevChunks[newSumInPrevChunks.length - 1] = sumInPrevChunk;
+    private static long getBucketValue(Chunk actualChunk, Chunk prevChunk, int bucket) {
+        return actualChunk.accumulatedSumExceptThisAndPreviousChunk[bucket] +
+                prevChunk.sum.get(bucket) +
+                actualChunk.sum.get(bucket);
+    }
 
-            final Chunk chunk = new Chunk(
+    private long getSamplesCount(Chunk actualChunk, Chunk prevChunk) {
+        long samplesCount = 0;
+        for (int i = 0; i < bucketOffsets.length + 1; i++) {
+            samplesCount += getBucketValue(actualChunk, prevChunk, i);
+        }
+        return samplesCount;
+    }
 
-                    bucketOffsets,
-                    newAccumulatedSumExceptThisAndPreviousChunk,
-                    sumInThisChunk,
-                    newSumInPrevChunks,
+    private static long getMin(Chunk actualChunk, Chunk prevChunk) {
+        final long min = Math.min(
+                Math.min(actualChunk.minExceptThisAndPreviousChunk, prevChunk.minMax.getMin()),
+                actualChunk.minMax.getMin()
+        );
+        return min == Long.MAX_VALUE ? 0 : min;
+    }
 
-                    newMaxExceptThisAndPreviousChunk,
-                    newMinExceptThisAndPreviousChunk,
-                    maxInThisChunk,
-                    minInThisChunk,
-                    newMaxInPrevChunks,
-                    newMinInPrevChunks,
+    private static long getMax(Chunk actualChunk, Chunk prevChunk) {
+        final long max = Math.max(
+                Math.max(actualChunk.maxExceptThisAndPreviousChunk, prevChunk.minMax.getMax()),
+                actualChunk.minMax.getMax()
+        );
+        return max == Long.MIN_VALUE ? 0 : max;
+    }
 
-                    newTotalAccumulatedSumExceptThisAndPreviousChunk,
-                    totalSumInThisChunk,
-                    newTotalSumInPrevChunks,
+    private static long getTotalSum(Chunk actualChunk, Chunk prevChunk) {
+        return actualChunk.totalAccumulatedSumExceptThisAndPreviousChunk +
+                prevChunk.totalSum.longValue() +
+                actualChunk.totalSum.longValue();
+    }
 
-                    expirationTime + chunkDurationMs
-            );
-            return chunk;
-        }
+    private static long getSquaresLimb(Chunk actualChunk, Chunk prevChunk, int limb) {
+        return actualChunk.squaresAccumulatedSumExceptThisAndPreviousChunk[limb] +
+                prevChunk.squaresSum[limb].longValue() +
+                actualChunk.squaresSum[limb].longValue();
+    }
 
-        private long getMaxInPrevChunk() {
-            return maxInPrevChunk.longValue();
+    private void rotate(long fromEpoch, long toEpoch) {
+        // nobody writes to chunks that are neither actual nor previous
+        seal(fromEpoch - 1);
+        if (toEpoch - fromEpoch > 1) {
+            seal(fromEpoch);
         }
 
-        private long getMinInPrevChunk() {
-            return minInPrevChunk.longValue();
+        for (long epoch = timeline.getFirstRecycledEpoch(fromEpoch, toEpoch); epoch <= toEpoch; epoch++) {
+            chunks[timeline.indexOf(epoch)].reset();
         }
 
-        private void add(long value) {
-            final int bucket = Arrays.binarySearch(bucketOffsets, value);
-            if (bucket >= 0) {
-                sumInThisChunk.incrementAndGet(bucket + 1);
-            } else {
-                sumInThisChunk.incrementAndGet(-bucket - 1);
-            }
-
-            while (true) {
-                final long currentMaxValue = maxInThisChunk.get();
-                if (currentMaxValue > value) {
-                    break;
-                }
-                if (maxInThisChunk.compareAndSet(currentMaxValue, value)) {
-                    break;
-                }
+        final Chunk actualChunk = chunks[timeline.indexOf(toEpoch)];
+        accumulatedSumsIndex = (accumulatedSumsIndex + 1) % ACCUMULATED_SUMS_COUNT;
+        actualChunk.accumulatedSumExceptThisAndPreviousChunk = accumulatedSums[accumulatedSumsIndex];
+        if (toEpoch - fromEpoch == 1) {
+            final Chunk fromChunk = chunks[timeline.indexOf(fromEpoch)];
+            System.arraycopy(fromChunk.accumulatedSumExceptThisAndPreviousChunk, 0, actualChunk.accumulatedSumExceptThisAndPreviousChunk, 0, bucketOffsets.length + 1);
+            actualChunk.totalAccumulatedSumExceptThisAndPreviousChunk = fromChunk.totalAccumulatedSumExceptThisAndPreviousChunk;
+            System.arraycopy(fromChunk.squaresAccumulatedSumExceptThisAndPreviousChunk, 0, actualChunk.squaresAccumulatedSumExceptThisAndPreviousChunk, 0, SumOfSquares.LIMBS_COUNT);
+            accumulate(actualChunk, toEpoch - chunkCount, -1);
+            accumulate(actualChunk, fromEpoch - 1, 1);
+        } else {
+            Arrays.fill(actualChunk.accumulatedSumExceptThisAndPreviousChunk, 0);
+            for (long epoch = toEpoch - chunkCount + 1; epoch < toEpoch - 1; epoch++) {
+                accumulate(actualChunk, epoch, 1);
             }
+        }
 
-            while (true) {
-                final long currentMinValue = minInThisChunk.get();
-                if (currentMinValue < value) {
-                    break;
-                }
-                if (minInThisChunk.compareAndSet(currentMinValue, value)) {
-                    break;
-                }
+        for (long epoch = toEpoch - chunkCount + 1; epoch < toEpoch - 1; epoch++) {
+            if (timeline.contains(epoch)) {
+                final Chunk chunk = chunks[timeline.indexOf(epoch)];
+                actualChunk.maxExceptThisAndPreviousChunk = Math.max(actualChunk.maxExceptThisAndPreviousChunk, chunk.sealedMax);
+                actualChunk.minExceptThisAndPreviousChunk = Math.min(actualChunk.minExceptThisAndPreviousChunk, chunk.sealedMin);
             }
+        }
+    }
 
-            totalSumInThisChunk.add(value);
+    /**
+     * adds sealed sums of chunk with given epoch (multiplied by sign) to accumulated sums of target chunk
+     */
+    private void accumulate(Chunk target, long epoch, int sign) {
+        if (!timeline.contains(epoch)) {
+            return;
+        }
+        final Chunk chunk = chunks[timeline.indexOf(epoch)];
+        for (int i = 0; i < chunk.sealedSum.length; i++) {
+            target.accumulatedSumExceptThisAndPreviousChunk[i] += sign * chunk.sealedSum[i];
+        }
+        target.totalAccumulatedSumExceptThisAndPreviousChunk += sign * chunk.sealedTotalSum;
+        for (int limb = 0; limb < SumOfSquares.LIMBS_COUNT; limb++) {
+            target.squaresAccumulatedSumExceptThisAndPreviousChunk[limb] += sign * chunk.sealedSquaresSum[limb];
+        }
+    }
 
+    private void seal(long epoch) {
+        if (timeline.contains(epoch)) {
+            chunks[timeline.indexOf(epoch)].seal();
         }
+    }
 
-        private Snapshot getSnapshot() {
+    private static class Chunk {
+        private final BucketLayout bucketLayout;
+        private final BucketCounters sum;
+        /**
+         * sums in this chunk, they are fixed when chunk is neither actual nor previous
+         */
+        private final long[] sealedSum;
+        /**
+         * sums of chunks within window except this and previous, valid while chunk is actual.
+         * It is one of accumulated sums of histogram, it is assigned when chunk becomes actual
+         */
+        private long[] accumulatedSumExceptThisAndPreviousChunk;
 
-            long[] bucketValues = new long[bucketsCount];
+        // --- min-max
+        private final MinMaxAccumulator minMax = new MinMaxAccumulator();
+        private long sealedMax = Long.MIN_VALUE;
+        private long sealedMin = Long.MAX_VALUE;
+        private long maxExceptThisAndPreviousChunk = Long.MIN_VALUE;
+        private long minExceptThisAndPreviousChunk = Long.MAX_VALUE;
 
-            for (int i = 0; i < bucketsCount; i++) {
-                bucketValues[i] =
-                        accumulatedSumExceptThisAndPreviousChunk[i] +
-                                sumInPrevChunk.get(i) +
-                                sumInThisChunk.get(i);
+        // for mean - total sum
+        private final LongAdder totalSum = new LongAdder();
+        private long sealedTotalSum;
+        private long totalAccumulatedSumExceptThisAndPreviousChunk;
+
+        // for variance - sum of squares, see SumOfSquares for limbs
+        private final LongAdder[] squaresSum = new LongAdder[SumOfSquares.LIMBS_COUNT];
+        private final long[] sealedSquaresSum = new long[SumOfSquares.LIMBS_COUNT];
+        private final long[] squaresAccumulatedSumExceptThisAndPreviousChunk = new long[SumOfSquares.LIMBS_COUNT];
+
+        private Chunk(BucketLayout bucketLayout, boolean stripedBuckets) {
+            this.bucketLayout = bucketLayout;
+            final int bucketsCount = bucketLayout.getBucketsCount();
+            this.sum = stripedBuckets ? BucketCounters.striped(bucketsCount) : BucketCounters.atomic(bucketsCount);
+            this.sealedSum = new long[bucketsCount];
+            for (int limb = 0; limb < squaresSum.length; limb++) {
+                squaresSum[limb] = new LongAdder();
             }
-
-            return new Snapshot(
-                    getMin(),
-                    getMax(),
-                    bucketOffsets,
-                    bucketValues,
-                    getTotalSum()
-            );
         }
 
-        private boolean isExpired(long currentTime) {
-            return expirationTime <= currentTime;
-        }
+        private void add(long value, long count) {
+            sum.add(bucketLayout.getBucketIndex(value), count);
+            minMax.register(value);
+            totalSum.add(value * count);
 
-        private long[] getSumInPrevChunk() {
-            long[] result = new long[sumInPrevChunk.length()];
-            for (int i = 0; i < result.length; i++) {
-                result[i] = sumInPrevChunk.get(i);
+            squaresSum[SumOfSquares.LOW].add(SumOfSquares.getLowLimb(value, count));
+            final long middle = SumOfSquares.getMiddleLimb(value, count);
+            if (middle != 0) {
+                squaresSum[SumOfSquares.MIDDLE].add(middle);
+            }
+            final long high = SumOfSquares.getHighLimb(value, count);
+            if (high != 0) {
+                squaresSum[SumOfSquares.HIGH].add(high);
             }
-            return result;
         }
 
-        private long[] getSumInLastChunkInWindow() {
-            return sumInPrevChunks[1];
+        private void addAll(SampleBatch batch) {
+            for (int i = 0; i < bucketLayout.getBucketsCount(); i++) {
+                if (batch.bucketValues[i] != 0) {
+                    sum.add(i, batch.bucketValues[i]);
+                }
+            }
+            minMax.register(batch.min);
+            minMax.register(batch.max);
+            totalSum.add(batch.totalSum);
+            for (int limb = 0; limb < squaresSum.length; limb++) {
+                if (batch.squaresSum[limb] != 0) {
+                    squaresSum[limb].add(batch.squaresSum[limb]);
+                }
+            }
         }
 
-        private long getTotalSumInLastChunkInWindow() {
-            return totalSumInPrevChunks[1];
+        private void seal() {
+            for (int i = 0; i < sealedSum.length; i++) {
+                sealedSum[i] = sum.get(i);
+            }
+            sealedMax = minMax.getMax();
+            sealedMin = minMax.getMin();
+            sealedTotalSum = totalSum.longValue();
+            for (int limb = 0; limb < squaresSum.length; limb++) {
+                sealedSquaresSum[limb] = squaresSum[limb].longValue();
+            }
+            // accumulated sums are sums of sealed ones, so they do not overflow regardless of samples count within window
+            SumOfSquares.normalize(sealedSquaresSum, 0);
         }
 
-        private long getMin() {
-            final long min = Math.min(
-                    Math.min(minExceptThisAndPreviousChunk, minInPrevChunk.get()),
-                    minInThisChunk.get()
-            );
-            return min == Long.MAX_VALUE ? 0 : min;
-        }
+        private void reset() {
+            sum.reset();
+            for (int i = 0; i < sealedSum.length; i++) {
+                sealedSum[i] = 0;
+            }
 
-        private long getMax() {
-            final long max = Math.max(
-                    Math.max(maxExceptThisAndPreviousChunk, maxInPrevChunk.get()),
-                    maxInThisChunk.get()
-            );
-            return max == Long.MIN_VALUE ? 0 : max;
-        }
+            minMax.reset();
+            sealedMax = Long.MIN_VALUE;
+            sealedMin = Long.MAX_VALUE;
+            maxExceptThisAndPreviousChunk = Long.MIN_VALUE;
+            minExceptThisAndPreviousChunk = Long.MAX_VALUE;
 
-        private long getTotalSum(){
-            return totalAccumulatedSumExceptThisAndPreviousChunk + totalSumInPrevChunk.longValue() + totalSumInThisChunk.longValue();
+            totalSum.reset();
+            sealedTotalSum = 0;
+            totalAccumulatedSumExceptThisAndPreviousChunk = 0;
+
+            for (int limb = 0; limb < squaresSum.length; limb++) {
+                squaresSum[limb].reset();
+                sealedSquaresSum[limb] = 0;
+                squaresAccumulatedSumExceptThisAndPreviousChunk[limb] = 0;
+            }
         }
     }
 }
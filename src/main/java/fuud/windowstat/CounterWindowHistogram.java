@@ -1,49 +1,63 @@
 package fuud.windowstat;
 
+import java.nio.LongBuffer;
 import java.time.Clock;
 import java.time.Duration;
-import java.util.Arrays;
 
+/**
+ * Histogram within time window built from {@link WindowCounter}s (one per bucket, total sum, samples count and sum of squares)
+ * and {@link WindowMinMax}. <br>
+ * All of them share one {@link ChunkTimeline}, so each operation reads time and checks chunk expiration once
+ * for the whole histogram and buckets are always rotated together. <br>
+ * It is the only mode: counters with own timelines (previous behaviour) rotated independently,
+ * so buckets, total sum and samples count could be taken from different chunks. Public API is the same.
+ */
 public class CounterWindowHistogram implements WindowHistogram {
+    private final BucketLayout bucketLayout;
     private final long[] bucketOffsets;
+    private final ChunkTimeline timeline;
     private final WindowCounter[] buckets;
     private final WindowMinMax minMax;
     private final WindowCounter total;
     private final WindowCounter samplesCount;
+    private final WindowSumOfSquares squares;
 
     /**
-     * Let's bucketOffsets = [1, 2, 10] <br>
-     * Histogram buckets:
-     * <pre>
-     *   |Long.MIN_VALUE  |   1             | 2 | 3 | ... | 9 | 10 |  Long.MAX_VALUE |
-     *   <-- bucket[0] ---><-- bucket[1] ---><---- bucket[2] ------><---- bucket[3] ->
-     *
-     *   bucket[0] - from Long.MIN_VALUE inclusive to bucketOffsets[0] exclusive
-     *   bucket[1] - bucketOffsets[0] inclusive to bucketOffsets[1] exclusive
-     *   bucket[2] - bucketOffsets[1] inclusive to bucketOffsets[2] exclusive
-     *   bucket[3] - bucketOffsets[2] inclusive to Long.MAX_VALUE inclusive
-     * </pre>
-     * <p>
-     * If bucket[0] contain values => histogram is underflow. <br>
-     * If last bucket contain values => histogram is overflow.
+     * See {@link BucketLayout} for buckets description
      */
+    public CounterWindowHistogram(long[] bucketOffsets, Duration windowSize, int chunkCount) {
+        this(BucketLayout.of(bucketOffsets), windowSize, chunkCount);
+    }
+
     public CounterWindowHistogram(long[] bucketOffsets, Duration windowSize, int chunkCount, Clock clock) {
+        this(BucketLayout.of(bucketOffsets), windowSize, chunkCount, TickSource.of(clock));
+    }
 
-        for (int i = 1; i < bucketOffsets.length; i++) {
-            if (bucketOffsets[i - 1] >= bucketOffsets[i]) {
-                throw new IllegalArgumentException("Bucket offsets should be monotonically increasing sequence");
-            }
-        }
+    public CounterWindowHistogram(long[] bucketOffsets, Duration windowSize, int chunkCount, TickSource tickSource) {
+        this(BucketLayout.of(bucketOffsets), windowSize, chunkCount, tickSource);
+    }
+
+    public CounterWindowHistogram(BucketLayout bucketLayout, Duration windowSize, int chunkCount) {
+        this(bucketLayout, windowSize, chunkCount, TickSource.cached());
+    }
+
+    public CounterWindowHistogram(BucketLayout bucketLayout, Duration windowSize, int chunkCount, TickSource tickSource) {
+        this(bucketLayout, windowSize, chunkCount, tickSource, ChunkAlignment.CREATION_TIME);
+    }
 
-        this.bucketOffsets = bucketOffsets;
-        buckets = new WindowCounter[bucketOffsets.length + 1];
+    public CounterWindowHistogram(BucketLayout bucketLayout, Duration windowSize, int chunkCount, TickSource tickSource, ChunkAlignment alignment) {
+        this.bucketLayout = bucketLayout;
+        this.bucketOffsets = bucketLayout.getBucketOffsets();
+        this.timeline = new ChunkTimeline(windowSize, chunkCount, tickSource, alignment);
+        buckets = new WindowCounter[bucketLayout.getBucketsCount()];
         for (int i = 0; i < buckets.length; i++) {
-            buckets[i] = new WindowCounter(windowSize, chunkCount, clock);
+            buckets[i] = new WindowCounter(timeline);
         }
 
-        minMax = new WindowMinMax(windowSize, chunkCount, clock);
-        total = new WindowCounter(windowSize, chunkCount, clock);
-        samplesCount = new WindowCounter(windowSize, chunkCount, clock);
+        minMax = new WindowMinMax(timeline);
+        total = new WindowCounter(timeline);
+        samplesCount = new WindowCounter(timeline);
+        squares = new WindowSumOfSquares(timeline);
     }
 
     @Override
@@ -58,43 +72,111 @@ public class CounterWindowHistogram implements WindowHistogram {
 
     @Override
     public long getMean() {
-        final long samplesCount = this.samplesCount.getSum();
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        final long samplesCount = this.samplesCount.getSum(slot);
         if (samplesCount == 0) {
             return 0;
         } else {
-            return total.getSum() / samplesCount;
+            return total.getSum(slot) / samplesCount;
         }
     }
 
+    @Override
+    public double getVariance() {
+        return getVariance(timeline.getActualSlot());
+    }
+
+    /**
+     * @param slot actual slot, it can be expired if another thread rotates timeline
+     */
+    double getVariance(ChunkTimeline.Slot slot) {
+        return SumOfSquares.getVariance(
+                samplesCount.getSum(slot),
+                total.getSum(slot),
+                squares.getLimb(slot, SumOfSquares.LOW),
+                squares.getLimb(slot, SumOfSquares.MIDDLE),
+                squares.getLimb(slot, SumOfSquares.HIGH)
+        );
+    }
+
+    @Override
+    public double getStdDev() {
+        return Math.sqrt(getVariance());
+    }
+
     @Override
     public long getPercentile(double percentile) {
-        long count = 0;
-        for (WindowCounter bucket : buckets) {
-            count += bucket.getSum();
-        }
+        return getPercentile(percentile, false);
+    }
+
+    @Override
+    public long getInterpolatedPercentile(double percentile) {
+        return getPercentile(percentile, true);
+    }
 
-        if (count == 0) {
+    private long getPercentile(double percentile, boolean interpolate) {
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        final long samplesCount = this.samplesCount.getSum(slot);
+        if (samplesCount == 0) {
             return 0;
-        } else {
-            int countUnderPercentile = (int) (count * percentile); // math round
-            if (countUnderPercentile == 0) {
-                countUnderPercentile = 1;
+        }
+
+        final long countUnderPercentile = Snapshot.getCountUnderPercentile(samplesCount, percentile);
+        final int lastBucket = buckets.length - 1;
+        int bucket = 0;
+        long countBeforeBucket = 0;
+        long bucketValue = buckets[0].getSum(slot);
+        while (countBeforeBucket + bucketValue < countUnderPercentile && bucket < lastBucket) {
+            countBeforeBucket += bucketValue;
+            bucket++;
+            bucketValue = buckets[bucket].getSum(slot);
+        }
+        return interpolate ?
+                Snapshot.interpolate(bucketOffsets, bucket, countBeforeBucket, bucketValue, countUnderPercentile, minMax.getMin(slot), minMax.getMax(slot)) :
+                Snapshot.getBucketLowerBound(bucketOffsets, bucket);
+    }
+
+    @Override
+    public void getPercentiles(double[] percentiles, long[] out) {
+        getPercentiles(percentiles, out, false);
+    }
+
+    @Override
+    public void getInterpolatedPercentiles(double[] percentiles, long[] out) {
+        getPercentiles(percentiles, out, true);
+    }
+
+    private void getPercentiles(double[] percentiles, long[] out, boolean interpolate) {
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        final int lastBucket = buckets.length - 1;
+        final long samplesCount = this.samplesCount.getSum(slot);
+        final long min = interpolate ? minMax.getMin(slot) : 0;
+        final long max = interpolate ? minMax.getMax(slot) : 0;
+
+        int bucket = 0;
+        long countBeforeBucket = 0;
+        long countUpToBucket = buckets[0].getSum(slot);
+        for (int i = 0; i < percentiles.length; i++) {
+            if (samplesCount == 0) {
+                out[i] = 0;
+                continue;
             }
-            count = 0;
-            for (int i = 0; i < buckets.length; i++) {
-                count += buckets[i].getSum();
-                if (count >= countUnderPercentile) {
-                    int bucketOffsetIndex = i - 1; // bucket offsets does not include "underflow" bucket
-                    if (bucketOffsetIndex < 0) {
-                        return Long.MIN_VALUE; // can not calc
-                    }
-                    if (bucketOffsetIndex >= bucketOffsets.length - 1) {
-                        return Long.MAX_VALUE; // overflow
-                    }
-                    return bucketOffsets[bucketOffsetIndex];
-                }
+
+            final long countUnderPercentile = Snapshot.getCountUnderPercentile(samplesCount, percentiles[i]);
+            if (countUnderPercentile <= countBeforeBucket) {
+                // percentiles are not ascending, let's start from the beginning
+                bucket = 0;
+                countBeforeBucket = 0;
+                countUpToBucket = buckets[0].getSum(slot);
             }
-            throw new IllegalStateException("Should not reach here");
+            while (countUpToBucket < countUnderPercentile && bucket < lastBucket) {
+                bucket++;
+                countBeforeBucket = countUpToBucket;
+                countUpToBucket += buckets[bucket].getSum(slot);
+            }
+            out[i] = interpolate ?
+                    Snapshot.interpolate(bucketOffsets, bucket, countBeforeBucket, countUpToBucket - countBeforeBucket, countUnderPercentile, min, max) :
+                    Snapshot.getBucketLowerBound(bucketOffsets, bucket);
         }
     }
 
@@ -109,8 +191,52 @@ public class CounterWindowHistogram implements WindowHistogram {
     }
 
     @Override
-    public Bucket[] getSnapshot() {
-        throw new UnsupportedOperationException();
+    public Snapshot getSnapshot() {
+        final Snapshot snapshot = new Snapshot(bucketOffsets);
+        snapshotInto(snapshot);
+        return snapshot.readOnly();
+    }
+
+    @Override
+    public void snapshotInto(Snapshot snapshot) {
+        final long[] bucketValues = snapshot.getBucketValues(bucketOffsets);
+
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        for (int i = 0; i < buckets.length; i++) {
+            bucketValues[i] = buckets[i].getSum(slot);
+        }
+        snapshot.update(
+                minMax.getMin(slot),
+                minMax.getMax(slot),
+                total.getSum(slot),
+                squares.getLimb(slot, SumOfSquares.LOW),
+                squares.getLimb(slot, SumOfSquares.MIDDLE),
+                squares.getLimb(slot, SumOfSquares.HIGH)
+        );
+    }
+
+    @Override
+    public void mergeInto(Snapshot snapshot) {
+        final long[] bucketValues = snapshot.getBucketValues(bucketOffsets);
+
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        long samplesCount = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            final long bucketValue = buckets[i].getSum(slot);
+            bucketValues[i] += bucketValue;
+            samplesCount += bucketValue;
+        }
+
+        if (samplesCount > 0) {
+            snapshot.updateMerged(
+                    minMax.getMin(slot),
+                    minMax.getMax(slot),
+                    total.getSum(slot),
+                    squares.getLimb(slot, SumOfSquares.LOW),
+                    squares.getLimb(slot, SumOfSquares.MIDDLE),
+                    squares.getLimb(slot, SumOfSquares.HIGH)
+            );
+        }
     }
 
     @Override
@@ -120,18 +246,64 @@ public class CounterWindowHistogram implements WindowHistogram {
 
     @Override
     public void add(long value) {
-        final int bucket = Arrays.binarySearch(bucketOffsets, value);
-        if (bucket >= 0) {
-            buckets[bucket + 1].add(1);
-        } else {
-            buckets[-bucket - 1].add(1);
+        add(timeline.getActualSlot(), value, 1);
+    }
+
+    @Override
+    public void add(long value, long count) {
+        if (SampleBatch.checkCount(value, count)) {
+            add(timeline.getActualSlot(), value, count);
+        }
+    }
+
+    private void add(ChunkTimeline.Slot slot, long value, long count) {
+        buckets[bucketLayout.getBucketIndex(value)].add(slot, count);
+
+        minMax.register(slot, value);
+        total.add(slot, value * count);
+        samplesCount.add(slot, count);
+        squares.add(slot, value, count);
+    }
+
+    @Override
+    public void addAll(long[] values, int offset, int length) {
+        addAll(SampleBatch.of(bucketLayout, values, offset, length));
+    }
+
+    @Override
+    public void addAll(LongBuffer values) {
+        addAll(SampleBatch.of(bucketLayout, values));
+    }
+
+    private void addAll(SampleBatch batch) {
+        if (batch.samplesCount == 0) {
+            return;
+        }
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+
+        for (int i = 0; i < buckets.length; i++) {
+            if (batch.bucketValues[i] != 0) {
+                buckets[i].add(slot, batch.bucketValues[i]);
+            }
         }
 
-        minMax.register(value);
-        total.add(value);
-        samplesCount.add(1);
+        minMax.register(slot, batch.min);
+        minMax.register(slot, batch.max);
+        total.add(slot, batch.totalSum);
+        samplesCount.add(slot, batch.samplesCount);
+        squares.addAll(slot, batch.squaresSum);
     }
 
+    ChunkTimeline getTimeline() {
+        return timeline;
+    }
+
+    /**
+     * Bucket of histogram with its bounds and count. It was never returned by histogram.
+     *
+     * @deprecated use {@link Snapshot#getBucketOffsets()} and {@link Snapshot#getBucketValue(int)} of {@link #getSnapshot()}
+     */
+    @Deprecated
     public class Bucket {
         private final long minValueInclusive;
         private final long maxValueInclusive;
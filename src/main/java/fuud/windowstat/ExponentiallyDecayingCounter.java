@@ -0,0 +1,182 @@
+package fuud.windowstat;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * Counter with exponentially decaying sum: measurement added at time t contributes value * 2^(-(now - t) / halfLife). <br>
+ * Unlike {@link WindowCounter#getSmoothlySum()} it has no chunk boundaries, so sum and rate change smoothly
+ * and step change of rate is followed exponentially (e.g. by half in half-life).
+ * <p>
+ * Decay is applied lazily (forward decay): measurement is added with weight that grows with time since landmark,
+ * <pre>
+ *   sum(now) = sum of value * e^(lambda * (t - landmark)) * e^(-lambda * (now - landmark)),  lambda = ln 2 / halfLife
+ * </pre>
+ * so add is one {@link DoubleAdder#add(double)} and read multiplies sum by decay factor of the landmark.
+ * Weights grow up to 2^32, after that writer moves landmark to current time (rotation).
+ * Counter keeps two landmarks: actual and previous one, both are read, so writes that raced with rotation are not lost.
+ * Writers that lose the race for rotation do not wait for it: they keep writing to the old landmark,
+ * it becomes previous one. Only if weight of old landmark could overflow (after idle of hundreds of half-lives) they wait.
+ * Previous landmark is recycled by the next rotation, when its measurements are decayed by 2^32.
+ * <p>
+ * Counter takes O(1) memory regardless of half-life and has no background thread.
+ */
+public class ExponentiallyDecayingCounter {
+    private static final int RESCALE_HALF_LIVES = 32;
+    /**
+     * weight 2^512 and sums of such weights are far from double overflow
+     */
+    private static final int MAX_WEIGHT_HALF_LIVES = 512;
+
+    private final TickSource tickSource;
+    private final long halfLife;
+    /**
+     * ln 2 / halfLife, per tick
+     */
+    private final double lambda;
+    private final long rescaleInterval;
+    private final long maxWeightInterval;
+
+    private final Landmark[] landmarks = new Landmark[2];
+    private volatile Landmark actualLandmark;
+    /**
+     * package-private for tests
+     */
+    final AtomicBoolean rescaleInProgress = new AtomicBoolean();
+
+    public ExponentiallyDecayingCounter(Duration halfLife) {
+        this(halfLife, TickSource.cached());
+    }
+
+    public ExponentiallyDecayingCounter(Duration halfLife, Clock clock) {
+        this(halfLife, TickSource.of(clock));
+    }
+
+    /**
+     * @throws IllegalArgumentException if half-life is shorter than one tick
+     */
+    public ExponentiallyDecayingCounter(Duration halfLife, TickSource tickSource) {
+        this.tickSource = tickSource;
+        this.halfLife = ChunkTimeline.toTicks(halfLife, tickSource.getTickUnit());
+        if (this.halfLife <= 0) {
+            throw new IllegalArgumentException("Half-life " + halfLife + " is less than one tick (" + tickSource.getTickUnit() + ")");
+        }
+        this.lambda = Math.log(2) / this.halfLife;
+        this.rescaleInterval = Math.multiplyExact(this.halfLife, (long) RESCALE_HALF_LIVES);
+        this.maxWeightInterval = this.halfLife <= Long.MAX_VALUE / MAX_WEIGHT_HALF_LIVES ?
+                this.halfLife * MAX_WEIGHT_HALF_LIVES :
+                Long.MAX_VALUE;
+
+        final long currentTime = tickSource.currentTick();
+        for (int i = 0; i < landmarks.length; i++) {
+            landmarks[i] = new Landmark(currentTime);
+        }
+        actualLandmark = landmarks[0];
+    }
+
+    public void add(long delta) {
+        final long currentTime = tickSource.currentTick();
+        final Landmark landmark = getActualLandmark(currentTime);
+        landmark.sum.add(delta * Math.exp(lambda * (currentTime - landmark.time)));
+    }
+
+    /**
+     * @return sum of measurements, each one is decayed by half per half-life since it was added
+     */
+    public double getSum() {
+        final long currentTime = tickSource.currentTick();
+        double sum = 0;
+        for (Landmark landmark : landmarks) {
+            // time is read first, so sum is not older than time (see rescale)
+            final long time = landmark.time;
+            sum += landmark.sum.sum() * Math.exp(-lambda * (currentTime - time));
+        }
+        return sum;
+    }
+
+    /**
+     * Exponentially weighted rate: with constant rate of measurements it converges to this rate.
+     * Sum of measurements with constant rate r per tick converges to r / lambda (r multiplied by mean lifetime of measurement),
+     * so rate is sum * lambda.
+     *
+     * @param unit rate unit, e.g. {@link TimeUnit#SECONDS} for measurements per second
+     */
+    public double getRate(TimeUnit unit) {
+        final double ticksPerUnit = unit.toNanos(1) * 1.0 / tickSource.getTickUnit().toNanos(1);
+        return getSum() * lambda * ticksPerUnit;
+    }
+
+    /**
+     * @return half-life in ticks of tick source
+     */
+    public long getHalfLife() {
+        return halfLife;
+    }
+
+    private Landmark getActualLandmark(long currentTime) {
+        while (true) {
+            final Landmark landmark = this.actualLandmark;
+            final long sinceLandmark = currentTime - landmark.time;
+            if (sinceLandmark < rescaleInterval) {
+                return landmark;
+            }
+
+            // weights are too large, let's move landmark
+            if (tryRescale(currentTime)) {
+                continue;
+            }
+            if (sinceLandmark < maxWeightInterval) {
+                // another thread rescales, old landmark is read as previous one after it
+                return landmark;
+            }
+            // weight of old landmark would overflow, let's wait for rescale
+            Thread.yield();
+        }
+    }
+
+    /**
+     * @return false if another thread rescales
+     */
+    private boolean tryRescale(long currentTime) {
+        if (!rescaleInProgress.compareAndSet(false, true)) {
+            return false;
+        }
+
+        try {
+            final Landmark landmark = this.actualLandmark;
+            if (currentTime - landmark.time < rescaleInterval) {
+                return true;
+            }
+
+            // measurements of recycled landmark are decayed at least by 2^RESCALE_HALF_LIVES
+            final Landmark recycled = landmark == landmarks[0] ? landmarks[1] : landmarks[0];
+            recycled.sum.reset();
+            // volatile write after reset: reader that sees new time sees reset sum
+            recycled.time = currentTime;
+            this.actualLandmark = recycled;
+            return true;
+        } finally {
+            rescaleInProgress.set(false);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ExponentiallyDecayingCounter{" +
+                "halfLife=" + halfLife +
+                ", sum=" + getSum() +
+                '}';
+    }
+
+    private static class Landmark {
+        private final DoubleAdder sum = new DoubleAdder();
+        private volatile long time;
+
+        private Landmark(long time) {
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package fuud.windowstat;
+
+import java.time.Duration;
+
+/**
+ * Histogram within time window with log-linear buckets (see {@link BucketLayout#logLinear(long, long, int)}),
+ * so buckets need not be picked by hand: percentiles have the same relative error for all values up to the highest trackable value.
+ * Bucket is found in O(1) by leading zeros count. <br>
+ * Chunks are the same as in {@link CompactWindowHistogram}: ring keeps chunkCount + 2 chunks
+ * and each chunk keeps 2 longs per bucket (live and sealed sums), plus three sets of accumulated sums per histogram,
+ * so buckets take 16 * bucketsCount * (chunkCount + 2) + 24 * bucketsCount bytes (more with striped buckets under contention).
+ * E.g. for 1 ns up to a minute and 6 chunks: one significant digit is 526 buckets, about 80 KB per histogram,
+ * two significant digits are 3810 buckets, about 580 KB per histogram.
+ * <p>
+ * Min and max within window are exact, so percentiles are bounded by them:
+ * percentile that falls into underflow or overflow bucket (e.g. value greater than the highest trackable value)
+ * is reported as min or max instead of {@link Long#MIN_VALUE} or {@link Long#MAX_VALUE}
+ * by getters and by snapshots of this histogram (including snapshots merged with them).
+ */
+public class LogLinearWindowHistogram extends CompactWindowHistogram {
+
+    /**
+     * @param highestTrackableValue values up to it (e.g. TimeUnit.MINUTES.toNanos(1)) are counted in buckets with bounded relative error
+     * @param significantDigits     0..5, relative error of percentiles is less than 10^-significantDigits
+     */
+    public LogLinearWindowHistogram(long highestTrackableValue, int significantDigits, Duration windowSize, int chunkCount) {
+        this(highestTrackableValue, significantDigits, windowSize, chunkCount, TickSource.cached());
+    }
+
+    public LogLinearWindowHistogram(long highestTrackableValue, int significantDigits, Duration windowSize, int chunkCount, TickSource tickSource) {
+        this(BucketLayout.logLinear(highestTrackableValue, significantDigits), windowSize, chunkCount, tickSource, ChunkAlignment.CREATION_TIME);
+    }
+
+    /**
+     * @param bucketLayout log-linear layout, see {@link BucketLayout#logLinear(long, long, int)}
+     */
+    public LogLinearWindowHistogram(BucketLayout bucketLayout, Duration windowSize, int chunkCount, TickSource tickSource, ChunkAlignment alignment) {
+        super(bucketLayout, windowSize, chunkCount, tickSource, alignment);
+    }
+
+    @Override
+    boolean percentilesBoundedByMinMax() {
+        // min and max within window are exact, so percentile can not be out of them
+        return true;
+    }
+}
@@ -0,0 +1,127 @@
+package fuud.windowstat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Min and max of values, works like {@link java.util.concurrent.atomic.LongAccumulator}. <br>
+ * Value that can not change min or max (e.g. value between current min and max) is skipped without CAS. <br>
+ * Min and max are updated by CAS in base cell until first CAS failure.
+ * After that stripes are created and each thread updates min and max of its own stripe (see {@link Striping}):
+ * <pre>
+ *   | padding | stripe 0: max, min | padding | stripe 1: max, min | padding | ...
+ * </pre>
+ * Min and max are combined from base cell and all stripes on read.
+ * Stripes are kept on reset, so once created they are reused by all next chunks.
+ */
+class MinMaxAccumulator {
+    private static final int MAX = 0;
+    private static final int MIN = 1;
+    private static final int STRIDE = 2 + Striping.PADDING;
+
+    private static final AtomicReferenceFieldUpdater<MinMaxAccumulator, AtomicLongArray> STRIPES_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(MinMaxAccumulator.class, AtomicLongArray.class, "stripes");
+
+    private final AtomicLongArray base = new AtomicLongArray(2);
+    private volatile AtomicLongArray stripes;
+
+    MinMaxAccumulator() {
+        reset(base, 0, base.length());
+    }
+
+    void register(long value) {
+        AtomicLongArray stripes = this.stripes;
+        if (stripes == null) {
+            if (tryRegister(base, 0, value)) {
+                return;
+            }
+            // contention detected
+            stripes = getOrCreateStripes();
+        }
+
+        int offset = Striping.PADDING + Striping.getStripe() * STRIDE;
+        while (!tryRegister(stripes, offset, value)) {
+            // another thread of the same stripe changed min or max, let's retry on other stripe
+            offset = Striping.PADDING + Striping.rehashStripe() * STRIDE;
+        }
+    }
+
+    /**
+     * @return Long.MIN_VALUE if there were no values
+     */
+    long getMax() {
+        long max = base.get(MAX);
+        final AtomicLongArray stripes = this.stripes;
+        if (stripes != null) {
+            for (int stripe = 0; stripe < Striping.STRIPES_COUNT; stripe++) {
+                max = Math.max(max, stripes.get(Striping.PADDING + stripe * STRIDE + MAX));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return Long.MAX_VALUE if there were no values
+     */
+    long getMin() {
+        long min = base.get(MIN);
+        final AtomicLongArray stripes = this.stripes;
+        if (stripes != null) {
+            for (int stripe = 0; stripe < Striping.STRIPES_COUNT; stripe++) {
+                min = Math.min(min, stripes.get(Striping.PADDING + stripe * STRIDE + MIN));
+            }
+        }
+        return min;
+    }
+
+    /**
+     * Should be called only when nobody registers values
+     */
+    void reset() {
+        reset(base, 0, base.length());
+        final AtomicLongArray stripes = this.stripes;
+        if (stripes != null) {
+            reset(stripes, Striping.PADDING, stripes.length());
+        }
+    }
+
+    /**
+     * @return false if CAS failed
+     */
+    private static boolean tryRegister(AtomicLongArray cells, int offset, long value) {
+        final long max = cells.get(offset + MAX);
+        if (value > max && !cells.compareAndSet(offset + MAX, max, value)) {
+            return false;
+        }
+        final long min = cells.get(offset + MIN);
+        if (value < min && !cells.compareAndSet(offset + MIN, min, value)) {
+            return false;
+        }
+        return true;
+    }
+
+    private AtomicLongArray getOrCreateStripes() {
+        final AtomicLongArray newStripes = new AtomicLongArray(Striping.PADDING + Striping.STRIPES_COUNT * STRIDE);
+        reset(newStripes, Striping.PADDING, newStripes.length());
+        if (STRIPES_UPDATER.compareAndSet(this, null, newStripes)) {
+            return newStripes;
+        } else {
+            return stripes;
+        }
+    }
+
+    private static void reset(AtomicLongArray cells, int from, int to) {
+        for (int offset = from; offset + MIN < to; offset += STRIDE) {
+            cells.set(offset + MAX, Long.MIN_VALUE);
+            cells.set(offset + MIN, Long.MAX_VALUE);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MinMaxAccumulator{" +
+                "max=" + getMax() +
+                ", min=" + getMin() +
+                '}';
+    }
+}
@@ -0,0 +1,23 @@
+package fuud.windowstat;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * See {@link TickSource#nanoTime()}
+ */
+class NanoTimeTickSource implements TickSource {
+    static final NanoTimeTickSource INSTANCE = new NanoTimeTickSource();
+
+    private NanoTimeTickSource() {
+    }
+
+    @Override
+    public long currentTick() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public TimeUnit getTickUnit() {
+        return TimeUnit.NANOSECONDS;
+    }
+}
@@ -0,0 +1,660 @@
+package fuud.windowstat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram within time window that keeps the bulk of its state out of heap. <br>
+ * Algorithm is the same as in {@link CompactWindowHistogram}, but data of chunks is split:
+ * <ul>
+ * <li>live data (bucket counters, min-max, sums) is updated concurrently, it is kept on heap in atomics.
+ * Only actual and previous chunks are written, so there are only three sets of live data
+ * (actual, previous and one being sealed/recycled), set of chunk is chosen by chunk epoch</li>
+ * <li>sealed and accumulated data of all chunks in ring is written only by rotating thread,
+ * it is kept in one contiguous region of {@link ByteBuffer} (direct or memory-mapped)</li>
+ * </ul>
+ * So per-bucket heap state (three sets of live counters) does not depend on chunks count, and rotation does not allocate.
+ * Heap still holds small per-chunk objects: {@link ChunkTimeline} keeps chunkCount + 2 slot objects per histogram.
+ * <p>
+ * Live data is updated with Java 8 atomics on heap ({@link java.util.concurrent.atomic.AtomicLongArray},
+ * {@link LongAdder}), not with VarHandle atomics on the buffer: buffer is written only by rotating thread
+ * and by {@link #flush()}, so it needs no atomic access.
+ * <p>
+ * Buffer can be memory-mapped file (see {@link #mapped(Path, BucketLayout, Duration, int, TickSource)}),
+ * then restarted process re-attaches to it and continues with chunks that are still within window.
+ * Sealed chunks are written to buffer on rotation, data of actual and previous chunks is written on {@link #flush()},
+ * so it should be called before shutdown (and can be called periodically to lose less data on crash).
+ * <p>
+ * Layout of buffer: header (see {@link PersistedHeader}) and ring slots one after another, each slot is
+ * <pre>
+ *   | sealed bucket values | accumulated bucket values | sealed max, sealed min | max, min except this and previous |
+ *   | sealed total sum | accumulated total sum | sealed sum of squares limbs | accumulated sum of squares limbs |
+ * </pre>
+ * all values are longs in native byte order.
+ * Sealed values of actual and previous chunks are written only by {@link #flush()}.
+ */
+public class OffHeapWindowHistogram implements WindowHistogram {
+    private static final int LIVE_CHUNKS_COUNT = 3;
+
+    private final int chunkCount;
+    private final int bucketsCount;
+    private final BucketLayout bucketLayout;
+    private final long[] bucketOffsets;
+    private final ChunkTimeline timeline;
+    private final LiveChunk[] liveChunks;
+
+    private final ByteBuffer buffer;
+    private final int slotSize;
+    /**
+     * actual epoch as it is seen by rotation, guarded by this
+     */
+    private long actualEpoch;
+    // offsets of values within slot
+    private final int sealedSumOffset;
+    private final int accumulatedSumOffset;
+    private final int sealedMaxOffset;
+    private final int sealedMinOffset;
+    private final int maxExceptThisAndPreviousChunkOffset;
+    private final int minExceptThisAndPreviousChunkOffset;
+    private final int sealedTotalSumOffset;
+    private final int totalAccumulatedSumOffset;
+    private final int sealedSquaresSumOffset;
+    private final int squaresAccumulatedSumOffset;
+
+    /**
+     * Creates histogram with new direct buffer
+     */
+    public OffHeapWindowHistogram(BucketLayout bucketLayout, Duration windowSize, int chunkCount) {
+        this(bucketLayout, windowSize, chunkCount, TickSource.cached());
+    }
+
+    /**
+     * Creates histogram with new direct buffer
+     */
+    public OffHeapWindowHistogram(BucketLayout bucketLayout, Duration windowSize, int chunkCount, TickSource tickSource) {
+        this(bucketLayout, windowSize, chunkCount, tickSource, ChunkAlignment.CREATION_TIME,
+                ByteBuffer.allocateDirect(getRequiredBufferSize(bucketLayout, chunkCount)));
+    }
+
+    /**
+     * Same as {@link #OffHeapWindowHistogram(BucketLayout, Duration, int, TickSource, ChunkAlignment, ByteBuffer, boolean)}
+     * without re-attach: previous content of buffer is ignored
+     */
+    public OffHeapWindowHistogram(BucketLayout bucketLayout, Duration windowSize, int chunkCount, TickSource tickSource,
+                                  ChunkAlignment alignment, ByteBuffer buffer) {
+        this(bucketLayout, windowSize, chunkCount, tickSource, alignment, buffer, false);
+    }
+
+    /**
+     * @param buffer   buffer to keep data in, starting from its position. It should have at least
+     *                 {@link #getRequiredBufferSize(BucketLayout, int)} bytes remaining.
+     *                 Several histograms can share one buffer (e.g. memory-mapped file) if their regions do not overlap.
+     * @param reattach if true and buffer contains data of histogram with the same configuration, histogram continues with it
+     *                 (chunks that are not expired yet are kept, chunk alignment is the same as in persisted histogram).
+     *                 Otherwise buffer is cleared. Tick source should be based on wall clock to re-attach data.
+     * @throws IllegalArgumentException if buffer is too small or reattach is true and tick source is {@link TickSource#nanoTime()}
+     */
+    public OffHeapWindowHistogram(BucketLayout bucketLayout, Duration windowSize, int chunkCount, TickSource tickSource,
+                                  ChunkAlignment alignment, ByteBuffer buffer, boolean reattach) {
+        if (reattach) {
+            PersistedHeader.checkTickSource(tickSource);
+        }
+        final int requiredBufferSize = getRequiredBufferSize(bucketLayout, chunkCount);
+        if (buffer.remaining() < requiredBufferSize) {
+            throw new IllegalArgumentException("Buffer has " + buffer.remaining() + " bytes remaining, " + requiredBufferSize + " bytes required");
+        }
+
+        this.chunkCount = chunkCount;
+        this.bucketsCount = bucketLayout.getBucketsCount();
+        this.bucketLayout = bucketLayout;
+        this.bucketOffsets = bucketLayout.getBucketOffsets();
+
+        final ByteBuffer region = buffer.duplicate();
+        region.limit(region.position() + requiredBufferSize);
+        this.buffer = region.slice().order(ByteOrder.nativeOrder());
+
+        this.sealedSumOffset = 0;
+        this.accumulatedSumOffset = sealedSumOffset + bucketsCount * Long.BYTES;
+        this.sealedMaxOffset = accumulatedSumOffset + bucketsCount * Long.BYTES;
+        this.sealedMinOffset = sealedMaxOffset + Long.BYTES;
+        this.maxExceptThisAndPreviousChunkOffset = sealedMinOffset + Long.BYTES;
+        this.minExceptThisAndPreviousChunkOffset = maxExceptThisAndPreviousChunkOffset + Long.BYTES;
+        this.sealedTotalSumOffset = minExceptThisAndPreviousChunkOffset + Long.BYTES;
+        this.totalAccumulatedSumOffset = sealedTotalSumOffset + Long.BYTES;
+        this.sealedSquaresSumOffset = totalAccumulatedSumOffset + Long.BYTES;
+        this.squaresAccumulatedSumOffset = sealedSquaresSumOffset + SumOfSquares.LIMBS_COUNT * Long.BYTES;
+        this.slotSize = squaresAccumulatedSumOffset + SumOfSquares.LIMBS_COUNT * Long.BYTES;
+
+        liveChunks = new LiveChunk[LIVE_CHUNKS_COUNT];
+        for (int i = 0; i < liveChunks.length; i++) {
+            liveChunks[i] = new LiveChunk(bucketLayout);
+        }
+
+        final long configHash = Arrays.hashCode(bucketOffsets);
+        final long chunkDuration = ChunkTimeline.getChunkDuration(windowSize, chunkCount, tickSource.getTickUnit());
+        final ChunkTimeline restoredTimeline = reattach ?
+                PersistedHeader.restoreTimeline(this.buffer, PersistedHeader.HISTOGRAM, configHash, chunkCount, chunkDuration, tickSource) :
+                null;
+        if (restoredTimeline != null) {
+            this.timeline = restoredTimeline;
+            this.actualEpoch = timeline.peekActualSlot().epoch;
+            // live data of actual and previous chunks was flushed to their slots
+            restoreLiveChunk(actualEpoch - 1);
+            restoreLiveChunk(actualEpoch);
+        } else {
+            this.timeline = new ChunkTimeline(windowSize, chunkCount, tickSource, alignment);
+            this.actualEpoch = timeline.peekActualSlot().epoch;
+            for (int i = 0; i < timeline.getRingSize(); i++) {
+                resetSlot(i);
+            }
+            PersistedHeader.write(this.buffer, PersistedHeader.HISTOGRAM, configHash, timeline, tickSource.getTickUnit());
+        }
+        timeline.register(this::rotate);
+    }
+
+    /**
+     * Creates histogram that keeps its data in memory-mapped file.
+     * If file contains data of histogram with the same configuration, histogram continues with it.
+     * File is created if it does not exist.
+     *
+     * @param tickSource tick source based on wall clock, ticks of {@link TickSource#nanoTime()} are not comparable between processes
+     * @throws IllegalArgumentException if tick source is {@link TickSource#nanoTime()}
+     */
+    public static OffHeapWindowHistogram mapped(Path file, BucketLayout bucketLayout, Duration windowSize, int chunkCount,
+                                                TickSource tickSource) throws IOException {
+        // before file is created
+        PersistedHeader.checkTickSource(tickSource);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // mapping is valid after channel is closed
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, getRequiredBufferSize(bucketLayout, chunkCount));
+            return new OffHeapWindowHistogram(bucketLayout, windowSize, chunkCount, tickSource, ChunkAlignment.CREATION_TIME, buffer, true);
+        }
+    }
+
+    /**
+     * Writes data of actual and previous chunks to buffer. Data of other chunks is written on rotation.
+     * If buffer is memory-mapped file, it is written to file by OS, {@link MappedByteBuffer#force()} can be used to force it.
+     */
+    public void flush() {
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        synchronized (this) {
+            if (slot.epoch != actualEpoch) {
+                // chunks were rotated concurrently, rotation has sealed them
+                return;
+            }
+            seal(slot.epoch - 1);
+            seal(slot.epoch);
+        }
+    }
+
+    /**
+     * @return size of buffer in bytes that is needed for histogram with given layout and chunks count
+     */
+    public static int getRequiredBufferSize(BucketLayout bucketLayout, int chunkCount) {
+        final long slotSize = Long.BYTES * (2L * bucketLayout.getBucketsCount() + 6 + 2 * SumOfSquares.LIMBS_COUNT);
+        return Math.toIntExact(PersistedHeader.SIZE + slotSize * (chunkCount + 2));
+    }
+
+    @Override
+    public void add(long value) {
+        getLiveChunk(timeline.getActualSlot().epoch).add(value, 1);
+    }
+
+    @Override
+    public void add(long value, long count) {
+        if (SampleBatch.checkCount(value, count)) {
+            getLiveChunk(timeline.getActualSlot().epoch).add(value, count);
+        }
+    }
+
+    @Override
+    public void addAll(long[] values, int offset, int length) {
+        addAll(SampleBatch.of(bucketLayout, values, offset, length));
+    }
+
+    @Override
+    public void addAll(LongBuffer values) {
+        addAll(SampleBatch.of(bucketLayout, values));
+    }
+
+    private void addAll(SampleBatch batch) {
+        if (batch.samplesCount > 0) {
+            getLiveChunk(timeline.getActualSlot().epoch).addAll(batch);
+        }
+    }
+
+    @Override
+    public long getMax() {
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        return getMax(slot);
+    }
+
+    @Override
+    public long getMin() {
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        return getMin(slot);
+    }
+
+    @Override
+    public long getMean() {
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        return (long) (getTotalSum(slot) * 1.0 / getSamplesCount(slot));
+    }
+
+    @Override
+    public double getVariance() {
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        return SumOfSquares.getVariance(
+                getSamplesCount(slot),
+                getTotalSum(slot),
+                getSquaresLimb(slot, SumOfSquares.LOW),
+                getSquaresLimb(slot, SumOfSquares.MIDDLE),
+                getSquaresLimb(slot, SumOfSquares.HIGH)
+        );
+    }
+
+    @Override
+    public double getStdDev() {
+        return Math.sqrt(getVariance());
+    }
+
+    @Override
+    public long getPercentile(double percentile) {
+        return getPercentile(percentile, false);
+    }
+
+    @Override
+    public long getInterpolatedPercentile(double percentile) {
+        return getPercentile(percentile, true);
+    }
+
+    private long getPercentile(double percentile, boolean interpolate) {
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        final long samplesCount = getSamplesCount(slot);
+        if (samplesCount == 0) {
+            return 0;
+        }
+
+        final long countUnderPercentile = Snapshot.getCountUnderPercentile(samplesCount, percentile);
+        final int lastBucket = bucketOffsets.length;
+        int bucket = 0;
+        long countBeforeBucket = 0;
+        long bucketValue = getBucketValue(slot, 0);
+        while (countBeforeBucket + bucketValue < countUnderPercentile && bucket < lastBucket) {
+            countBeforeBucket += bucketValue;
+            bucket++;
+            bucketValue = getBucketValue(slot, bucket);
+        }
+        return interpolate ?
+                Snapshot.interpolate(bucketOffsets, bucket, countBeforeBucket, bucketValue, countUnderPercentile, getMin(slot), getMax(slot)) :
+                Snapshot.getBucketLowerBound(bucketOffsets, bucket);
+    }
+
+    @Override
+    public void getPercentiles(double[] percentiles, long[] out) {
+        getPercentiles(percentiles, out, false);
+    }
+
+    @Override
+    public void getInterpolatedPercentiles(double[] percentiles, long[] out) {
+        getPercentiles(percentiles, out, true);
+    }
+
+    private void getPercentiles(double[] percentiles, long[] out, boolean interpolate) {
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        final int lastBucket = bucketOffsets.length;
+        final long samplesCount = getSamplesCount(slot);
+        final long min = interpolate ? getMin(slot) : 0;
+        final long max = interpolate ? getMax(slot) : 0;
+
+        int bucket = 0;
+        long countBeforeBucket = 0;
+        long countUpToBucket = getBucketValue(slot, 0);
+        for (int i = 0; i < percentiles.length; i++) {
+            if (samplesCount == 0) {
+                out[i] = 0;
+                continue;
+            }
+
+            final long countUnderPercentile = Snapshot.getCountUnderPercentile(samplesCount, percentiles[i]);
+            if (countUnderPercentile <= countBeforeBucket) {
+                // percentiles are not ascending, let's start from the beginning
+                bucket = 0;
+                countBeforeBucket = 0;
+                countUpToBucket = getBucketValue(slot, 0);
+            }
+            while (countUpToBucket < countUnderPercentile && bucket < lastBucket) {
+                bucket++;
+                countBeforeBucket = countUpToBucket;
+                countUpToBucket += getBucketValue(slot, bucket);
+            }
+            out[i] = interpolate ?
+                    Snapshot.interpolate(bucketOffsets, bucket, countBeforeBucket, countUpToBucket - countBeforeBucket, countUnderPercentile, min, max) :
+                    Snapshot.getBucketLowerBound(bucketOffsets, bucket);
+        }
+    }
+
+    @Override
+    public boolean isOverflow() {
+        return getBucketValue(timeline.getActualSlot(), bucketOffsets.length) > 0;
+    }
+
+    @Override
+    public boolean isUnderflow() {
+        return getBucketValue(timeline.getActualSlot(), 0) > 0;
+    }
+
+    @Override
+    public long getSamplesCount() {
+        return getSamplesCount(timeline.getActualSlot());
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+        final Snapshot snapshot = new Snapshot(bucketOffsets);
+        snapshotInto(snapshot);
+        return snapshot.readOnly();
+    }
+
+    @Override
+    public void snapshotInto(Snapshot snapshot) {
+        final long[] bucketValues = snapshot.getBucketValues(bucketOffsets);
+
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        for (int i = 0; i < bucketValues.length; i++) {
+            bucketValues[i] = getBucketValue(slot, i);
+        }
+
+        snapshot.update(
+                getMin(slot),
+                getMax(slot),
+                getTotalSum(slot),
+                getSquaresLimb(slot, SumOfSquares.LOW),
+                getSquaresLimb(slot, SumOfSquares.MIDDLE),
+                getSquaresLimb(slot, SumOfSquares.HIGH)
+        );
+    }
+
+    @Override
+    public void mergeInto(Snapshot snapshot) {
+        final long[] bucketValues = snapshot.getBucketValues(bucketOffsets);
+
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        long samplesCount = 0;
+        for (int i = 0; i < bucketValues.length; i++) {
+            final long bucketValue = getBucketValue(slot, i);
+            bucketValues[i] += bucketValue;
+            samplesCount += bucketValue;
+        }
+
+        if (samplesCount > 0) {
+            snapshot.updateMerged(
+                    getMin(slot),
+                    getMax(slot),
+                    getTotalSum(slot),
+                    getSquaresLimb(slot, SumOfSquares.LOW),
+                    getSquaresLimb(slot, SumOfSquares.MIDDLE),
+                    getSquaresLimb(slot, SumOfSquares.HIGH)
+            );
+        }
+    }
+
+    ChunkTimeline getTimeline() {
+        return timeline;
+    }
+
+    private LiveChunk getLiveChunk(long epoch) {
+        return liveChunks[(int) Math.floorMod(epoch, (long) LIVE_CHUNKS_COUNT)];
+    }
+
+    private long getBucketValue(ChunkTimeline.Slot slot, int bucket) {
+        return getLong(slot.index, accumulatedSumOffset + bucket * Long.BYTES) +
+                getLiveChunk(slot.epoch - 1).sum.get(bucket) +
+                getLiveChunk(slot.epoch).sum.get(bucket);
+    }
+
+    private long getSamplesCount(ChunkTimeline.Slot slot) {
+        long samplesCount = 0;
+        for (int i = 0; i < bucketsCount; i++) {
+            samplesCount += getBucketValue(slot, i);
+        }
+        return samplesCount;
+    }
+
+    private long getMin(ChunkTimeline.Slot slot) {
+        final long min = Math.min(
+                Math.min(getLong(slot.index, minExceptThisAndPreviousChunkOffset), getLiveChunk(slot.epoch - 1).minMax.getMin()),
+                getLiveChunk(slot.epoch).minMax.getMin()
+        );
+        return min == Long.MAX_VALUE ? 0 : min;
+    }
+
+    private long getMax(ChunkTimeline.Slot slot) {
+        final long max = Math.max(
+                Math.max(getLong(slot.index, maxExceptThisAndPreviousChunkOffset), getLiveChunk(slot.epoch - 1).minMax.getMax()),
+                getLiveChunk(slot.epoch).minMax.getMax()
+        );
+        return max == Long.MIN_VALUE ? 0 : max;
+    }
+
+    private long getTotalSum(ChunkTimeline.Slot slot) {
+        return getLong(slot.index, totalAccumulatedSumOffset) +
+                getLiveChunk(slot.epoch - 1).totalSum.longValue() +
+                getLiveChunk(slot.epoch).totalSum.longValue();
+    }
+
+    private long getSquaresLimb(ChunkTimeline.Slot slot, int limb) {
+        return getLong(slot.index, squaresAccumulatedSumOffset + limb * Long.BYTES) +
+                getLiveChunk(slot.epoch - 1).squaresSum[limb].longValue() +
+                getLiveChunk(slot.epoch).squaresSum[limb].longValue();
+    }
+
+    private synchronized void rotate(long fromEpoch, long toEpoch) {
+        // nobody writes to chunks that are neither actual nor previous
+        seal(fromEpoch - 1);
+        if (toEpoch - fromEpoch > 1) {
+            seal(fromEpoch);
+        }
+
+        for (long epoch = timeline.getFirstRecycledEpoch(fromEpoch, toEpoch); epoch <= toEpoch; epoch++) {
+            resetSlot(timeline.indexOf(epoch));
+        }
+        // live data of new actual and previous chunks, previous chunk is new only if rotation jumps over several chunks
+        for (long epoch = Math.max(fromEpoch + 1, toEpoch - 1); epoch <= toEpoch; epoch++) {
+            getLiveChunk(epoch).reset();
+        }
+
+        final int actualIndex = timeline.indexOf(toEpoch);
+        if (toEpoch - fromEpoch == 1) {
+            final int fromIndex = timeline.indexOf(fromEpoch);
+            for (int i = 0; i < bucketsCount; i++) {
+                copyLong(fromIndex, actualIndex, accumulatedSumOffset + i * Long.BYTES);
+            }
+            copyLong(fromIndex, actualIndex, totalAccumulatedSumOffset);
+            for (int limb = 0; limb < SumOfSquares.LIMBS_COUNT; limb++) {
+                copyLong(fromIndex, actualIndex, squaresAccumulatedSumOffset + limb * Long.BYTES);
+            }
+            accumulate(actualIndex, toEpoch - chunkCount, -1);
+            accumulate(actualIndex, fromEpoch - 1, 1);
+        } else {
+            for (long epoch = toEpoch - chunkCount + 1; epoch < toEpoch - 1; epoch++) {
+                accumulate(actualIndex, epoch, 1);
+            }
+        }
+
+        long max = Long.MIN_VALUE;
+        long min = Long.MAX_VALUE;
+        for (long epoch = toEpoch - chunkCount + 1; epoch < toEpoch - 1; epoch++) {
+            if (timeline.contains(epoch)) {
+                final int index = timeline.indexOf(epoch);
+                max = Math.max(max, getLong(index, sealedMaxOffset));
+                min = Math.min(min, getLong(index, sealedMinOffset));
+            }
+        }
+        putLong(actualIndex, maxExceptThisAndPreviousChunkOffset, max);
+        putLong(actualIndex, minExceptThisAndPreviousChunkOffset, min);
+
+        actualEpoch = toEpoch;
+        PersistedHeader.writeActualEpoch(buffer, toEpoch);
+    }
+
+    /**
+     * adds sealed sums of chunk with given epoch (multiplied by sign) to accumulated sums of target slot
+     */
+    private void accumulate(int targetIndex, long epoch, int sign) {
+        if (!timeline.contains(epoch)) {
+            return;
+        }
+        final int index = timeline.indexOf(epoch);
+        for (int i = 0; i < bucketsCount; i++) {
+            addLong(targetIndex, accumulatedSumOffset + i * Long.BYTES, sign * getLong(index, sealedSumOffset + i * Long.BYTES));
+        }
+        addLong(targetIndex, totalAccumulatedSumOffset, sign * getLong(index, sealedTotalSumOffset));
+        for (int limb = 0; limb < SumOfSquares.LIMBS_COUNT; limb++) {
+            addLong(targetIndex, squaresAccumulatedSumOffset + limb * Long.BYTES, sign * getLong(index, sealedSquaresSumOffset + limb * Long.BYTES));
+        }
+    }
+
+    /**
+     * copies live data of chunk to its slot in buffer
+     */
+    private void seal(long epoch) {
+        if (!timeline.contains(epoch)) {
+            return;
+        }
+        final int index = timeline.indexOf(epoch);
+        final LiveChunk liveChunk = getLiveChunk(epoch);
+        for (int i = 0; i < bucketsCount; i++) {
+            putLong(index, sealedSumOffset + i * Long.BYTES, liveChunk.sum.get(i));
+        }
+        putLong(index, sealedMaxOffset, liveChunk.minMax.getMax());
+        putLong(index, sealedMinOffset, liveChunk.minMax.getMin());
+        putLong(index, sealedTotalSumOffset, liveChunk.totalSum.longValue());
+        // accumulated sums are sums of sealed ones, so they do not overflow regardless of samples count within window
+        final long low = liveChunk.squaresSum[SumOfSquares.LOW].longValue();
+        final long middle = liveChunk.squaresSum[SumOfSquares.MIDDLE].longValue();
+        final long high = liveChunk.squaresSum[SumOfSquares.HIGH].longValue();
+        putLong(index, sealedSquaresSumOffset + SumOfSquares.LOW * Long.BYTES, SumOfSquares.getNormalizedLow(low));
+        putLong(index, sealedSquaresSumOffset + SumOfSquares.MIDDLE * Long.BYTES, SumOfSquares.getNormalizedMiddle(low, middle));
+        putLong(index, sealedSquaresSumOffset + SumOfSquares.HIGH * Long.BYTES, SumOfSquares.getNormalizedHigh(low, middle, high));
+    }
+
+    /**
+     * adds sealed data of chunk (flushed before restart) to its live data
+     */
+    private void restoreLiveChunk(long epoch) {
+        final int index = timeline.indexOf(epoch);
+        final LiveChunk liveChunk = getLiveChunk(epoch);
+        for (int i = 0; i < bucketsCount; i++) {
+            liveChunk.sum.add(i, getLong(index, sealedSumOffset + i * Long.BYTES));
+        }
+        final long sealedMax = getLong(index, sealedMaxOffset);
+        if (sealedMax != Long.MIN_VALUE) {
+            liveChunk.minMax.register(sealedMax);
+        }
+        final long sealedMin = getLong(index, sealedMinOffset);
+        if (sealedMin != Long.MAX_VALUE) {
+            liveChunk.minMax.register(sealedMin);
+        }
+        liveChunk.totalSum.add(getLong(index, sealedTotalSumOffset));
+        for (int limb = 0; limb < SumOfSquares.LIMBS_COUNT; limb++) {
+            liveChunk.squaresSum[limb].add(getLong(index, sealedSquaresSumOffset + limb * Long.BYTES));
+        }
+    }
+
+    private void resetSlot(int index) {
+        final int slotStart = PersistedHeader.SIZE + index * slotSize;
+        for (int offset = 0; offset < slotSize; offset += Long.BYTES) {
+            buffer.putLong(slotStart + offset, 0);
+        }
+        putLong(index, sealedMaxOffset, Long.MIN_VALUE);
+        putLong(index, sealedMinOffset, Long.MAX_VALUE);
+        putLong(index, maxExceptThisAndPreviousChunkOffset, Long.MIN_VALUE);
+        putLong(index, minExceptThisAndPreviousChunkOffset, Long.MAX_VALUE);
+    }
+
+    private long getLong(int slotIndex, int offset) {
+        return buffer.getLong(PersistedHeader.SIZE + slotIndex * slotSize + offset);
+    }
+
+    private void putLong(int slotIndex, int offset, long value) {
+        buffer.putLong(PersistedHeader.SIZE + slotIndex * slotSize + offset, value);
+    }
+
+    private void addLong(int slotIndex, int offset, long delta) {
+        putLong(slotIndex, offset, getLong(slotIndex, offset) + delta);
+    }
+
+    private void copyLong(int fromSlotIndex, int toSlotIndex, int offset) {
+        putLong(toSlotIndex, offset, getLong(fromSlotIndex, offset));
+    }
+
+    /**
+     * Data of chunk that is written concurrently
+     */
+    private static class LiveChunk {
+        private final BucketLayout bucketLayout;
+        private final BucketCounters sum;
+        private final MinMaxAccumulator minMax = new MinMaxAccumulator();
+        private final LongAdder totalSum = new LongAdder();
+        private final LongAdder[] squaresSum = new LongAdder[SumOfSquares.LIMBS_COUNT];
+
+        private LiveChunk(BucketLayout bucketLayout) {
+            this.bucketLayout = bucketLayout;
+            this.sum = BucketCounters.atomic(bucketLayout.getBucketsCount());
+            for (int limb = 0; limb < squaresSum.length; limb++) {
+                squaresSum[limb] = new LongAdder();
+            }
+        }
+
+        private void add(long value, long count) {
+            sum.add(bucketLayout.getBucketIndex(value), count);
+            minMax.register(value);
+            totalSum.add(value * count);
+
+            squaresSum[SumOfSquares.LOW].add(SumOfSquares.getLowLimb(value, count));
+            final long middle = SumOfSquares.getMiddleLimb(value, count);
+            if (middle != 0) {
+                squaresSum[SumOfSquares.MIDDLE].add(middle);
+            }
+            final long high = SumOfSquares.getHighLimb(value, count);
+            if (high != 0) {
+                squaresSum[SumOfSquares.HIGH].add(high);
+            }
+        }
+
+        private void addAll(SampleBatch batch) {
+            for (int i = 0; i < bucketLayout.getBucketsCount(); i++) {
+                if (batch.bucketValues[i] != 0) {
+                    sum.add(i, batch.bucketValues[i]);
+                }
+            }
+            minMax.register(batch.min);
+            minMax.register(batch.max);
+            totalSum.add(batch.totalSum);
+            for (int limb = 0; limb < squaresSum.length; limb++) {
+                if (batch.squaresSum[limb] != 0) {
+                    squaresSum[limb].add(batch.squaresSum[limb]);
+                }
+            }
+        }
+
+        private void reset() {
+            sum.reset();
+            minMax.reset();
+            totalSum.reset();
+            for (LongAdder limb : squaresSum) {
+                limb.reset();
+            }
+        }
+    }
+}
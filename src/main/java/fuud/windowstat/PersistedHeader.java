@@ -0,0 +1,85 @@
+package fuud.windowstat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Header of window stat persisted in buffer (e.g. memory-mapped file), it is placed at the beginning of the buffer:
+ * <pre>
+ *   | magic | kind | config hash | chunk count | chunk duration | tick unit | start time | actual epoch |
+ * </pre>
+ * Kind and config hash identify window stat and its configuration (e.g. bucket offsets),
+ * data is re-attached only if they are the same. <br>
+ * Persisted data is valid only for tick sources that are based on wall clock,
+ * ticks of {@link TickSource#nanoTime()} are not comparable between processes, so it is rejected (see {@link #checkTickSource(TickSource)}).
+ */
+final class PersistedHeader {
+    static final int SIZE = 8 * Long.BYTES;
+
+    static final long COUNTER = 1;
+    static final long HISTOGRAM = 2;
+
+    private static final long MAGIC = 0x57494E444F575354L; // "WINDOWST"
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int KIND_OFFSET = MAGIC_OFFSET + Long.BYTES;
+    private static final int CONFIG_HASH_OFFSET = KIND_OFFSET + Long.BYTES;
+    private static final int CHUNK_COUNT_OFFSET = CONFIG_HASH_OFFSET + Long.BYTES;
+    private static final int CHUNK_DURATION_OFFSET = CHUNK_COUNT_OFFSET + Long.BYTES;
+    private static final int TICK_UNIT_OFFSET = CHUNK_DURATION_OFFSET + Long.BYTES;
+    private static final int START_TIME_OFFSET = TICK_UNIT_OFFSET + Long.BYTES;
+    private static final int ACTUAL_EPOCH_OFFSET = START_TIME_OFFSET + Long.BYTES;
+
+    private PersistedHeader() {
+    }
+
+    /**
+     * Checks that ticks of tick source are comparable between processes, so persisted data can be re-attached
+     *
+     * @throws IllegalArgumentException if tick source is {@link TickSource#nanoTime()}
+     */
+    static void checkTickSource(TickSource tickSource) {
+        if (tickSource instanceof NanoTimeTickSource) {
+            throw new IllegalArgumentException("Persisted data can not be re-attached with tick source that is not based on wall clock: " + tickSource);
+        }
+    }
+
+    /**
+     * @return timeline restored from header or null if buffer does not contain header of the same window stat
+     * (e.g. buffer is new or configuration is changed) or if persisted actual chunk is in the future
+     */
+    static ChunkTimeline restoreTimeline(ByteBuffer buffer, long kind, long configHash, int chunkCount, long chunkDuration, TickSource tickSource) {
+        if (buffer.getLong(MAGIC_OFFSET) != MAGIC ||
+                buffer.getLong(KIND_OFFSET) != kind ||
+                buffer.getLong(CONFIG_HASH_OFFSET) != configHash ||
+                buffer.getLong(CHUNK_COUNT_OFFSET) != chunkCount ||
+                buffer.getLong(CHUNK_DURATION_OFFSET) != chunkDuration ||
+                buffer.getLong(TICK_UNIT_OFFSET) != tickSource.getTickUnit().ordinal()) {
+            return null;
+        }
+
+        final long startTime = buffer.getLong(START_TIME_OFFSET);
+        final long actualEpoch = buffer.getLong(ACTUAL_EPOCH_OFFSET);
+        final long actualChunkStartTime = startTime + actualEpoch * chunkDuration;
+        if (actualChunkStartTime > tickSource.currentTick()) {
+            // time went backward (e.g. clock is changed), data can not be trusted
+            return null;
+        }
+        return new ChunkTimeline(tickSource, chunkCount, chunkDuration, startTime, actualEpoch);
+    }
+
+    static void write(ByteBuffer buffer, long kind, long configHash, ChunkTimeline timeline, TimeUnit tickUnit) {
+        buffer.putLong(MAGIC_OFFSET, MAGIC);
+        buffer.putLong(KIND_OFFSET, kind);
+        buffer.putLong(CONFIG_HASH_OFFSET, configHash);
+        buffer.putLong(CHUNK_COUNT_OFFSET, timeline.getChunkCount());
+        buffer.putLong(CHUNK_DURATION_OFFSET, timeline.getChunkDuration());
+        buffer.putLong(TICK_UNIT_OFFSET, tickUnit.ordinal());
+        buffer.putLong(START_TIME_OFFSET, timeline.getStartTime());
+        buffer.putLong(ACTUAL_EPOCH_OFFSET, timeline.peekActualSlot().epoch);
+    }
+
+    static void writeActualEpoch(ByteBuffer buffer, long actualEpoch) {
+        buffer.putLong(ACTUAL_EPOCH_OFFSET, actualEpoch);
+    }
+}
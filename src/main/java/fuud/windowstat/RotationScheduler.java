@@ -0,0 +1,192 @@
+package fuud.windowstat;
+
+import java.lang.ref.WeakReference;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Rotates chunks of scheduled window stats in background daemon thread. <br>
+ * By default thread that first sees expired chunk rotates it, and other threads keep writing to expired chunk meanwhile.
+ * Scheduled window stat does not read time and does not rotate on operations,
+ * so writer does one volatile read of actual chunk and increment.
+ * <p>
+ * Scheduled window stats are grouped by tick source and ordered by expiration time of actual chunk within group.
+ * Scheduler thread sleeps until the nearest chunk expiration, then reads time once per tick source
+ * and rotates only expired window stats, so wake up costs O(log N) per rotated window stat
+ * (window stats with the same window and {@link ChunkAlignment#EPOCH} expire at the same wake up).
+ * Chunk is replaced a bit later than it expires (by scheduler wake up delay), so window can contain a bit more data.
+ * <p>
+ * Scheduling costs O(1): newly scheduled window stats are queued and picked up by scheduler thread.
+ * Scheduler keeps weak references to window stats, garbage collected stats are removed when their chunk expires.
+ * Window stats rotate themselves again after {@link #close()}.
+ * Window stat that is already scheduled (by this or another scheduler) is ignored.
+ */
+public class RotationScheduler implements AutoCloseable {
+    /**
+     * scheduler wakes up at least so often to pick up newly scheduled stats
+     */
+    private static final long MAX_SLEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final Comparator<ScheduledTimeline> BY_EXPIRATION_TIME = Comparator.comparingLong(reference -> reference.expirationTime);
+
+    /**
+     * scheduled timelines that are not picked up by scheduler thread yet
+     */
+    private final Queue<ScheduledTimeline> newTimelines = new ConcurrentLinkedQueue<>();
+    /**
+     * timelines picked up by scheduler thread, ordered by expiration time, guarded by itself
+     */
+    private final Map<TickSource, Queue<ScheduledTimeline>> timelinesByTickSource = new IdentityHashMap<>();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    public RotationScheduler() {
+        this("window-stat-rotation");
+    }
+
+    public RotationScheduler(String threadName) {
+        thread = new Thread(this::run, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void schedule(WindowCounter counter) {
+        schedule(counter.getTimeline());
+    }
+
+    public void schedule(WindowMinMax minMax) {
+        schedule(minMax.getTimeline());
+    }
+
+    public void schedule(WindowRateLimiter rateLimiter) {
+        schedule(rateLimiter.getTimeline());
+    }
+
+    /**
+     * @throws IllegalArgumentException if histogram is not one of histograms of this library
+     */
+    public void schedule(WindowHistogram histogram) {
+        if (histogram instanceof CompactWindowHistogram) {
+            schedule(((CompactWindowHistogram) histogram).getTimeline());
+        } else if (histogram instanceof CounterWindowHistogram) {
+            schedule(((CounterWindowHistogram) histogram).getTimeline());
+        } else if (histogram instanceof OffHeapWindowHistogram) {
+            schedule(((OffHeapWindowHistogram) histogram).getTimeline());
+        } else if (histogram instanceof ThreadLocalWindowHistogram) {
+            schedule(((ThreadLocalWindowHistogram) histogram).getTimeline());
+        } else {
+            throw new IllegalArgumentException("Unsupported histogram " + histogram.getClass().getName());
+        }
+    }
+
+    /**
+     * Stops scheduler thread, scheduled window stats rotate themselves after that
+     */
+    @Override
+    public void close() {
+        // lock is shared with schedule, so timeline that is scheduled concurrently is not left rotated externally
+        synchronized (newTimelines) {
+            closed = true;
+        }
+        synchronized (timelinesByTickSource) {
+            pickUpNewTimelines();
+            for (Queue<ScheduledTimeline> timelines : timelinesByTickSource.values()) {
+                for (ScheduledTimeline reference : timelines) {
+                    final ChunkTimeline timeline = reference.get();
+                    if (timeline != null) {
+                        timeline.setRotatedExternally(false);
+                        timeline.clearScheduled();
+                    }
+                }
+            }
+            timelinesByTickSource.clear();
+        }
+        LockSupport.unpark(thread);
+    }
+
+    private void schedule(ChunkTimeline timeline) {
+        synchronized (newTimelines) {
+            if (closed) {
+                throw new IllegalStateException("Scheduler is closed");
+            }
+            if (!timeline.tryMarkScheduled()) {
+                return;
+            }
+            newTimelines.add(new ScheduledTimeline(timeline));
+            timeline.setRotatedExternally(true);
+        }
+        // it can sleep longer than the first chunk of new timeline
+        LockSupport.unpark(thread);
+    }
+
+    private void run() {
+        while (!closed) {
+            LockSupport.parkNanos(this, rotateExpired());
+        }
+    }
+
+    /**
+     * @return nanos to sleep until the nearest expiration
+     */
+    long rotateExpired() {
+        long sleepNanos = MAX_SLEEP_NANOS;
+        synchronized (timelinesByTickSource) {
+            pickUpNewTimelines();
+
+            final Iterator<Map.Entry<TickSource, Queue<ScheduledTimeline>>> iterator = timelinesByTickSource.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<TickSource, Queue<ScheduledTimeline>> entry = iterator.next();
+                final TickSource tickSource = entry.getKey();
+                final Queue<ScheduledTimeline> timelines = entry.getValue();
+
+                final long currentTime = tickSource.currentTick();
+                while (!timelines.isEmpty() && timelines.peek().expirationTime <= currentTime) {
+                    final ScheduledTimeline reference = timelines.poll();
+                    final ChunkTimeline timeline = reference.get();
+                    if (timeline != null) {
+                        reference.expirationTime = timeline.rotateIfExpired(currentTime);
+                        timelines.add(reference);
+                    }
+                }
+
+                if (timelines.isEmpty()) {
+                    iterator.remove();
+                } else {
+                    final long expirationTime = timelines.peek().expirationTime;
+                    sleepNanos = Math.min(sleepNanos, tickSource.getTickUnit().toNanos(expirationTime - currentTime));
+                }
+            }
+        }
+        return sleepNanos;
+    }
+
+    private void pickUpNewTimelines() {
+        ScheduledTimeline reference;
+        while ((reference = newTimelines.poll()) != null) {
+            final ChunkTimeline timeline = reference.get();
+            if (timeline != null) {
+                reference.expirationTime = timeline.peekActualSlot().expirationTime;
+                timelinesByTickSource
+                        .computeIfAbsent(timeline.getTickSource(), tickSource -> new PriorityQueue<>(BY_EXPIRATION_TIME))
+                        .add(reference);
+            }
+        }
+    }
+
+    private static class ScheduledTimeline extends WeakReference<ChunkTimeline> {
+        /**
+         * expiration time of actual chunk when timeline was last rotated, it changes only when timeline is out of queue
+         */
+        private long expirationTime;
+
+        private ScheduledTimeline(ChunkTimeline timeline) {
+            super(timeline);
+        }
+    }
+}
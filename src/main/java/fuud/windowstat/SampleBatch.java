@@ -0,0 +1,111 @@
+package fuud.windowstat;
+
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * Histogram of batch of values that is built before it is added to window histogram,
+ * so window histogram does one atomic add per non-empty bucket instead of one per value. <br>
+ * Batch is thread local and reused, so it should be added to histogram before next batch of the same thread is built.
+ */
+final class SampleBatch {
+    /**
+     * max count of one {@link WindowHistogram#add(long, long)}, see {@link #checkCount(long, long)}
+     */
+    static final long MAX_COUNT = Integer.MAX_VALUE;
+
+    private static final ThreadLocal<SampleBatch> BATCH = ThreadLocal.withInitial(SampleBatch::new);
+
+    long[] bucketValues = new long[0];
+    long samplesCount;
+    long min;
+    long max;
+    long totalSum;
+    final long[] squaresSum = new long[SumOfSquares.LIMBS_COUNT];
+
+    private SampleBatch() {
+    }
+
+    static SampleBatch of(BucketLayout bucketLayout, long[] values, int offset, int length) {
+        checkRange(values, offset, length);
+        final SampleBatch batch = BATCH.get().reset(bucketLayout.getBucketsCount());
+        for (int i = offset; i < offset + length; i++) {
+            batch.add(bucketLayout, values[i]);
+        }
+        // batch is added at once, so its carries are moved to upper limbs like ones of weighted add
+        SumOfSquares.normalize(batch.squaresSum, 0);
+        return batch;
+    }
+
+    /**
+     * Reads values from position to limit, position of buffer is moved to limit
+     */
+    static SampleBatch of(BucketLayout bucketLayout, LongBuffer values) {
+        final SampleBatch batch = BATCH.get().reset(bucketLayout.getBucketsCount());
+        final int limit = values.limit();
+        for (int i = values.position(); i < limit; i++) {
+            batch.add(bucketLayout, values.get(i));
+        }
+        values.position(limit);
+        // batch is added at once, so its carries are moved to upper limbs like ones of weighted add
+        SumOfSquares.normalize(batch.squaresSum, 0);
+        return batch;
+    }
+
+    /**
+     * @throws IndexOutOfBoundsException if range is out of array
+     */
+    static void checkRange(long[] values, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > values.length - length) {
+            throw new IndexOutOfBoundsException("Range [" + offset + ", " + offset + " + " + length + ") is out of array of length " + values.length);
+        }
+    }
+
+    /**
+     * Checks count of {@link WindowHistogram#add(long, long)}: value * count and limbs of square * count are added at once.
+     * Limbs are less than 2^32, so their products fit into long while count is less than 2^31
+     * (carries are moved to upper limbs, see {@link SumOfSquares#getLowLimb(long, long)}),
+     * and high limb product fits while value * count fits.
+     *
+     * @return false if count is zero, i.e. there is nothing to add
+     * @throws IllegalArgumentException if count is negative, it is not less than 2^31 or value * count overflows long
+     */
+    static boolean checkCount(long value, long count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Count should not be negative: " + count);
+        }
+        if (count > MAX_COUNT) {
+            throw new IllegalArgumentException("Count should be less than 2^31: " + count);
+        }
+        final long sum = value * count;
+        if (count != 0 && sum / count != value) {
+            throw new IllegalArgumentException("Sum of value " + value + " added " + count + " times overflows long");
+        }
+        return count > 0;
+    }
+
+    private SampleBatch reset(int bucketsCount) {
+        if (bucketValues.length < bucketsCount) {
+            bucketValues = new long[bucketsCount];
+        } else {
+            Arrays.fill(bucketValues, 0, bucketsCount, 0);
+        }
+        samplesCount = 0;
+        min = Long.MAX_VALUE;
+        max = Long.MIN_VALUE;
+        totalSum = 0;
+        Arrays.fill(squaresSum, 0);
+        return this;
+    }
+
+    private void add(BucketLayout bucketLayout, long value) {
+        bucketValues[bucketLayout.getBucketIndex(value)]++;
+        samplesCount++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        totalSum += value;
+        squaresSum[SumOfSquares.LOW] += SumOfSquares.getLowLimb(value);
+        squaresSum[SumOfSquares.MIDDLE] += SumOfSquares.getMiddleLimb(value);
+        squaresSum[SumOfSquares.HIGH] += SumOfSquares.getHighLimb(value);
+    }
+}
@@ -0,0 +1,57 @@
+package fuud.windowstat;
+
+/**
+ * Helpers for striped (LongAdder-like) structures: each thread writes to its own stripe,
+ * stripes are separated by cache line padding. <br>
+ * Stripe is chosen by thread hash, thread moves to other stripe when CAS on its stripe fails,
+ * so threads that share stripe by hash do not contend forever.
+ */
+final class Striping {
+    /**
+     * 64 bytes cache line / 8 bytes per long
+     */
+    static final int PADDING = 8;
+    static final int STRIPES_COUNT = nextPowerOfTwo(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Stripe hash of thread, it is changed on contention like probe of {@link java.util.concurrent.atomic.LongAdder}
+     */
+    private static final ThreadLocal<int[]> PROBE = ThreadLocal.withInitial(Striping::createProbe);
+
+    private Striping() {
+    }
+
+    /**
+     * @return stripe of current thread, it is the same until {@link #rehashStripe()}
+     */
+    static int getStripe() {
+        return PROBE.get()[0] & (STRIPES_COUNT - 1);
+    }
+
+    /**
+     * Moves current thread to other (pseudo-random) stripe, should be called when CAS on stripe fails:
+     * threads that collide on one stripe spread out over time
+     *
+     * @return new stripe of current thread
+     */
+    static int rehashStripe() {
+        final int[] probe = PROBE.get();
+        int hash = probe[0];
+        // xorshift, hash is never zero
+        hash ^= hash << 13;
+        hash ^= hash >>> 17;
+        hash ^= hash << 5;
+        probe[0] = hash;
+        return hash & (STRIPES_COUNT - 1);
+    }
+
+    private static int[] createProbe() {
+        final long hash = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        final int probe = (int) (hash >>> 32);
+        return new int[]{probe != 0 ? probe : 1};
+    }
+
+    private static int nextPowerOfTwo(int value) {
+        return value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+    }
+}
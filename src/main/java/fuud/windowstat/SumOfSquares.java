@@ -0,0 +1,220 @@
+package fuud.windowstat;
+
+/**
+ * Square of long value does not fit into long, so sum of squares is kept in three long limbs:
+ * <pre>
+ *   square = low + middle * 2^32 + high * 2^64
+ *
+ *   low    - bits 0..31 of square
+ *   middle - bits 32..63 of square
+ *   high   - bits 64..127 of square
+ * </pre>
+ * Limbs of all values are summed separately, limb sums can be added and subtracted as usual longs.
+ * For values less than 2^16 (by absolute value) only low limb is not zero.
+ * <p>
+ * Sums of low and middle limbs are unsigned, so they do not overflow while they are less than 2^64:
+ * <pre>
+ *   - each add contributes less than 2^32 to low and middle limbs: carries of weighted add (value * count)
+ *     and of batch are moved to upper limbs (see {@link #getLowLimb(long, long)} and {@link #normalize(long[], int)})
+ *   - limbs of chunk are normalized when chunk is sealed, so sums of sealed chunks are small regardless of samples count
+ * </pre>
+ * So sum of squares within window is exact while actual and previous chunks have less than 2^32 adds together
+ * (regardless of samples count) and sum of squares is less than 2^127.
+ * <p>
+ * Variance is computed exactly from limbs and total sum (see {@link #getVariance(long, long, long, long, long)}),
+ * but total sum is a long: if sum of samples within window overflows long (e.g. 10^4 samples near 2^61) variance is garbage.
+ */
+final class SumOfSquares {
+    static final int LIMBS_COUNT = 3;
+    static final int LOW = 0;
+    static final int MIDDLE = 1;
+    static final int HIGH = 2;
+
+    private static final long LIMB_MASK = 0xFFFFFFFFL;
+
+    private SumOfSquares() {
+    }
+
+    static long getLowLimb(long value) {
+        final long abs = Math.abs(value); // Long.MIN_VALUE remains the same, it is 2^63 as unsigned value
+        final long absLow = abs & LIMB_MASK;
+        return (absLow * absLow) & LIMB_MASK;
+    }
+
+    static long getMiddleLimb(long value) {
+        final long abs = Math.abs(value);
+        final long absLow = abs & LIMB_MASK;
+        final long absHigh = abs >>> 32;
+        // square = absHigh^2 * 2^64 + 2 * absHigh * absLow * 2^32 + absLow^2
+        final long cross = (absHigh * absLow) << 1;
+        return (((absLow * absLow) >>> 32) + (cross & LIMB_MASK)) & LIMB_MASK;
+    }
+
+    static long getHighLimb(long value) {
+        final long abs = Math.abs(value);
+        final long absLow = abs & LIMB_MASK;
+        final long absHigh = abs >>> 32;
+        if (absHigh == 0) {
+            return 0;
+        }
+        final long cross = (absHigh * absLow) << 1; // absHigh <= 2^31, so product is less than 2^64 as unsigned value
+        final long carry = (((absLow * absLow) >>> 32) + (cross & LIMB_MASK)) >>> 32;
+        return absHigh * absHigh + (cross >>> 32) + carry;
+    }
+
+    /**
+     * @return low limb of value^2 * count, carry is moved to middle limb (see {@link #getMiddleLimb(long, long)}).
+     * Count should be less than 2^31 and value * count should fit into long, see {@link SampleBatch#checkCount(long, long)}
+     */
+    static long getLowLimb(long value, long count) {
+        return (getLowLimb(value) * count) & LIMB_MASK;
+    }
+
+    /**
+     * @return middle limb of value^2 * count including carry of low limb, its own carry is moved to high limb
+     */
+    static long getMiddleLimb(long value, long count) {
+        return getMiddleWithCarry(value, count) & LIMB_MASK;
+    }
+
+    /**
+     * @return high limb of value^2 * count including carry of middle limb
+     */
+    static long getHighLimb(long value, long count) {
+        return getHighLimb(value) * count + (getMiddleWithCarry(value, count) >>> 32);
+    }
+
+    private static long getMiddleWithCarry(long value, long count) {
+        // less than 2^63 + 2^31, so it is exact as unsigned value
+        return getMiddleLimb(value) * count + ((getLowLimb(value) * count) >>> 32);
+    }
+
+    /**
+     * Moves carries of low and middle limbs (unsigned sums) to high limb, so low and middle limbs are less than 2^32 after it
+     *
+     * @param offset index of low limb
+     */
+    static void normalize(long[] limbs, int offset) {
+        final long low = limbs[offset + LOW];
+        final long middle = limbs[offset + MIDDLE];
+        limbs[offset + HIGH] = getNormalizedHigh(low, middle, limbs[offset + HIGH]);
+        limbs[offset + MIDDLE] = getNormalizedMiddle(low, middle);
+        limbs[offset + LOW] = getNormalizedLow(low);
+    }
+
+    static long getNormalizedLow(long low) {
+        return low & LIMB_MASK;
+    }
+
+    static long getNormalizedMiddle(long low, long middle) {
+        return ((middle & LIMB_MASK) + (low >>> 32)) & LIMB_MASK;
+    }
+
+    static long getNormalizedHigh(long low, long middle, long high) {
+        return high + (middle >>> 32) + (((middle & LIMB_MASK) + (low >>> 32)) >>> 32);
+    }
+
+    /**
+     * Adds limbs (low and middle are unsigned) to normalized limbs, they remain normalized
+     *
+     * @param offset index of low limb
+     */
+    static void add(long[] limbs, int offset, long low, long middle, long high) {
+        final long newLow = limbs[offset + LOW] + (low & LIMB_MASK);
+        final long newMiddle = limbs[offset + MIDDLE] + (low >>> 32) + (middle & LIMB_MASK) + (newLow >>> 32);
+        limbs[offset + HIGH] += high + (middle >>> 32) + (newMiddle >>> 32);
+        limbs[offset + MIDDLE] = newMiddle & LIMB_MASK;
+        limbs[offset + LOW] = newLow & LIMB_MASK;
+    }
+
+    /**
+     * Population variance (n * sumOfSquares - totalSum^2) / n^2 without cancellation of sumOfSquares / n - mean^2 in doubles.
+     * Let totalSum = q * n + r, where q and r have the same sign as totalSum and |r| < n, then
+     * <pre>
+     *   n * sumOfSquares - totalSum^2 = n * u - r^2,   u = sumOfSquares - q * totalSum - q * r = sum of (x - q)^2
+     * </pre>
+     * u is computed exactly in 128 bits: both products are non-negative and less than 2^127.
+     * It is about n * variance, so it is converted to double without loss of significant digits.
+     *
+     * @param low    unsigned sum of low limbs
+     * @param middle unsigned sum of middle limbs
+     */
+    static double getVariance(long samplesCount, long totalSum, long low, long middle, long high) {
+        if (samplesCount == 0) {
+            return 0;
+        }
+        final long q = totalSum / samplesCount;
+        final long r = totalSum % samplesCount;
+        // Math.abs(Long.MIN_VALUE) is 2^63 as unsigned value
+        final long absQ = Math.abs(q);
+        final long absTotalSum = Math.abs(totalSum);
+        final long absR = Math.abs(r);
+
+        // v = q * totalSum + q * r
+        final long qTotalSumLow = absQ * absTotalSum;
+        final long qRLow = absQ * absR;
+        final long vLow = qTotalSumLow + qRLow;
+        final long vHigh = unsignedMultiplyHigh(absQ, absTotalSum) + unsignedMultiplyHigh(absQ, absR) +
+                (Long.compareUnsigned(vLow, qTotalSumLow) < 0 ? 1 : 0);
+
+        // u = sumOfSquares - v
+        final long sLow = getNormalizedLow(low) | (getNormalizedMiddle(low, middle) << 32);
+        final long sHigh = getNormalizedHigh(low, middle, high);
+        final long uLow = sLow - vLow;
+        final long uHigh = sHigh - vHigh - (Long.compareUnsigned(sLow, vLow) < 0 ? 1 : 0);
+        if (uHigh < 0) {
+            // total sum and limbs are read concurrently with adds, they can be inconsistent
+            return 0;
+        }
+
+        final double rn = r * 1.0 / samplesCount;
+        // rounding error can make it slightly negative
+        return Math.max(0, (toUnsignedDouble(uLow) + uHigh * 0x1p64) / samplesCount - rn * rn);
+    }
+
+    /**
+     * @return bits 64..127 of product of unsigned values
+     */
+    static long unsignedMultiplyHigh(long a, long b) {
+        final long aLow = a & LIMB_MASK;
+        final long aHigh = a >>> 32;
+        final long bLow = b & LIMB_MASK;
+        final long bHigh = b >>> 32;
+        final long lowLow = aLow * bLow;
+        final long lowHigh = aLow * bHigh;
+        final long highLow = aHigh * bLow;
+        final long middle = (lowLow >>> 32) + (lowHigh & LIMB_MASK) + (highLow & LIMB_MASK);
+        return aHigh * bHigh + (lowHigh >>> 32) + (highLow >>> 32) + (middle >>> 32);
+    }
+
+    /**
+     * Converts sum of squares given as double to normalized limbs, fraction is dropped
+     *
+     * @param offset index of low limb
+     * @throws IllegalArgumentException if value is negative, not finite or is not less than 2^127
+     */
+    static void fromDouble(double value, long[] limbs, int offset) {
+        if (!(value >= 0 && value < 0x1p127)) {
+            throw new IllegalArgumentException("Sum of squares should be in [0, 2^127), but it is " + value);
+        }
+        final double high = Math.floor(value * 0x1p-64);
+        // exact: value has no significant bits below 2^-52 of its highest one
+        final double rest = value - high * 0x1p64;
+        final long low64 = rest >= 0x1p63 ? (long) (rest - 0x1p63) | Long.MIN_VALUE : (long) rest;
+        limbs[offset + LOW] = low64 & LIMB_MASK;
+        limbs[offset + MIDDLE] = low64 >>> 32;
+        limbs[offset + HIGH] = (long) high;
+    }
+
+    /**
+     * @param low    unsigned sum of low limbs
+     * @param middle unsigned sum of middle limbs
+     */
+    static double toDouble(long low, long middle, long high) {
+        return toUnsignedDouble(low) + toUnsignedDouble(middle) * 0x1p32 + high * 0x1p64;
+    }
+
+    private static double toUnsignedDouble(long value) {
+        return value >= 0 ? value : value + 0x1p64;
+    }
+}
@@ -0,0 +1,460 @@
+package fuud.windowstat;
+
+import java.lang.ref.WeakReference;
+import java.nio.LongBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram within time window where each writer thread has its own chunks (see {@link Recorder}),
+ * so add does no atomic read-modify-write: thread is the only writer of its chunk
+ * and publishes new values by {@link AtomicLongArray#lazySet(int, long)} (plain store on x86). <br>
+ * Chunks are split by the same {@link ChunkTimeline} as in {@link CompactWindowHistogram},
+ * but each thread rotates its own chunks when it first writes after expiration of its actual chunk,
+ * so idle threads do not rotate at all.
+ * <p>
+ * Readers combine chunks within window of all writer threads on each read,
+ * so read costs O(threads * chunkCount * buckets) and single statistics getters read whole histogram
+ * (into snapshot and scratch arrays of reader thread, so reads except {@link #getSnapshot()} do not allocate).
+ * Use {@link #getSnapshot()} or {@link #snapshotInto(Snapshot)} to read several statistics at once.
+ * <p>
+ * Layout of per-thread chunk (one {@link AtomicLongArray}, padded from neighbours):
+ * <pre>
+ *   | padding | epoch | min | max | total sum | squares sum (3 limbs) | buckets | padding |
+ * </pre>
+ * Thread marks chunk as recycled before clearing it, readers skip chunk that was recycled while it was read.
+ * Recorders of terminated threads are removed when their chunks leave window.
+ * Recorder does not reference histogram, so thread local value of writer thread does not keep histogram reachable
+ * and histogram can be garbage collected while its writer threads are alive.
+ */
+public class ThreadLocalWindowHistogram implements WindowHistogram {
+    private static final int EPOCH = Striping.PADDING;
+    private static final int MIN = EPOCH + 1;
+    private static final int MAX = MIN + 1;
+    private static final int TOTAL_SUM = MAX + 1;
+    private static final int SQUARES_SUM = TOTAL_SUM + 1;
+    private static final int BUCKETS = SQUARES_SUM + SumOfSquares.LIMBS_COUNT;
+
+    /**
+     * epoch of chunk that was never used or is being cleared, it is never within window
+     */
+    private static final long NO_EPOCH = Long.MIN_VALUE;
+
+    private static final ThreadLocal<ReadScratch> READ_SCRATCH = ThreadLocal.withInitial(ReadScratch::new);
+
+    private final int chunkCount;
+    private final BucketLayout bucketLayout;
+    private final long[] bucketOffsets;
+    private final ChunkTimeline timeline;
+    private final List<Recorder> recorders = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Recorder> recorder = ThreadLocal.withInitial(this::createRecorder);
+    /**
+     * snapshot that single statistics getters of reader thread read into, it references only bucket offsets
+     */
+    private final ThreadLocal<Snapshot> readerSnapshot;
+
+    /**
+     * See {@link BucketLayout} for buckets description
+     */
+    public ThreadLocalWindowHistogram(long[] bucketOffsets, Duration windowSize, int chunkCount) {
+        this(BucketLayout.of(bucketOffsets), windowSize, chunkCount);
+    }
+
+    public ThreadLocalWindowHistogram(long[] bucketOffsets, Duration windowSize, int chunkCount, TickSource tickSource) {
+        this(BucketLayout.of(bucketOffsets), windowSize, chunkCount, tickSource);
+    }
+
+    public ThreadLocalWindowHistogram(BucketLayout bucketLayout, Duration windowSize, int chunkCount) {
+        this(bucketLayout, windowSize, chunkCount, TickSource.cached());
+    }
+
+    public ThreadLocalWindowHistogram(BucketLayout bucketLayout, Duration windowSize, int chunkCount, TickSource tickSource) {
+        this(bucketLayout, windowSize, chunkCount, tickSource, ChunkAlignment.CREATION_TIME);
+    }
+
+    public ThreadLocalWindowHistogram(BucketLayout bucketLayout, Duration windowSize, int chunkCount, TickSource tickSource, ChunkAlignment alignment) {
+        this.chunkCount = chunkCount;
+        this.bucketLayout = bucketLayout;
+        this.bucketOffsets = bucketLayout.getBucketOffsets();
+        this.timeline = new ChunkTimeline(windowSize, chunkCount, tickSource, alignment);
+        final long[] offsets = this.bucketOffsets;
+        this.readerSnapshot = ThreadLocal.withInitial(() -> new Snapshot(offsets));
+    }
+
+    /**
+     * @return recorder of current thread. Thread (e.g. event loop) can keep it to skip thread local lookup on each add,
+     * but it should not be passed to other threads.
+     */
+    public Recorder getRecorder() {
+        return recorder.get();
+    }
+
+    @Override
+    public void add(long value) {
+        recorder.get().add(value);
+    }
+
+    @Override
+    public void add(long value, long count) {
+        recorder.get().add(value, count);
+    }
+
+    @Override
+    public void addAll(long[] values, int offset, int length) {
+        recorder.get().addAll(values, offset, length);
+    }
+
+    @Override
+    public void addAll(LongBuffer values) {
+        recorder.get().addAll(values);
+    }
+
+    @Override
+    public long getMax() {
+        return readSnapshot().getMax();
+    }
+
+    @Override
+    public long getMin() {
+        return readSnapshot().getMin();
+    }
+
+    @Override
+    public long getMean() {
+        return readSnapshot().getMean();
+    }
+
+    @Override
+    public double getVariance() {
+        return readSnapshot().getVariance();
+    }
+
+    @Override
+    public double getStdDev() {
+        return readSnapshot().getStdDev();
+    }
+
+    @Override
+    public long getPercentile(double percentile) {
+        return readSnapshot().getPercentile(percentile);
+    }
+
+    @Override
+    public void getPercentiles(double[] percentiles, long[] out) {
+        readSnapshot().getPercentiles(percentiles, out);
+    }
+
+    @Override
+    public long getInterpolatedPercentile(double percentile) {
+        return readSnapshot().getInterpolatedPercentile(percentile);
+    }
+
+    @Override
+    public void getInterpolatedPercentiles(double[] percentiles, long[] out) {
+        readSnapshot().getInterpolatedPercentiles(percentiles, out);
+    }
+
+    @Override
+    public boolean isOverflow() {
+        return readSnapshot().isOverflow();
+    }
+
+    @Override
+    public boolean isUnderflow() {
+        return readSnapshot().isUnderflow();
+    }
+
+    @Override
+    public long getSamplesCount() {
+        return readSnapshot().getSamplesCount();
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+        final Snapshot snapshot = new Snapshot(bucketOffsets);
+        snapshotInto(snapshot);
+        return snapshot.readOnly();
+    }
+
+    @Override
+    public void snapshotInto(Snapshot snapshot) {
+        final long[] bucketValues = snapshot.getBucketValues(bucketOffsets);
+        final long[] stats = READ_SCRATCH.get().stats;
+        final boolean empty = collect(bucketValues, bucketValues.length, stats) == 0;
+
+        snapshot.update(
+                empty ? 0 : stats[MIN],
+                empty ? 0 : stats[MAX],
+                stats[TOTAL_SUM],
+                stats[SQUARES_SUM + SumOfSquares.LOW],
+                stats[SQUARES_SUM + SumOfSquares.MIDDLE],
+                stats[SQUARES_SUM + SumOfSquares.HIGH]
+        );
+    }
+
+    @Override
+    public void mergeInto(Snapshot snapshot) {
+        final long[] bucketValues = snapshot.getBucketValues(bucketOffsets);
+        // chunk that is recycled while it is read can not be subtracted back, so chunks are collected into scratch
+        final ReadScratch scratch = READ_SCRATCH.get();
+        final long[] collectedBucketValues = scratch.getBucketValues(bucketValues.length);
+        final long[] stats = scratch.stats;
+        if (collect(collectedBucketValues, bucketValues.length, stats) > 0) {
+            for (int i = 0; i < bucketValues.length; i++) {
+                bucketValues[i] += collectedBucketValues[i];
+            }
+            snapshot.updateMerged(
+                    stats[MIN],
+                    stats[MAX],
+                    stats[TOTAL_SUM],
+                    stats[SQUARES_SUM + SumOfSquares.LOW],
+                    stats[SQUARES_SUM + SumOfSquares.MIDDLE],
+                    stats[SQUARES_SUM + SumOfSquares.HIGH]
+            );
+        }
+    }
+
+    /**
+     * @return snapshot of reader thread, it is reused by the next read of the same thread
+     */
+    private Snapshot readSnapshot() {
+        final Snapshot snapshot = readerSnapshot.get();
+        snapshotInto(snapshot);
+        return snapshot;
+    }
+
+    ChunkTimeline getTimeline() {
+        return timeline;
+    }
+
+    private Recorder createRecorder() {
+        final Recorder recorder = new Recorder(bucketLayout, timeline, chunkCount);
+        recorders.add(recorder);
+        return recorder;
+    }
+
+    /**
+     * Fills bucket values and stats (indexed as chunk fields) with sums of all chunks within window
+     *
+     * @param bucketsCount count of buckets, bucket values can be longer (scratch array)
+     * @return samples count
+     */
+    private long collect(long[] bucketValues, int bucketsCount, long[] stats) {
+        final long fromEpoch = timeline.getActualSlot().epoch - chunkCount;
+        while (!tryCollect(fromEpoch, bucketValues, bucketsCount, stats)) {
+            // some chunk was recycled by its thread while it was read, so reader is late, let's read again
+        }
+
+        boolean hasRemovable = false;
+        for (Recorder recorder : recorders) {
+            hasRemovable |= recorder.isRemovable(fromEpoch);
+        }
+        if (hasRemovable) {
+            recorders.removeIf(recorder -> recorder.isRemovable(fromEpoch));
+        }
+
+        long samplesCount = 0;
+        for (int i = 0; i < bucketsCount; i++) {
+            samplesCount += bucketValues[i];
+        }
+        return samplesCount;
+    }
+
+    private boolean tryCollect(long fromEpoch, long[] bucketValues, int bucketsCount, long[] stats) {
+        for (int i = 0; i < bucketsCount; i++) {
+            bucketValues[i] = 0;
+        }
+        stats[MIN] = Long.MAX_VALUE;
+        stats[MAX] = Long.MIN_VALUE;
+        stats[TOTAL_SUM] = 0;
+        for (int limb = 0; limb < SumOfSquares.LIMBS_COUNT; limb++) {
+            stats[SQUARES_SUM + limb] = 0;
+        }
+
+        for (Recorder recorder : recorders) {
+            for (AtomicLongArray chunk : recorder.chunks) {
+                final long epoch = chunk.get(EPOCH);
+                if (epoch <= fromEpoch) {
+                    continue;
+                }
+                for (int i = 0; i < bucketsCount; i++) {
+                    bucketValues[i] += chunk.get(BUCKETS + i);
+                }
+                stats[MIN] = Math.min(stats[MIN], chunk.get(MIN));
+                stats[MAX] = Math.max(stats[MAX], chunk.get(MAX));
+                stats[TOTAL_SUM] += chunk.get(TOTAL_SUM);
+                SumOfSquares.add(
+                        stats,
+                        SQUARES_SUM,
+                        chunk.get(SQUARES_SUM + SumOfSquares.LOW),
+                        chunk.get(SQUARES_SUM + SumOfSquares.MIDDLE),
+                        chunk.get(SQUARES_SUM + SumOfSquares.HIGH)
+                );
+                if (chunk.get(EPOCH) != epoch) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Chunks of one writer thread. Ring contains chunkCount + 1 chunks:
+     * chunk that is recycled for new epoch is out of window of readers that see the previous epoch. <br>
+     * Recorder is kept by histogram and by thread local of writer thread, it references only layout and timeline,
+     * not histogram or its thread local (otherwise thread local value would keep its own key reachable).
+     */
+    public static final class Recorder {
+        private final WeakReference<Thread> owner = new WeakReference<>(Thread.currentThread());
+        private final BucketLayout bucketLayout;
+        private final ChunkTimeline timeline;
+        private final AtomicLongArray[] chunks;
+        private AtomicLongArray actualChunk;
+        private long actualEpoch = NO_EPOCH;
+
+        private Recorder(BucketLayout bucketLayout, ChunkTimeline timeline, int chunkCount) {
+            this.bucketLayout = bucketLayout;
+            this.timeline = timeline;
+            this.chunks = new AtomicLongArray[chunkCount + 1];
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = new AtomicLongArray(BUCKETS + bucketLayout.getBucketsCount() + Striping.PADDING);
+                chunks[i].set(EPOCH, NO_EPOCH);
+            }
+        }
+
+        public void add(long value) {
+            final AtomicLongArray chunk = getActualChunk();
+            final int bucket = BUCKETS + bucketLayout.getBucketIndex(value);
+            chunk.lazySet(bucket, chunk.get(bucket) + 1);
+            register(chunk, value);
+            chunk.lazySet(TOTAL_SUM, chunk.get(TOTAL_SUM) + value);
+            addSquares(chunk, value, 1);
+        }
+
+        /**
+         * See {@link WindowHistogram#add(long, long)}
+         */
+        public void add(long value, long count) {
+            if (!SampleBatch.checkCount(value, count)) {
+                return;
+            }
+            final AtomicLongArray chunk = getActualChunk();
+            final int bucket = BUCKETS + bucketLayout.getBucketIndex(value);
+            chunk.lazySet(bucket, chunk.get(bucket) + count);
+            register(chunk, value);
+            chunk.lazySet(TOTAL_SUM, chunk.get(TOTAL_SUM) + value * count);
+            addSquares(chunk, value, count);
+        }
+
+        /**
+         * See {@link WindowHistogram#addAll(long[], int, int)}
+         */
+        public void addAll(long[] values, int offset, int length) {
+            addAll(SampleBatch.of(bucketLayout, values, offset, length));
+        }
+
+        /**
+         * See {@link WindowHistogram#addAll(LongBuffer)}
+         */
+        public void addAll(LongBuffer values) {
+            addAll(SampleBatch.of(bucketLayout, values));
+        }
+
+        private void addAll(SampleBatch batch) {
+            if (batch.samplesCount == 0) {
+                return;
+            }
+            final AtomicLongArray chunk = getActualChunk();
+            for (int i = 0; i < bucketLayout.getBucketsCount(); i++) {
+                if (batch.bucketValues[i] != 0) {
+                    chunk.lazySet(BUCKETS + i, chunk.get(BUCKETS + i) + batch.bucketValues[i]);
+                }
+            }
+            register(chunk, batch.min);
+            register(chunk, batch.max);
+            chunk.lazySet(TOTAL_SUM, chunk.get(TOTAL_SUM) + batch.totalSum);
+            for (int limb = 0; limb < SumOfSquares.LIMBS_COUNT; limb++) {
+                chunk.lazySet(SQUARES_SUM + limb, chunk.get(SQUARES_SUM + limb) + batch.squaresSum[limb]);
+            }
+        }
+
+        private AtomicLongArray getActualChunk() {
+            final long epoch = timeline.getActualSlot().epoch;
+            return epoch == actualEpoch ? actualChunk : rotate(epoch);
+        }
+
+        private AtomicLongArray rotate(long epoch) {
+            final AtomicLongArray chunk = chunks[(int) Math.floorMod(epoch, (long) chunks.length)];
+            // volatile write: readers see that chunk is recycled before they see cleared values
+            chunk.set(EPOCH, NO_EPOCH);
+            chunk.lazySet(MIN, Long.MAX_VALUE);
+            chunk.lazySet(MAX, Long.MIN_VALUE);
+            chunk.lazySet(TOTAL_SUM, 0);
+            for (int i = SQUARES_SUM; i < BUCKETS + bucketLayout.getBucketsCount(); i++) {
+                chunk.lazySet(i, 0);
+            }
+            chunk.lazySet(EPOCH, epoch);
+
+            actualChunk = chunk;
+            actualEpoch = epoch;
+            return chunk;
+        }
+
+        private boolean isRemovable(long fromEpoch) {
+            final Thread thread = owner.get();
+            if (thread != null && thread.isAlive()) {
+                return false;
+            }
+            for (AtomicLongArray chunk : chunks) {
+                if (chunk.get(EPOCH) > fromEpoch) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Arrays that reader thread collects chunks into, they are reused by all histograms
+     */
+    private static final class ReadScratch {
+        /**
+         * indexed as chunk fields
+         */
+        private final long[] stats = new long[BUCKETS];
+        private long[] bucketValues = new long[0];
+
+        /**
+         * @return array of at least bucketsCount length
+         */
+        private long[] getBucketValues(int bucketsCount) {
+            if (bucketValues.length < bucketsCount) {
+                bucketValues = new long[bucketsCount];
+            }
+            return bucketValues;
+        }
+    }
+
+    private static void register(AtomicLongArray chunk, long value) {
+        if (value < chunk.get(MIN)) {
+            chunk.lazySet(MIN, value);
+        }
+        if (value > chunk.get(MAX)) {
+            chunk.lazySet(MAX, value);
+        }
+    }
+
+    private static void addSquares(AtomicLongArray chunk, long value, long count) {
+        chunk.lazySet(SQUARES_SUM + SumOfSquares.LOW, chunk.get(SQUARES_SUM + SumOfSquares.LOW) + SumOfSquares.getLowLimb(value, count));
+        final long middle = SumOfSquares.getMiddleLimb(value, count);
+        if (middle != 0) {
+            chunk.lazySet(SQUARES_SUM + SumOfSquares.MIDDLE, chunk.get(SQUARES_SUM + SumOfSquares.MIDDLE) + middle);
+        }
+        final long high = SumOfSquares.getHighLimb(value, count);
+        if (high != 0) {
+            chunk.lazySet(SQUARES_SUM + SumOfSquares.HIGH, chunk.get(SQUARES_SUM + SumOfSquares.HIGH) + high);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package fuud.windowstat;
+
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Source of current time for window stats. <br>
+ * Chunk duration of window stat is measured in ticks of its tick source,
+ * so tick unit defines resolution of window: window of 10 ms split into 100 chunks needs tick source with sub-millisecond ticks
+ * (e.g. {@link #nanoTime()}), while millisecond ticks are enough (and cheaper to read) for windows of seconds.
+ */
+public interface TickSource {
+
+    /**
+     * @return current time in {@link #getTickUnit()}
+     */
+    long currentTick();
+
+    /**
+     * @return unit of ticks, milliseconds by default
+     */
+    default TimeUnit getTickUnit() {
+        return TimeUnit.MILLISECONDS;
+    }
+
+    /**
+     * Tick source that is updated by background daemon thread every millisecond and shared by all window stats in JVM.
+     * Reading it costs one volatile read. Ticks lag behind real time by up to update interval (about 1 ms).
+     */
+    static TickSource cached() {
+        return CachedTickSource.INSTANCE;
+    }
+
+    /**
+     * Tick source that reads {@link Clock#millis()} on each call. Suitable for tests with mock clock.
+     */
+    static TickSource of(Clock clock) {
+        return clock::millis;
+    }
+
+    /**
+     * Tick source with nanosecond ticks that reads {@link System#nanoTime()} on each call.
+     */
+    static TickSource nanoTime() {
+        return NanoTimeTickSource.INSTANCE;
+    }
+}
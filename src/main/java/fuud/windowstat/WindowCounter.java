@@ -1,9 +1,16 @@
 package fuud.windowstat;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.Clock;
 import java.time.Duration;
 import java.util.Arrays;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.LongAdder;
 
 
@@ -33,172 +40,382 @@ import java.util.concurrent.atomic.LongAdder;
  * If thread2 calculates all sum at time 3, it will lose measurement from thread1 writen.
  * This algorithm assumes that all writes to chunk1 is finished before chunk2 is expired.
  * With this assumption chunk should contains reference on previous chunk accumulator and calculated sum of previous chunks within time window except previous one.
+ * <p>
+ * Chunks are stored in ring buffer (see {@link ChunkTimeline}) and are reused on rotation, so rotation does not allocate.
+ * Sum of chunk is fixed (sealed) when chunk is neither actual nor previous, i.e. when nobody writes to it anymore.
+ * <p>
+ * Counter can be persisted to buffer (e.g. memory-mapped file, see {@link #mapped(Path, Duration, int, TickSource)}),
+ * then restarted process re-attaches to it and continues with chunks that are still within window.
+ * Chunks are written to buffer on rotation and on {@link #flush()}. Layout of buffer:
+ * <pre>
+ *   | header (see {@link PersistedHeader}) | slot 0: sum, accumulated sum | slot 1: sum, accumulated sum | ...
+ * </pre>
  */
 
 public class WindowCounter {
-    private final Duration windowSize;
-    private final int chunkCount;
-    private final Clock clock;
-    private final long chunkDurationMs;
+    private static final int SLOT_SIZE = 2 * Long.BYTES;
 
-    private final AtomicReference<Chunk> currentChunk;
+    private final int chunkCount;
+    private final long chunkDuration;
+
+    private final ChunkTimeline timeline;
+    private final Chunk[] chunks;
+
+    /**
+     * null if counter is not persisted
+     */
+    private final ByteBuffer store;
+    /**
+     * actual epoch as it is seen by rotation, guarded by this
+     */
+    private long actualEpoch;
+
+    public WindowCounter(Duration windowSize, int chunkCount) {
+        this(windowSize, chunkCount, TickSource.cached());
+    }
 
     public WindowCounter(Duration windowSize, int chunkCount, Clock clock) {
-        this.windowSize = windowSize;
-        this.chunkCount = chunkCount;
-        this.chunkDurationMs = windowSize.toMillis() / chunkCount;
-        this.clock = clock;
-        currentChunk = new AtomicReference<>(new Chunk(chunkCount, clock.millis() + chunkDurationMs));
+        this(windowSize, chunkCount, TickSource.of(clock));
     }
 
-    public void add(long delta) {
-        while (true) {
-            final long currentTime = clock.millis();
-            final Chunk currentChunk = this.currentChunk.get();
-            if (!currentChunk.isExpired(currentTime)) {
-                currentChunk.add(delta);
-                return;
+    public WindowCounter(Duration windowSize, int chunkCount, TickSource tickSource) {
+        this(windowSize, chunkCount, tickSource, ChunkAlignment.CREATION_TIME);
+    }
+
+    public WindowCounter(Duration windowSize, int chunkCount, TickSource tickSource, ChunkAlignment alignment) {
+        this(new ChunkTimeline(windowSize, chunkCount, tickSource, alignment));
+    }
+
+    /**
+     * Creates counter that shares chunks with other window stats of the timeline
+     */
+    WindowCounter(ChunkTimeline timeline) {
+        this.timeline = timeline;
+        this.chunkCount = timeline.getChunkCount();
+        this.chunkDuration = timeline.getChunkDuration();
+        this.chunks = createChunks(timeline.getRingSize());
+        this.store = null;
+        this.actualEpoch = timeline.peekActualSlot().epoch;
+        timeline.register(this::rotate);
+    }
+
+    /**
+     * Creates counter that is persisted to buffer
+     *
+     * @param buffer   buffer to keep data in, starting from its position. It should have at least
+     *                 {@link #getRequiredBufferSize(int)} bytes remaining.
+     * @param reattach if true and buffer contains data of counter with the same configuration, counter continues with it
+     *                 (chunks that are not expired yet are kept, chunk alignment is the same as in persisted counter).
+     *                 Otherwise buffer is cleared. Tick source should be based on wall clock to re-attach data.
+     * @throws IllegalArgumentException if buffer is too small or reattach is true and tick source is {@link TickSource#nanoTime()}
+     */
+    public WindowCounter(Duration windowSize, int chunkCount, TickSource tickSource, ChunkAlignment alignment,
+                         ByteBuffer buffer, boolean reattach) {
+        if (reattach) {
+            PersistedHeader.checkTickSource(tickSource);
+        }
+        final int requiredBufferSize = getRequiredBufferSize(chunkCount);
+        if (buffer.remaining() < requiredBufferSize) {
+            throw new IllegalArgumentException("Buffer has " + buffer.remaining() + " bytes remaining, " + requiredBufferSize + " bytes required");
+        }
+        final ByteBuffer region = buffer.duplicate();
+        region.limit(region.position() + requiredBufferSize);
+        this.store = region.slice().order(ByteOrder.nativeOrder());
+
+        final long chunkDuration = ChunkTimeline.getChunkDuration(windowSize, chunkCount, tickSource.getTickUnit());
+        final ChunkTimeline restoredTimeline = reattach ?
+                PersistedHeader.restoreTimeline(store, PersistedHeader.COUNTER, 0, chunkCount, chunkDuration, tickSource) :
+                null;
+        this.timeline = restoredTimeline != null ? restoredTimeline : new ChunkTimeline(windowSize, chunkCount, tickSource, alignment);
+        this.chunkCount = chunkCount;
+        this.chunkDuration = chunkDuration;
+        this.chunks = createChunks(timeline.getRingSize());
+        this.actualEpoch = timeline.peekActualSlot().epoch;
+
+        if (restoredTimeline != null) {
+            for (int i = 0; i < chunks.length; i++) {
+                final long sum = store.getLong(PersistedHeader.SIZE + i * SLOT_SIZE);
+                chunks[i].sum.add(sum);
+                chunks[i].sealedSum = sum;
+                chunks[i].accumulatedSumExceptThisAndPreviousChunk = store.getLong(PersistedHeader.SIZE + i * SLOT_SIZE + Long.BYTES);
             }
+        } else {
+            PersistedHeader.write(store, PersistedHeader.COUNTER, 0, timeline, tickSource.getTickUnit());
+            persist();
+        }
+        timeline.register(this::rotate);
+    }
 
-            // current chunk isExpired, let's replace with new
-            replaceChunkWithNew();
+    /**
+     * Creates counter that keeps its data in memory-mapped file.
+     * If file contains data of counter with the same configuration, counter continues with it.
+     * File is created if it does not exist.
+     *
+     * @param tickSource tick source based on wall clock, ticks of {@link TickSource#nanoTime()} are not comparable between processes
+     * @throws IllegalArgumentException if tick source is {@link TickSource#nanoTime()}
+     */
+    public static WindowCounter mapped(Path file, Duration windowSize, int chunkCount, TickSource tickSource) throws IOException {
+        // before file is created
+        PersistedHeader.checkTickSource(tickSource);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // mapping is valid after channel is closed
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, getRequiredBufferSize(chunkCount));
+            return new WindowCounter(windowSize, chunkCount, tickSource, ChunkAlignment.CREATION_TIME, buffer, true);
         }
     }
 
-    public long getSum() {
-        while (true) {
-            final long currentTime = clock.millis();
-            final Chunk currentChunk = this.currentChunk.get();
-            if (!currentChunk.isExpired(currentTime)) {
-                return currentChunk.getSum();
+    /**
+     * @return size of buffer in bytes that is needed for persisted counter with given chunks count
+     */
+    public static int getRequiredBufferSize(int chunkCount) {
+        return Math.toIntExact(PersistedHeader.SIZE + (long) SLOT_SIZE * (chunkCount + 2));
+    }
+
+    /**
+     * Writes sums of actual and previous chunks to buffer, sums of other chunks are written on rotation.
+     * Does nothing if counter is not persisted.
+     * If buffer is memory-mapped file, it is written to file by OS, {@link MappedByteBuffer#force()} can be used to force it.
+     */
+    public void flush() {
+        if (store == null) {
+            return;
+        }
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        synchronized (this) {
+            if (slot.epoch == actualEpoch) {
+                // otherwise chunks were rotated concurrently and rotation has persisted them
+                persist();
             }
+        }
+    }
+
+    public void add(long delta) {
+        add(timeline.getActualSlot(), delta);
+    }
+
+    void add(ChunkTimeline.Slot slot, long delta) {
+        chunks[slot.index].add(delta);
+    }
 
-            // current chunk isExpired, let's replace with new
-            replaceChunkWithNew();
+    /**
+     * Adds sum of deltas of array range with one atomic add
+     *
+     * @throws IndexOutOfBoundsException if range is out of array
+     */
+    public void addAll(long[] deltas, int offset, int length) {
+        SampleBatch.checkRange(deltas, offset, length);
+        long sum = 0;
+        for (int i = offset; i < offset + length; i++) {
+            sum += deltas[i];
         }
+        add(sum);
+    }
+
+    /**
+     * Same as {@link #addAll(long[], int, int)} for deltas from position to limit of buffer, position of buffer is moved to limit
+     */
+    public void addAll(LongBuffer deltas) {
+        final int limit = deltas.limit();
+        long sum = 0;
+        for (int i = deltas.position(); i < limit; i++) {
+            sum += deltas.get(i);
+        }
+        deltas.position(limit);
+        add(sum);
+    }
+
+    public long getSum() {
+        return getSum(timeline.getActualSlot());
+    }
+
+    long getSum(ChunkTimeline.Slot slot) {
+        return chunks[slot.index].accumulatedSumExceptThisAndPreviousChunk +
+                chunks[slot.prevIndex].getSum() +
+                chunks[slot.index].getSum();
     }
 
     public long getSmoothlySum() {
-        while (true) {
-            final long currentTime = clock.millis();
-            final Chunk currentChunk = this.currentChunk.get();
-            if (!currentChunk.isExpired(currentTime)) {
-                return currentChunk.getSmoothlySum(currentTime, chunkDurationMs);
-            }
+        final long currentTime = timeline.currentTime();
+        final ChunkTimeline.Slot slot = timeline.getActualSlot(currentTime);
+        return chunks[slot.index].accumulatedSumExceptThisAndPreviousChunk +
+                chunks[slot.prevIndex].getSum() +
+                chunks[slot.index].getSum() +
+                // actual chunk can be expired if timeline is rotated externally and rotation is late
+                (long) (getSealedSum(slot.epoch - chunkCount) * (Math.max(0, slot.expirationTime - currentTime) * 1.0 / chunkDuration));
+    }
 
-            // current chunk isExpired, let's replace with new
-            replaceChunkWithNew();
+    /**
+     * @return sums of chunks within window, see {@link Snapshot}
+     */
+    public Snapshot getSnapshot() {
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        final long[] chunkSums = new long[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            final long epoch = slot.epoch - chunkCount + 1 + i;
+            if (timeline.contains(epoch)) {
+                chunkSums[i] = chunks[timeline.indexOf(epoch)].getSum();
+            }
         }
+        return new Snapshot(slot.expirationTime - chunkDuration, chunkDuration, chunkSums);
     }
 
-    private void replaceChunkWithNew() {
-        final long currentTime = clock.millis();
+    ChunkTimeline getTimeline() {
+        return timeline;
+    }
+
+    private synchronized void rotate(long fromEpoch, long toEpoch) {
+        // nobody writes to chunks that are neither actual nor previous
+        seal(fromEpoch - 1);
+        if (toEpoch - fromEpoch > 1) {
+            seal(fromEpoch);
+        }
+
+        for (long epoch = timeline.getFirstRecycledEpoch(fromEpoch, toEpoch); epoch <= toEpoch; epoch++) {
+            chunks[timeline.indexOf(epoch)].reset();
+        }
 
-        while (true) {
-            final Chunk currentChunk = this.currentChunk.get();
-            if (!currentChunk.isExpired(currentTime)) {
-                break;
-            } else {
-                Chunk newChunk = currentChunk.createNext(chunkDurationMs);
-                this.currentChunk.compareAndSet(currentChunk, newChunk);
+        final Chunk actualChunk = chunks[timeline.indexOf(toEpoch)];
+        if (toEpoch - fromEpoch == 1) {
+            actualChunk.accumulatedSumExceptThisAndPreviousChunk =
+                    chunks[timeline.indexOf(fromEpoch)].accumulatedSumExceptThisAndPreviousChunk
+                            - getSealedSum(toEpoch - chunkCount)
+                            + getSealedSum(fromEpoch - 1);
+        } else {
+            long accumulatedSum = 0;
+            for (long epoch = toEpoch - chunkCount + 1; epoch < toEpoch - 1; epoch++) {
+                accumulatedSum += getSealedSum(epoch);
             }
+            actualChunk.accumulatedSumExceptThisAndPreviousChunk = accumulatedSum;
         }
 
+        actualEpoch = toEpoch;
+        if (store != null) {
+            persist();
+        }
     }
 
-    private static class Chunk {
-        private final long accumulatedSumExceptThisAndPreviousChunk;
-        private final LongAdder sumInPrevChunk;
-        private final LongAdder sumInThisChunk = new LongAdder();
-        /**
-         * byChunkPrevSums[0] - contains value that was in previous to the last chunk in window - needed to smoothing
-         * byChunkPrevSums[1] - contains value that was in last chunk in window
-         * byChunkPrevSums[2] - contains value that was in the next to the last chunk in window
-         * byChunkPrevSums[3] - contains value of chunks in the next to the next to the last chunk in window
-         * etc up to previous chunk (exclusive). Previous value can be found in sumInPrevChunk field
-         */
-        private final long[] sumInPrevChunks;
+    private void persist() {
+        for (int i = 0; i < chunks.length; i++) {
+            store.putLong(PersistedHeader.SIZE + i * SLOT_SIZE, chunks[i].getSum());
+            store.putLong(PersistedHeader.SIZE + i * SLOT_SIZE + Long.BYTES, chunks[i].accumulatedSumExceptThisAndPreviousChunk);
+        }
+        PersistedHeader.writeActualEpoch(store, actualEpoch);
+    }
 
-        private final long expirationTime;
+    private static Chunk[] createChunks(int count) {
+        final Chunk[] chunks = new Chunk[count];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = new Chunk();
+        }
+        return chunks;
+    }
 
-        // if no previous chunk
-        private Chunk(int chunkCount, long expirationTime) {
-            this.accumulatedSumExceptThisAndPreviousChunk = 0;
-            this.sumInPrevChunk = new LongAdder();
-            this.sumInPrevChunks = new long[chunkCount - 1 - 1 + 1]; // except this, except previous, include previous to the last
-            this.expirationTime = expirationTime;
+    private void seal(long epoch) {
+        if (timeline.contains(epoch)) {
+            chunks[timeline.indexOf(epoch)].seal();
+        }
+    }
 
-//            System.out.println("newChunk: " + this.toString());
+    private long getSealedSum(long epoch) {
+        if (timeline.contains(epoch)) {
+            return chunks[timeline.indexOf(epoch)].sealedSum;
+        } else {
+            return 0;
         }
+    }
 
-        private Chunk(long accumulatedSumExceptThisAndPreviousChunk, LongAdder sumInPrevChunk, long[] sumInPrevChunks, long expirationTime) {
-            this.accumulatedSumExceptThisAndPreviousChunk = accumulatedSumExceptThisAndPreviousChunk;
-            this.sumInPrevChunk = sumInPrevChunk;
-            this.sumInPrevChunks = sumInPrevChunks;
-            this.expirationTime = expirationTime;
+    private static class Chunk {
+        private final LongAdder sum = new LongAdder();
+        /**
+         * sum in this chunk, it is fixed when chunk is neither actual nor previous
+         */
+        private long sealedSum;
+        /**
+         * sum of chunks within window except this and previous, valid while chunk is actual
+         */
+        private long accumulatedSumExceptThisAndPreviousChunk;
 
-//            System.out.println("newChunk: " + this.toString());
+        private void add(long delta) {
+            sum.add(delta);
         }
 
         private long getSum() {
-            return accumulatedSumExceptThisAndPreviousChunk + sumInPrevChunk.longValue() + sumInThisChunk.longValue();
+            return sum.longValue();
         }
 
-        private long getSmoothlySum(long currentTimeMs, long chunkDurationMs) {
-            return accumulatedSumExceptThisAndPreviousChunk +
-                    sumInPrevChunk.longValue() +
-                    sumInThisChunk.longValue() +
-                    (long) (getSumInChunkBeforeLastChunkInWindow() * ((expirationTime - currentTimeMs) * 1.0 / chunkDurationMs));
+        private void seal() {
+            sealedSum = sum.longValue();
         }
 
-        private void add(long delta) {
-            sumInThisChunk.add(delta);
+        private void reset() {
+            sum.reset();
+            sealedSum = 0;
+            accumulatedSumExceptThisAndPreviousChunk = 0;
         }
 
-        private boolean isExpired(long currentTime) {
-            return expirationTime <= currentTime;
+        @Override
+        public String toString() {
+            return "Chunk{" +
+                    "sum=" + sum +
+                    ", sealedSum=" + sealedSum +
+                    ", accumulatedSumExceptThisAndPreviousChunk=" + accumulatedSumExceptThisAndPreviousChunk +
+                    '}';
         }
+    }
 
-        private Chunk createNext(long chunkDurationMs) {
-            final long sumInPrevChunk = getSumInPrevChunk();
-
-            final long newAccumulatedSumExceptThisAndPreviousChunk =
-                    accumulatedSumExceptThisAndPreviousChunk
-                            - getSumInLastChunkInWindow()
-                            + sumInPrevChunk;
+    /**
+     * Sums of chunks within window at some moment. <br>
+     * Chunk i covers time [actualChunkStartTime - (chunksCount - 1 - i) * chunkDuration, ... + chunkDuration),
+     * time is measured in ticks of tick source of counter.
+     * Snapshots of counters with {@link ChunkAlignment#EPOCH} chunks cover identical intervals.
+     */
+    public static class Snapshot {
+        private final long actualChunkStartTime;
+        private final long chunkDuration;
+        private final long[] chunkSums;
+
+        public Snapshot(long actualChunkStartTime, long chunkDuration, long[] chunkSums) {
+            this.actualChunkStartTime = actualChunkStartTime;
+            this.chunkDuration = chunkDuration;
+            this.chunkSums = chunkSums;
+        }
 
-            long[] newSumInPrevChunks = new long[sumInPrevChunks.length];
-            System.arraycopy(sumInPrevChunks, 1, newSumInPrevChunks, 0, newSumInPrevChunks.length - 1); // shift, add previous to sums
-            newSumInPrevChunks[newSumInPrevChunks.length - 1] = sumInPrevChunk;
+        public long getActualChunkStartTime() {
+            return actualChunkStartTime;
+        }
 
-            final Chunk chunk = new Chunk(
-                    newAccumulatedSumExceptThisAndPreviousChunk,
-                    sumInThisChunk,
-                    newSumInPrevChunks,
-                    expirationTime + chunkDurationMs);
-            return chunk;
+        public long getChunkDuration() {
+            return chunkDuration;
         }
 
-        private long getSumInPrevChunk() {
-            return sumInPrevChunk.longValue();
+        public int getChunksCount() {
+            return chunkSums.length;
         }
 
-        private long getSumInLastChunkInWindow() {
-            return sumInPrevChunks[1];
+        /**
+         * @param chunk 0 is the oldest chunk within window, chunks count - 1 is actual chunk
+         */
+        public long getChunkSum(int chunk) {
+            return chunkSums[chunk];
         }
 
-        private long getSumInChunkBeforeLastChunkInWindow() {
-            return sumInPrevChunks[0];
+        /**
+         * @return sum within window, same as {@link WindowCounter#getSum()}
+         */
+        public long getSum() {
+            long sum = 0;
+            for (long chunkSum : chunkSums) {
+                sum += chunkSum;
+            }
+            return sum;
         }
 
         @Override
         public String toString() {
-            return "Chunk{" +
-                    "accumulatedSumExceptThisAndPreviousChunk=" + accumulatedSumExceptThisAndPreviousChunk +
-                    ", sumInPrevChunk=" + sumInPrevChunk +
-                    ", sumInThisChunk=" + sumInThisChunk +
-                    ", sumInPrevChunks=" + Arrays.toString(sumInPrevChunks) +
-                    ", expirationTime=" + expirationTime +
+            return "Snapshot{" +
+                    "actualChunkStartTime=" + actualChunkStartTime +
+                    ", chunkDuration=" + chunkDuration +
+                    ", chunkSums=" + Arrays.toString(chunkSums) +
                     '}';
         }
     }
@@ -1,6 +1,7 @@
 package fuud.windowstat;
 
-import java.util.stream.LongStream;
+import java.nio.LongBuffer;
+import java.util.Arrays;
 
 public interface WindowHistogram {
     long getMax();
@@ -9,87 +10,533 @@ public interface WindowHistogram {
 
     long getMean();
 
+    /**
+     * By default it is variance of {@link #getSnapshot()}
+     *
+     * @return population variance of values within window, 0 if there are no values
+     */
+    default double getVariance() {
+        return getSnapshot().getVariance();
+    }
+
+    /**
+     * @return population standard deviation of values within window, 0 if there are no values
+     */
+    default double getStdDev() {
+        return Math.sqrt(getVariance());
+    }
+
     long getPercentile(double percentile);
 
+    /**
+     * Calculates several percentiles at once with one walk over buckets.
+     * Walk is restarted only if percentile is less than previous one, so it is better to pass percentiles in ascending order.
+     *
+     * @param percentiles percentiles to calculate, e.g. [0.5, 0.75, 0.9, 0.99]
+     * @param out         array to store results in, out[i] is value of percentiles[i]
+     */
+    default void getPercentiles(double[] percentiles, long[] out) {
+        for (int i = 0; i < percentiles.length; i++) {
+            out[i] = getPercentile(percentiles[i]);
+        }
+    }
+
+    /**
+     * Same as {@link #getPercentile(double)} but estimates value within bucket instead of returning bucket lower bound:
+     * samples of bucket are supposed to be spread evenly between bucket bounds narrowed by min and max within window.
+     * So coarse buckets give good estimation, percentiles of underflow and overflow buckets are between min and max too.
+     * By default it is percentile of {@link #getSnapshot()}.
+     */
+    default long getInterpolatedPercentile(double percentile) {
+        return getSnapshot().getInterpolatedPercentile(percentile);
+    }
+
+    /**
+     * Same as {@link #getPercentiles(double[], long[])} with interpolation, see {@link #getInterpolatedPercentile(double)}
+     */
+    default void getInterpolatedPercentiles(double[] percentiles, long[] out) {
+        getSnapshot().getInterpolatedPercentiles(percentiles, out);
+    }
+
     boolean isOverflow();
 
     boolean isUnderflow();
 
-    CounterWindowHistogram.Bucket[] getSnapshot();
+    /**
+     * @return consistent snapshot of all statistics within window
+     */
+    Snapshot getSnapshot();
+
+    /**
+     * Same as {@link #getSnapshot()} but fills given snapshot instead of creating new one.
+     * Snapshot should be created for the same bucket offsets by {@link Snapshot#Snapshot(long[])}.
+     * By default {@link #getSnapshot()} is copied into it.
+     */
+    default void snapshotInto(Snapshot snapshot) {
+        snapshot.set(getSnapshot());
+    }
+
+    /**
+     * Adds statistics within window to given snapshot: bucket values, total sum and sum of squares are summed,
+     * min and max are combined. It allows to merge several histograms (e.g. shards) without allocation:
+     * <pre>
+     *   snapshotInto(snapshot) of first histogram, then mergeInto(snapshot) of others
+     * </pre>
+     * Empty snapshot created by {@link Snapshot#Snapshot(long[])} can be used as well. <br>
+     * Snapshot should be created for the same bucket offsets, otherwise {@link IllegalArgumentException} is thrown.
+     * By default {@link #getSnapshot()} is added to it.
+     */
+    default void mergeInto(Snapshot snapshot) {
+        snapshot.add(getSnapshot());
+    }
 
     long getSamplesCount();
 
     void add(long value);
 
-    class Snapshot{
-        private final long min;
-        private final long max;
-        private final long mean;
-        private final long samplesCount;
+    /**
+     * Adds value count times (e.g. pre-aggregated value), costs the same as {@link #add(long)}. <br>
+     * Count should be less than 2^31 and value * count should fit into long, as they are added at once.
+     * Total samples count within window is not limited by it, see {@link SumOfSquares}.
+     *
+     * By default value is added by {@link #add(long)} count times.
+     *
+     * @throws IllegalArgumentException if count is negative, it is not less than 2^31 or value * count overflows long
+     */
+    default void add(long value, long count) {
+        if (SampleBatch.checkCount(value, count)) {
+            for (long i = 0; i < count; i++) {
+                add(value);
+            }
+        }
+    }
+
+    /**
+     * Adds values of array range at once: histogram of values is built in thread local scratch array,
+     * then it is added to actual chunk with one atomic add per non-empty bucket.
+     * By default values are added by {@link #add(long)} one by one.
+     *
+     * @throws IndexOutOfBoundsException if range is out of array
+     */
+    default void addAll(long[] values, int offset, int length) {
+        SampleBatch.checkRange(values, offset, length);
+        for (int i = offset; i < offset + length; i++) {
+            add(values[i]);
+        }
+    }
+
+    /**
+     * Same as {@link #addAll(long[], int, int)} for values from position to limit of buffer (heap or direct),
+     * position of buffer is moved to limit
+     */
+    default void addAll(LongBuffer values) {
+        final int limit = values.limit();
+        for (int i = values.position(); i < limit; i++) {
+            add(values.get(i));
+        }
+        values.position(limit);
+    }
+
+    /**
+     * Statistics of histogram at some moment. <br>
+     * Snapshot returned by {@link #getSnapshot()} or {@link #merge(Snapshot)} is read-only: it is never changed,
+     * {@link #snapshotInto(Snapshot)} and {@link #mergeInto(Snapshot)} throw {@link IllegalStateException} for it.
+     * Snapshot created by {@link Snapshot#Snapshot(long[])} is changed only by these calls, so it can be reused to read without allocation.
+     */
+    class Snapshot {
         private final long[] bucketOffsets;
         private final long[] bucketValues;
+        /**
+         * cumulativeBucketValues[i] = bucketValues[0] + ... + bucketValues[i]
+         */
+        private final long[] cumulativeBucketValues;
+        private long min;
+        private long max;
+        private long mean;
+        private long samplesCount;
+        private long totalSum;
+        /**
+         * sum of squares as normalized limbs, see {@link SumOfSquares}
+         */
+        private final long[] squares = new long[SumOfSquares.LIMBS_COUNT];
+        /**
+         * false for snapshot created without sum of squares, its variance is NaN
+         */
+        private boolean sumOfSquaresKnown = true;
+        /**
+         * percentiles that fall into underflow or overflow bucket are reported as min or max, see {@link LogLinearWindowHistogram}
+         */
+        private boolean percentilesBoundedByMinMax;
+        private boolean readOnly;
+
+        /**
+         * Creates empty snapshot that can be filled by {@link WindowHistogram#snapshotInto(Snapshot)}
+         */
+        public Snapshot(long[] bucketOffsets) {
+            this.bucketOffsets = bucketOffsets;
+            this.bucketValues = new long[bucketOffsets.length + 1];
+            this.cumulativeBucketValues = new long[bucketValues.length];
+        }
 
+        /**
+         * Creates snapshot without sum of squares, its variance is NaN
+         */
         public Snapshot(long min, long max, long[] bucketOffsets, long[] bucketValues, long totalSum) {
-            this.min = min;
-            this.max = max;
-            this.samplesCount = LongStream.of(bucketValues).sum();
-            this.mean = (long)(totalSum*1.0/samplesCount);
+            this(min, max, bucketOffsets, bucketValues, totalSum, 0, 0, 0);
+            this.sumOfSquaresKnown = false;
+        }
+
+        /**
+         * Snapshot keeps given arrays, they should not be modified after.
+         * Sum of squares is rounded to double, so variance is exact only while it is less than 2^53, see {@link SumOfSquares}
+         *
+         * @throws IllegalArgumentException if sum of squares is not NaN and not in [0, 2^127)
+         */
+        public Snapshot(long min, long max, long[] bucketOffsets, long[] bucketValues, long totalSum, double sumOfSquares) {
+            this(min, max, bucketOffsets, bucketValues, totalSum, 0, 0, 0);
+            if (Double.isNaN(sumOfSquares)) {
+                this.sumOfSquaresKnown = false;
+            } else {
+                SumOfSquares.fromDouble(sumOfSquares, squares, 0);
+            }
+        }
+
+        /**
+         * Same as {@link #Snapshot(long, long, long[], long[], long, double)} but sum of squares is given as limbs of {@link SumOfSquares}
+         */
+        Snapshot(long min, long max, long[] bucketOffsets, long[] bucketValues, long totalSum,
+                 long squaresLow, long squaresMiddle, long squaresHigh) {
             this.bucketOffsets = bucketOffsets;
             this.bucketValues = bucketValues;
+            this.cumulativeBucketValues = new long[bucketValues.length];
+            update(min, max, totalSum, squaresLow, squaresMiddle, squaresHigh);
+        }
+
+        /**
+         * Recalculates derived statistics after bucket values are changed, percentiles are not bounded by min and max after it
+         *
+         * @param squaresLow    unsigned sum of low limbs of squares, see {@link SumOfSquares}
+         * @param squaresMiddle unsigned sum of middle limbs of squares
+         * @param squaresHigh   sum of high limbs of squares
+         */
+        void update(long min, long max, long totalSum, long squaresLow, long squaresMiddle, long squaresHigh) {
+            this.percentilesBoundedByMinMax = false;
+            updateStatistics(min, max, totalSum, squaresLow, squaresMiddle, squaresHigh);
+        }
+
+        /**
+         * Percentiles that fall into underflow or overflow bucket are reported as min or max
+         * instead of {@link Long#MIN_VALUE} or {@link Long#MAX_VALUE}. Should be called after update.
+         */
+        void boundPercentilesByMinMax() {
+            this.percentilesBoundedByMinMax = true;
+        }
+
+        boolean isPercentilesBoundedByMinMax() {
+            return percentilesBoundedByMinMax;
+        }
+
+        private void updateStatistics(long min, long max, long totalSum, long squaresLow, long squaresMiddle, long squaresHigh) {
+            long samplesCount = 0;
+            for (int i = 0; i < bucketValues.length; i++) {
+                samplesCount += bucketValues[i];
+                cumulativeBucketValues[i] = samplesCount;
+            }
+
+            this.min = min;
+            this.max = max;
+            this.totalSum = totalSum;
+            this.squares[SumOfSquares.LOW] = squaresLow;
+            this.squares[SumOfSquares.MIDDLE] = squaresMiddle;
+            this.squares[SumOfSquares.HIGH] = squaresHigh;
+            SumOfSquares.normalize(squares, 0);
+            this.sumOfSquaresKnown = true;
+            this.samplesCount = samplesCount;
+            this.mean = (long) (totalSum * 1.0 / samplesCount);
+        }
+
+        /**
+         * Same as {@link #update(long, long, long, long, long, long)} but combines given statistics with current ones.
+         * Should be called after bucket values of merged histogram are added to bucket values of this snapshot.
+         */
+        void updateMerged(long min, long max, long totalSum, long squaresLow, long squaresMiddle, long squaresHigh) {
+            // samplesCount is not recalculated yet, so it is samples count before merge
+            if (samplesCount == 0) {
+                updateStatistics(min, max, totalSum, squaresLow, squaresMiddle, squaresHigh);
+            } else {
+                final boolean sumOfSquaresKnown = this.sumOfSquaresKnown;
+                SumOfSquares.add(squares, 0, squaresLow, squaresMiddle, squaresHigh);
+                updateStatistics(
+                        Math.min(this.min, min),
+                        Math.max(this.max, max),
+                        this.totalSum + totalSum,
+                        squares[SumOfSquares.LOW],
+                        squares[SumOfSquares.MIDDLE],
+                        squares[SumOfSquares.HIGH]
+                );
+                this.sumOfSquaresKnown = sumOfSquaresKnown;
+            }
+        }
+
+        /**
+         * @return new snapshot that contains statistics of both snapshots, this and other snapshots are not changed
+         * @throws IllegalArgumentException if snapshots are created for different bucket offsets
+         */
+        public Snapshot merge(Snapshot other) {
+            final Snapshot merged = new Snapshot(bucketOffsets);
+            merged.add(this);
+            merged.add(other);
+            return merged.readOnly();
+        }
+
+        /**
+         * Marks snapshot as read-only, histograms can not fill or merge into it after that
+         */
+        Snapshot readOnly() {
+            readOnly = true;
+            return this;
         }
 
-        long getMax(){
+        /**
+         * Replaces statistics of this snapshot by statistics of other one
+         *
+         * @throws IllegalArgumentException if snapshots are created for different bucket offsets
+         */
+        void set(Snapshot other) {
+            final long[] bucketValues = getBucketValues(other.bucketOffsets);
+            System.arraycopy(other.bucketValues, 0, bucketValues, 0, bucketValues.length);
+            update(
+                    other.min,
+                    other.max,
+                    other.totalSum,
+                    other.squares[SumOfSquares.LOW],
+                    other.squares[SumOfSquares.MIDDLE],
+                    other.squares[SumOfSquares.HIGH]
+            );
+            sumOfSquaresKnown = other.sumOfSquaresKnown;
+            percentilesBoundedByMinMax = other.percentilesBoundedByMinMax;
+        }
+
+        /**
+         * Adds statistics of other snapshot to this one
+         *
+         * @throws IllegalArgumentException if snapshots are created for different bucket offsets
+         */
+        void add(Snapshot other) {
+            final long[] bucketValues = getBucketValues(other.bucketOffsets);
+            percentilesBoundedByMinMax |= other.percentilesBoundedByMinMax;
+            if (other.samplesCount == 0) {
+                return;
+            }
+            final boolean sumOfSquaresKnown = (samplesCount == 0 || this.sumOfSquaresKnown) && other.sumOfSquaresKnown;
+            for (int i = 0; i < bucketValues.length; i++) {
+                bucketValues[i] += other.bucketValues[i];
+            }
+            updateMerged(
+                    other.min,
+                    other.max,
+                    other.totalSum,
+                    other.squares[SumOfSquares.LOW],
+                    other.squares[SumOfSquares.MIDDLE],
+                    other.squares[SumOfSquares.HIGH]
+            );
+            this.sumOfSquaresKnown = sumOfSquaresKnown;
+        }
+
+        /**
+         * @return bucket values to be filled by histogram, {@link #update(long, long, long, long, long, long)} should be called after
+         * @throws IllegalStateException if snapshot is read-only
+         */
+        long[] getBucketValues(long[] bucketOffsets) {
+            if (readOnly) {
+                throw new IllegalStateException("Snapshot is read-only, use new Snapshot(bucketOffsets) to read into");
+            }
+            if (this.bucketOffsets != bucketOffsets && !Arrays.equals(this.bucketOffsets, bucketOffsets)) {
+                throw new IllegalArgumentException("Snapshot is created for other bucket offsets");
+            }
+            return bucketValues;
+        }
+
+        /**
+         * @return offsets of buckets, should not be modified: array is shared with histogram and its other snapshots
+         */
+        public long[] getBucketOffsets() {
+            return bucketOffsets;
+        }
+
+        public long getMax() {
             return max;
         }
 
-        long getMin(){
+        public long getMin() {
             return min;
         }
 
-        long getMean(){
+        public long getMean() {
             return mean;
         }
 
-        long getSamplesCount(){
+        public long getSamplesCount() {
             return samplesCount;
         }
 
-        long getPercentile(double percentile){
-            long count = 0;
-            for (long bucket : bucketValues) {
-                count += bucket;
+        public long getTotalSum() {
+            return totalSum;
+        }
+
+        public double getSumOfSquares() {
+            if (!sumOfSquaresKnown) {
+                return Double.NaN;
             }
+            return SumOfSquares.toDouble(squares[SumOfSquares.LOW], squares[SumOfSquares.MIDDLE], squares[SumOfSquares.HIGH]);
+        }
+
+        /**
+         * @return normalized limb of sum of squares, see {@link SumOfSquares}
+         */
+        long getSquaresLimb(int limb) {
+            return squares[limb];
+        }
+
+        boolean isSumOfSquaresKnown() {
+            return sumOfSquaresKnown;
+        }
+
+        /**
+         * @return population variance, it is exact (up to double rounding of result), see {@link SumOfSquares#getVariance(long, long, long, long, long)}
+         */
+        public double getVariance() {
+            if (samplesCount > 0 && !sumOfSquaresKnown) {
+                return Double.NaN;
+            }
+            return SumOfSquares.getVariance(samplesCount, totalSum, squares[SumOfSquares.LOW], squares[SumOfSquares.MIDDLE], squares[SumOfSquares.HIGH]);
+        }
+
+        public double getStdDev() {
+            return Math.sqrt(getVariance());
+        }
+
+        /**
+         * @return buckets count including underflow and overflow buckets, i.e. bucket offsets count + 1
+         */
+        public int getBucketsCount() {
+            return bucketValues.length;
+        }
+
+        /**
+         * @return samples count in bucket, bucket 0 is underflow bucket, see {@link CompactWindowHistogram} for bucket layout
+         */
+        public long getBucketValue(int bucket) {
+            return bucketValues[bucket];
+        }
 
-            if (count == 0) {
+        public long getPercentile(double percentile) {
+            if (samplesCount == 0) {
                 return 0;
-            } else {
-                int countUnderPercentile = (int) (count * percentile); // math round
-                if (countUnderPercentile == 0) {
-                    countUnderPercentile = 1;
-                }
-                count = 0;
-                for (int i = 0; i < bucketValues.length; i++) {
-                    count += bucketValues[i];
-                    if (count >= countUnderPercentile) {
-                        int bucketOffsetIndex = i - 1; // bucket offsets does not include "underflow" bucket
-                        if (bucketOffsetIndex < 0) {
-                            return Long.MIN_VALUE; // can not calc
-                        }
-                        if (bucketOffsetIndex >= bucketOffsets.length - 1) {
-                            return Long.MAX_VALUE; // overflow
-                        }
-                        return bucketOffsets[bucketOffsetIndex];
-                    }
+            }
+            final long percentileValue = getBucketLowerBound(bucketOffsets, findBucket(getCountUnderPercentile(samplesCount, percentile)));
+            return percentilesBoundedByMinMax ? clamp(percentileValue, min, max) : percentileValue;
+        }
+
+        /**
+         * See {@link WindowHistogram#getPercentiles(double[], long[])}. Each percentile is found by binary search over cumulative bucket values.
+         */
+        public void getPercentiles(double[] percentiles, long[] out) {
+            for (int i = 0; i < percentiles.length; i++) {
+                out[i] = getPercentile(percentiles[i]);
+            }
+        }
+
+        /**
+         * See {@link WindowHistogram#getInterpolatedPercentile(double)}
+         */
+        public long getInterpolatedPercentile(double percentile) {
+            if (samplesCount == 0) {
+                return 0;
+            }
+            final long countUnderPercentile = getCountUnderPercentile(samplesCount, percentile);
+            final int bucket = findBucket(countUnderPercentile);
+            final long countBeforeBucket = bucket == 0 ? 0 : cumulativeBucketValues[bucket - 1];
+            return interpolate(bucketOffsets, bucket, countBeforeBucket, bucketValues[bucket], countUnderPercentile, min, max);
+        }
+
+        /**
+         * See {@link WindowHistogram#getInterpolatedPercentiles(double[], long[])}
+         */
+        public void getInterpolatedPercentiles(double[] percentiles, long[] out) {
+            for (int i = 0; i < percentiles.length; i++) {
+                out[i] = getInterpolatedPercentile(percentiles[i]);
+            }
+        }
+
+        /**
+         * @return first bucket where cumulative count reaches countUnderPercentile
+         */
+        private int findBucket(long countUnderPercentile) {
+            int low = 0;
+            int high = cumulativeBucketValues.length - 1;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (cumulativeBucketValues[mid] < countUnderPercentile) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
                 }
-                throw new IllegalStateException("Should not reach here");
             }
+            return low;
+        }
+
+        static long getCountUnderPercentile(long samplesCount, double percentile) {
+            final long countUnderPercentile = (long) (samplesCount * percentile); // math round
+            return countUnderPercentile == 0 ? 1 : countUnderPercentile;
+        }
+
+        /**
+         * @return value that represents bucket in percentiles: Long.MIN_VALUE for underflow bucket, Long.MAX_VALUE for overflow,
+         * bucket lower bound otherwise
+         */
+        static long getBucketLowerBound(long[] bucketOffsets, int bucket) {
+            int bucketOffsetIndex = bucket - 1; // bucket offsets does not include "underflow" bucket
+            if (bucketOffsetIndex < 0) {
+                return Long.MIN_VALUE; // can not calc
+            }
+            if (bucketOffsetIndex >= bucketOffsets.length - 1) {
+                return Long.MAX_VALUE; // overflow
+            }
+            return bucketOffsets[bucketOffsetIndex];
+        }
+
+        static long clamp(long value, long min, long max) {
+            return Math.min(Math.max(value, min), max);
+        }
+
+        /**
+         * Estimates value of sample with rank countUnderPercentile supposing that samples of bucket are spread evenly
+         * between bucket bounds narrowed by min and max: the first sample of bucket is at lower bound, the last one is at upper bound.
+         */
+        static long interpolate(long[] bucketOffsets, int bucket, long countBeforeBucket, long bucketValue,
+                                long countUnderPercentile, long min, long max) {
+            final long lowerBound = bucket == 0 ? Long.MIN_VALUE : bucketOffsets[bucket - 1];
+            final long upperBound = bucket == bucketOffsets.length ? Long.MAX_VALUE : bucketOffsets[bucket] - 1; // inclusive
+            final long low = Math.max(lowerBound, min);
+            final long high = Math.min(upperBound, max);
+            if (high <= low) {
+                // one value or min and max are inconsistent with buckets (they are updated concurrently)
+                return low;
+            }
+
+            final double position = bucketValue <= 1 ?
+                    0.5 :
+                    Math.min(1, Math.max(0, (countUnderPercentile - countBeforeBucket - 1) * 1.0 / (bucketValue - 1)));
+            // high - low can be out of long range
+            return low + (long) (((double) high - low) * position);
         }
 
-        boolean isOverflow(){
+        public boolean isOverflow() {
             return bucketValues[bucketValues.length - 1] > 0;
         }
 
-        boolean isUnderflow(){
+        public boolean isUnderflow() {
             return bucketValues[0] > 0;
         }
     }
@@ -1,10 +1,8 @@
 package fuud.windowstat;
 
+import java.nio.LongBuffer;
 import java.time.Clock;
 import java.time.Duration;
-import java.util.Arrays;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
 
 
 /**
@@ -33,226 +31,206 @@ import java.util.concurrent.atomic.AtomicReference;
  * If thread2 calculates all sum at time 3, it will lose measurement from thread1 writen.
  * This algorithm assumes that all writes to chunk1 is finished before chunk2 is expired.
  * With this assumption chunk should contains reference on previous chunk accumulator and calculated sum of previous chunks within time window except previous one.
+ * <p>
+ * Chunks are stored in ring buffer (see {@link ChunkTimeline}) and are reused on rotation, so rotation does not allocate.
+ * Min and max of chunk are fixed (sealed) when chunk is neither actual nor previous, i.e. when nobody writes to it anymore.
+ * Min and max of actual and previous chunk are kept in {@link MinMaxAccumulator}, so concurrent writers do not compete for one CAS.
  */
 
 public class WindowMinMax {
-    private final Duration windowSize;
     private final int chunkCount;
-    private final Clock clock;
-    private final long chunkDurationMs;
 
-    private final AtomicReference<Chunk> currentChunk;
+    private final ChunkTimeline timeline;
+    private final Chunk[] chunks;
+
+    public WindowMinMax(Duration windowSize, int chunkCount) {
+        this(windowSize, chunkCount, TickSource.cached());
+    }
 
     public WindowMinMax(Duration windowSize, int chunkCount, Clock clock) {
-        this.windowSize = windowSize;
-        this.chunkCount = chunkCount;
-        this.chunkDurationMs = windowSize.toMillis() / chunkCount;
-        this.clock = clock;
-        currentChunk = new AtomicReference<>(new Chunk(chunkCount, clock.millis() + chunkDurationMs));
+        this(windowSize, chunkCount, TickSource.of(clock));
     }
 
-    public void register(long delta) {
-        while (true) {
-            final long currentTime = clock.millis();
-            final Chunk currentChunk = this.currentChunk.get();
-            if (!currentChunk.isExpired(currentTime)) {
-                currentChunk.register(delta);
-                return;
-            }
+    public WindowMinMax(Duration windowSize, int chunkCount, TickSource tickSource) {
+        this(windowSize, chunkCount, tickSource, ChunkAlignment.CREATION_TIME);
+    }
 
-            // current chunk isExpired, let's replace with new
-            replaceChunkWithNew();
-        }
+    public WindowMinMax(Duration windowSize, int chunkCount, TickSource tickSource, ChunkAlignment alignment) {
+        this(new ChunkTimeline(windowSize, chunkCount, tickSource, alignment));
     }
 
-    public long getMax() {
-        while (true) {
-            final long currentTime = clock.millis();
-            final Chunk currentChunk = this.currentChunk.get();
-            if (!currentChunk.isExpired(currentTime)) {
-                return currentChunk.getMax();
-            }
+    /**
+     * Creates min-max that shares chunks with other window stats of the timeline
+     */
+    WindowMinMax(ChunkTimeline timeline) {
+        this.timeline = timeline;
+        this.chunkCount = timeline.getChunkCount();
 
-            // current chunk isExpired, let's replace with new
-            replaceChunkWithNew();
+        chunks = new Chunk[timeline.getRingSize()];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = new Chunk();
         }
+        timeline.register(this::rotate);
     }
 
-    public long getMin() {
-        while (true) {
-            final long currentTime = clock.millis();
-            final Chunk currentChunk = this.currentChunk.get();
-            if (!currentChunk.isExpired(currentTime)) {
-                return currentChunk.getMin();
-            }
-
-            // current chunk isExpired, let's replace with new
-            replaceChunkWithNew();
-        }
+    public void register(long delta) {
+        register(timeline.getActualSlot(), delta);
     }
 
-    private void replaceChunkWithNew() {
-        final long currentTime = clock.millis();
+    void register(ChunkTimeline.Slot slot, long delta) {
+        chunks[slot.index].register(delta);
+    }
 
-        while (true) {
-            final Chunk currentChunk = this.currentChunk.get();
-            if (!currentChunk.isExpired(currentTime)) {
-                break;
-            } else {
-                Chunk newChunk = currentChunk.createNext(chunkDurationMs);
-                this.currentChunk.compareAndSet(currentChunk, newChunk);
-            }
+    /**
+     * Registers values of array range at once: min and max of range are found locally and registered once
+     *
+     * @throws IndexOutOfBoundsException if range is out of array
+     */
+    public void registerAll(long[] values, int offset, int length) {
+        SampleBatch.checkRange(values, offset, length);
+        if (length == 0) {
+            return;
+        }
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = offset; i < offset + length; i++) {
+            min = Math.min(min, values[i]);
+            max = Math.max(max, values[i]);
         }
+        registerMinMax(min, max);
+    }
 
+    /**
+     * Same as {@link #registerAll(long[], int, int)} for values from position to limit of buffer, position of buffer is moved to limit
+     */
+    public void registerAll(LongBuffer values) {
+        final int position = values.position();
+        final int limit = values.limit();
+        if (position == limit) {
+            return;
+        }
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = position; i < limit; i++) {
+            min = Math.min(min, values.get(i));
+            max = Math.max(max, values.get(i));
+        }
+        values.position(limit);
+        registerMinMax(min, max);
     }
 
-    private static class Chunk {
-        private final long maxExceptThisAndPreviousChunk;
-        private final long minExceptThisAndPreviousChunk;
-        private final AtomicLong maxInThisChunk = new AtomicLong(Long.MIN_VALUE);
-        private final AtomicLong minInThisChunk = new AtomicLong(Long.MAX_VALUE);
-        private final AtomicLong maxInPrevChunk;
-        private final AtomicLong minInPrevChunk;
+    private void registerMinMax(long min, long max) {
+        final Chunk chunk = chunks[timeline.getActualSlot().index];
+        chunk.register(min);
+        chunk.register(max);
+    }
 
-        private final long[] maxInPrevChunks;
-        private final long[] minInPrevChunks;
+    public long getMax() {
+        return getMax(timeline.getActualSlot());
+    }
 
-        private final long expirationTime;
+    long getMax(ChunkTimeline.Slot slot) {
+        final long max = Math.max(
+                Math.max(chunks[slot.index].maxExceptThisAndPreviousChunk, chunks[slot.prevIndex].getMax()),
+                chunks[slot.index].getMax()
+        );
+        return max == Long.MIN_VALUE ? 0 : max;
+    }
 
-        // if no previous chunk
-        private Chunk(int chunkCount, long expirationTime) {
-            this.maxExceptThisAndPreviousChunk = Long.MIN_VALUE;
-            this.minExceptThisAndPreviousChunk = Long.MAX_VALUE;
+    public long getMin() {
+        return getMin(timeline.getActualSlot());
+    }
 
-            this.maxInPrevChunk = new AtomicLong(Long.MIN_VALUE);
-            this.minInPrevChunk = new AtomicLong(Long.MAX_VALUE);
+    long getMin(ChunkTimeline.Slot slot) {
+        final long min = Math.min(
+                Math.min(chunks[slot.index].minExceptThisAndPreviousChunk, chunks[slot.prevIndex].getMin()),
+                chunks[slot.index].getMin()
+        );
+        return min == Long.MAX_VALUE ? 0 : min;
+    }
 
-            this.maxInPrevChunks = new long[chunkCount - 1 - 1]; // except this, except previous
-            for (int i = 0; i < maxInPrevChunks.length; i++) {
-                maxInPrevChunks[i] = Long.MIN_VALUE;
-            }
-            this.minInPrevChunks = new long[chunkCount - 1 - 1]; // except this, except previous
-            for (int i = 0; i < minInPrevChunks.length; i++) {
-                minInPrevChunks[i] = Long.MAX_VALUE;
-            }
-            this.expirationTime = expirationTime;
+    ChunkTimeline getTimeline() {
+        return timeline;
+    }
 
-//            System.out.println("newChunk: " + this.toString());
+    private void rotate(long fromEpoch, long toEpoch) {
+        // nobody writes to chunks that are neither actual nor previous
+        seal(fromEpoch - 1);
+        if (toEpoch - fromEpoch > 1) {
+            seal(fromEpoch);
         }
 
-        public Chunk(long maxExceptThisAndPreviousChunk,
-                     long minExceptThisAndPreviousChunk,
-                     AtomicLong maxInPrevChunk,
-                     AtomicLong minInPrevChunk,
-                     long[] maxInPrevChunks,
-                     long[] minInPrevChunks,
-                     long expirationTime) {
-            this.maxExceptThisAndPreviousChunk = maxExceptThisAndPreviousChunk;
-            this.minExceptThisAndPreviousChunk = minExceptThisAndPreviousChunk;
-            this.maxInPrevChunk = maxInPrevChunk;
-            this.minInPrevChunk = minInPrevChunk;
-            this.maxInPrevChunks = maxInPrevChunks;
-            this.minInPrevChunks = minInPrevChunks;
-            this.expirationTime = expirationTime;
+        for (long epoch = timeline.getFirstRecycledEpoch(fromEpoch, toEpoch); epoch <= toEpoch; epoch++) {
+            chunks[timeline.indexOf(epoch)].reset();
         }
 
-        private long getMin() {
-            final long min = Math.min(
-                    Math.min(minExceptThisAndPreviousChunk, minInPrevChunk.get()),
-                    minInThisChunk.get()
-            );
-            return min == Long.MAX_VALUE ? 0 : min;
+        long maxExceptThisAndPreviousChunk = Long.MIN_VALUE;
+        long minExceptThisAndPreviousChunk = Long.MAX_VALUE;
+        for (long epoch = toEpoch - chunkCount + 1; epoch < toEpoch - 1; epoch++) {
+            if (timeline.contains(epoch)) {
+                final Chunk chunk = chunks[timeline.indexOf(epoch)];
+                maxExceptThisAndPreviousChunk = Math.max(maxExceptThisAndPreviousChunk, chunk.sealedMax);
+                minExceptThisAndPreviousChunk = Math.min(minExceptThisAndPreviousChunk, chunk.sealedMin);
+            }
         }
 
-        private long getMax() {
-            final long max = Math.max(
-                    Math.max(maxExceptThisAndPreviousChunk, maxInPrevChunk.get()),
-                    maxInThisChunk.get()
-            );
-            return max == Long.MIN_VALUE ? 0 : max;
+        final Chunk actualChunk = chunks[timeline.indexOf(toEpoch)];
+        actualChunk.maxExceptThisAndPreviousChunk = maxExceptThisAndPreviousChunk;
+        actualChunk.minExceptThisAndPreviousChunk = minExceptThisAndPreviousChunk;
+    }
+
+    private void seal(long epoch) {
+        if (timeline.contains(epoch)) {
+            chunks[timeline.indexOf(epoch)].seal();
         }
+    }
 
-        private void register(long value) {
-            while (true) {
-                final long currentMaxValue = maxInThisChunk.get();
-                if (currentMaxValue > value) {
-                    break;
-                }
-                if (maxInThisChunk.compareAndSet(currentMaxValue, value)) {
-                    break;
-                }
-            }
+    private static class Chunk {
+        private final MinMaxAccumulator minMax = new MinMaxAccumulator();
+        /**
+         * min and max in this chunk, they are fixed when chunk is neither actual nor previous
+         */
+        private long sealedMax = Long.MIN_VALUE;
+        private long sealedMin = Long.MAX_VALUE;
+        /**
+         * min and max of chunks within window except this and previous, valid while chunk is actual
+         */
+        private long maxExceptThisAndPreviousChunk = Long.MIN_VALUE;
+        private long minExceptThisAndPreviousChunk = Long.MAX_VALUE;
 
-            while (true) {
-                final long currentMinValue = minInThisChunk.get();
-                if (currentMinValue < value) {
-                    break;
-                }
-                if (minInThisChunk.compareAndSet(currentMinValue, value)) {
-                    break;
-                }
-            }
+        private long getMax() {
+            return minMax.getMax();
         }
 
-        private boolean isExpired(long currentTime) {
-            return expirationTime <= currentTime;
+        private long getMin() {
+            return minMax.getMin();
         }
 
-        private Chunk createNext(long chunkDurationMs) {
-            final long maxInPrevChunk = getMaxInPrevChunk();
-            final long minInPrevChunk = getMinInPrevChunk();
-
-            long newMaxExceptThisAndPreviousChunk = Long.MIN_VALUE;
-            long newMinExceptThisAndPreviousChunk = Long.MAX_VALUE;
-            
-            for (int i=1; i<maxInPrevChunks.length; i++){
-                newMaxExceptThisAndPreviousChunk = Math.max(newMaxExceptThisAndPreviousChunk, maxInPrevChunks[i]);
-                newMinExceptThisAndPreviousChunk = Math.min(newMinExceptThisAndPreviousChunk, minInPrevChunks[i]);
-            }
-
-            newMaxExceptThisAndPreviousChunk = Math.max(newMaxExceptThisAndPreviousChunk, maxInPrevChunk);
-            newMinExceptThisAndPreviousChunk = Math.min(newMinExceptThisAndPreviousChunk, minInPrevChunk);
-
-            long[] newMaxInPrevChunks = new long[maxInPrevChunks.length];
-            System.arraycopy(maxInPrevChunks, 1, newMaxInPrevChunks, 0, newMaxInPrevChunks.length - 1); // shift, add previous to sums
-            newMaxInPrevChunks[newMaxInPrevChunks.length - 1] = maxInPrevChunk;
-            
-            long[] newMinInPrevChunks = new long[minInPrevChunks.length];
-            System.arraycopy(minInPrevChunks, 1, newMinInPrevChunks, 0, newMinInPrevChunks.length - 1); // shift, add previous to sums
-            newMinInPrevChunks[newMinInPrevChunks.length - 1] = minInPrevChunk;
-
-            final Chunk chunk = new Chunk(
-                    newMaxExceptThisAndPreviousChunk,
-                    newMinExceptThisAndPreviousChunk,
-                    maxInThisChunk,
-                    minInThisChunk,
-                    newMaxInPrevChunks,
-                    newMinInPrevChunks,
-                    expirationTime + chunkDurationMs);
-            return chunk;
+        private void register(long value) {
+            minMax.register(value);
         }
 
-        private long getMaxInPrevChunk() {
-            return maxInPrevChunk.longValue();
+        private void seal() {
+            sealedMax = minMax.getMax();
+            sealedMin = minMax.getMin();
         }
 
-        private long getMinInPrevChunk() {
-            return minInPrevChunk.longValue();
+        private void reset() {
+            minMax.reset();
+            sealedMax = Long.MIN_VALUE;
+            sealedMin = Long.MAX_VALUE;
+            maxExceptThisAndPreviousChunk = Long.MIN_VALUE;
+            minExceptThisAndPreviousChunk = Long.MAX_VALUE;
         }
 
-
         @Override
         public String toString() {
             return "Chunk{" +
-                    "maxExceptThisAndPreviousChunk=" + maxExceptThisAndPreviousChunk +
+                    "minMax=" + minMax +
+                    ", sealedMax=" + sealedMax +
+                    ", sealedMin=" + sealedMin +
+                    ", maxExceptThisAndPreviousChunk=" + maxExceptThisAndPreviousChunk +
                     ", minExceptThisAndPreviousChunk=" + minExceptThisAndPreviousChunk +
-                    ", maxInThisChunk=" + maxInThisChunk +
-                    ", minInThisChunk=" + minInThisChunk +
-                    ", maxInPrevChunk=" + maxInPrevChunk +
-                    ", minInPrevChunk=" + minInPrevChunk +
-                    ", maxInPrevChunks=" + Arrays.toString(maxInPrevChunks) +
-                    ", minInPrevChunks=" + Arrays.toString(minInPrevChunks) +
-                    ", expirationTime=" + expirationTime +
                     '}';
         }
     }
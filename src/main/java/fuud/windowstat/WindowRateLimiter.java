@@ -0,0 +1,219 @@
+package fuud.windowstat;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits permits acquired within time window. <br>
+ * Permits are counted in chunks like in {@link WindowCounter} (see it for algorithm description),
+ * but sum of actual chunk is {@link AtomicLong}, so {@link #tryAcquire(long)} checks sum within window
+ * and records permits in one CAS on actual chunk: limit is not exceeded by concurrent acquires
+ * and time is read once per acquire. Acquire does not allocate and is lock-free:
+ * it does not wait for rotation, acquire that sees expired chunk while another thread rotates records permits in it
+ * (see {@link ChunkTimeline}).
+ * <p>
+ * Permits within window are counted according to {@link Mode}:
+ * <pre>
+ *   STRICT: as {@link WindowCounter#getSum()}       - permits of chunk are released at once when chunk leaves window
+ *   SMOOTH: as {@link WindowCounter#getSmoothlySum()} - permits of chunk are released linearly during the next chunk
+ * </pre>
+ * Permits acquired concurrently with rotation can be recorded in previous chunk after it was checked,
+ * so limit can be exceeded by permits of acquires that raced with chunk expiration.
+ */
+public class WindowRateLimiter {
+
+    public enum Mode {
+        /**
+         * Permits within the last chunkCount chunks, window moves by whole chunks:
+         * all permits of the oldest chunk become available when it expires.
+         */
+        STRICT,
+        /**
+         * Approximation of sliding window: permits of chunk that has just left window are counted
+         * proportionally to time remaining in actual chunk, so permits become available gradually.
+         */
+        SMOOTH
+    }
+
+    private final long limit;
+    private final Mode mode;
+    private final int chunkCount;
+    private final long chunkDuration;
+    private final ChunkTimeline timeline;
+    private final Chunk[] chunks;
+
+    public WindowRateLimiter(long limit, Duration windowSize, int chunkCount) {
+        this(limit, windowSize, chunkCount, Mode.STRICT);
+    }
+
+    public WindowRateLimiter(long limit, Duration windowSize, int chunkCount, Mode mode) {
+        this(limit, windowSize, chunkCount, mode, TickSource.cached());
+    }
+
+    public WindowRateLimiter(long limit, Duration windowSize, int chunkCount, Mode mode, Clock clock) {
+        this(limit, windowSize, chunkCount, mode, TickSource.of(clock));
+    }
+
+    public WindowRateLimiter(long limit, Duration windowSize, int chunkCount, Mode mode, TickSource tickSource) {
+        this(limit, windowSize, chunkCount, mode, tickSource, ChunkAlignment.CREATION_TIME);
+    }
+
+    /**
+     * @param limit max permits within window
+     * @throws IllegalArgumentException if limit is negative
+     */
+    public WindowRateLimiter(long limit, Duration windowSize, int chunkCount, Mode mode, TickSource tickSource, ChunkAlignment alignment) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit should not be negative: " + limit);
+        }
+        this.limit = limit;
+        this.mode = mode;
+        this.timeline = new ChunkTimeline(windowSize, chunkCount, tickSource, alignment);
+        this.chunkCount = chunkCount;
+        this.chunkDuration = timeline.getChunkDuration();
+
+        chunks = new Chunk[timeline.getRingSize()];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = new Chunk();
+        }
+        timeline.register(this::rotate);
+    }
+
+    public boolean tryAcquire() {
+        return tryAcquire(1);
+    }
+
+    /**
+     * Acquires permits if they are available within window
+     *
+     * @return true if permits are acquired, false if acquiring them would exceed limit (nothing is recorded then)
+     * @throws IllegalArgumentException if permits is negative
+     */
+    public boolean tryAcquire(long permits) {
+        if (permits < 0) {
+            throw new IllegalArgumentException("Permits should not be negative: " + permits);
+        }
+        final long currentTime = timeline.currentTime();
+        final ChunkTimeline.Slot slot = timeline.getActualSlot(currentTime);
+        final AtomicLong actualSum = chunks[slot.index].sum;
+        final long available = limit - getAcquiredExceptActualChunk(slot, currentTime);
+        while (true) {
+            final long acquired = actualSum.get();
+            if (permits > available - acquired) {
+                return false;
+            }
+            if (actualSum.compareAndSet(acquired, acquired + permits)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return permits acquired within window, counted according to mode
+     */
+    public long getAcquired() {
+        final long currentTime = timeline.currentTime();
+        final ChunkTimeline.Slot slot = timeline.getActualSlot(currentTime);
+        return getAcquiredExceptActualChunk(slot, currentTime) + chunks[slot.index].sum.get();
+    }
+
+    /**
+     * @return permits that can be acquired now
+     */
+    public long getAvailable() {
+        return Math.max(0, limit - getAcquired());
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    ChunkTimeline getTimeline() {
+        return timeline;
+    }
+
+    private long getAcquiredExceptActualChunk(ChunkTimeline.Slot slot, long currentTime) {
+        final long acquired = chunks[slot.index].accumulatedSumExceptThisAndPreviousChunk + chunks[slot.prevIndex].sum.get();
+        if (mode == Mode.STRICT) {
+            return acquired;
+        }
+        // actual chunk can be expired if timeline is rotated externally and rotation is late
+        return acquired + (long) (getSealedSum(slot.epoch - chunkCount) * (Math.max(0, slot.expirationTime - currentTime) * 1.0 / chunkDuration));
+    }
+
+    private void rotate(long fromEpoch, long toEpoch) {
+        // nobody writes to chunks that are neither actual nor previous
+        seal(fromEpoch - 1);
+        if (toEpoch - fromEpoch > 1) {
+            seal(fromEpoch);
+        }
+
+        for (long epoch = timeline.getFirstRecycledEpoch(fromEpoch, toEpoch); epoch <= toEpoch; epoch++) {
+            chunks[timeline.indexOf(epoch)].reset();
+        }
+
+        final Chunk actualChunk = chunks[timeline.indexOf(toEpoch)];
+        if (toEpoch - fromEpoch == 1) {
+            actualChunk.accumulatedSumExceptThisAndPreviousChunk =
+                    chunks[timeline.indexOf(fromEpoch)].accumulatedSumExceptThisAndPreviousChunk
+                            - getSealedSum(toEpoch - chunkCount)
+                            + getSealedSum(fromEpoch - 1);
+        } else {
+            long accumulatedSum = 0;
+            for (long epoch = toEpoch - chunkCount + 1; epoch < toEpoch - 1; epoch++) {
+                accumulatedSum += getSealedSum(epoch);
+            }
+            actualChunk.accumulatedSumExceptThisAndPreviousChunk = accumulatedSum;
+        }
+    }
+
+    private void seal(long epoch) {
+        if (timeline.contains(epoch)) {
+            chunks[timeline.indexOf(epoch)].seal();
+        }
+    }
+
+    private long getSealedSum(long epoch) {
+        if (timeline.contains(epoch)) {
+            return chunks[timeline.indexOf(epoch)].sealedSum;
+        } else {
+            return 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "WindowRateLimiter{" +
+                "limit=" + limit +
+                ", mode=" + mode +
+                ", acquired=" + getAcquired() +
+                '}';
+    }
+
+    private static class Chunk {
+        private final AtomicLong sum = new AtomicLong();
+        /**
+         * permits of this chunk, they are fixed when chunk is neither actual nor previous
+         */
+        private long sealedSum;
+        /**
+         * permits of chunks within window except this and previous, valid while chunk is actual
+         */
+        private long accumulatedSumExceptThisAndPreviousChunk;
+
+        private void seal() {
+            sealedSum = sum.get();
+        }
+
+        private void reset() {
+            sum.set(0);
+            sealedSum = 0;
+            accumulatedSumExceptThisAndPreviousChunk = 0;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package fuud.windowstat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compact binary format of {@link WindowHistogram.Snapshot} and {@link WindowCounter.Snapshot}. <br>
+ * Values are written as varints (7 bits per byte, the highest bit means "more bytes follow"),
+ * signed values are zigzag encoded before, so small negative values are short too.
+ * <pre>
+ *   header:              version (byte), type (byte), flags (byte)
+ *                        flags of histogram snapshot: 1 - percentiles are bounded by min and max (see {@link LogLinearWindowHistogram}),
+ *                                                     2 - sum of squares is unknown (variance is NaN),
+ *                        counter snapshot has no flags
+ *
+ *   histogram snapshot:  bucket offsets count (varint)
+ *                        first offset (zigzag varint), deltas between next offsets (varint)
+ *                        min, max, total sum (zigzag varint)
+ *                        sum of squares as 128-bit integer: bits 64..127 (varint), bits 0..63 (8 bytes big endian)
+ *                        bucket values (bucket offsets count + 1 values) as runs:
+ *                            count of empty buckets (varint), value of next non-empty bucket (varint), ...
+ *                        last run has no value if last buckets are empty
+ *
+ *   counter snapshot:    actual chunk start time (zigzag varint), chunk duration (varint)
+ *                        chunks count (varint), chunk sums (zigzag varint)
+ * </pre>
+ * Encoding methods write to buffer starting from its position and move position to the end of written data,
+ * decoding methods read from buffer position in the same way. Byte order of buffer is ignored.
+ * Decoding methods check input, so snapshot decoded from truncated or malformed data is rejected instead of answering garbage.
+ */
+public final class WindowStatCodec {
+    static final byte VERSION = 3;
+    static final byte HISTOGRAM_SNAPSHOT = 1;
+    static final byte COUNTER_SNAPSHOT = 2;
+    static final byte NO_FLAGS = 0;
+    static final byte PERCENTILES_BOUNDED_BY_MIN_MAX = 1;
+    static final byte SUM_OF_SQUARES_UNKNOWN = 2;
+
+    private static final int HEADER_SIZE = 3;
+    private static final int MAX_VARINT_SIZE = 10;
+
+    private WindowStatCodec() {
+    }
+
+    /**
+     * @throws java.nio.BufferOverflowException if buffer has not enough space, see {@link #getMaxEncodedSize(WindowHistogram.Snapshot)}
+     */
+    public static void encode(WindowHistogram.Snapshot snapshot, ByteBuffer buffer) {
+        buffer.put(VERSION);
+        buffer.put(HISTOGRAM_SNAPSHOT);
+        buffer.put((byte) ((snapshot.isPercentilesBoundedByMinMax() ? PERCENTILES_BOUNDED_BY_MIN_MAX : NO_FLAGS) |
+                (snapshot.isSumOfSquaresKnown() ? NO_FLAGS : SUM_OF_SQUARES_UNKNOWN)));
+
+        final long[] bucketOffsets = snapshot.getBucketOffsets();
+        writeVarint(buffer, bucketOffsets.length);
+        if (bucketOffsets.length > 0) {
+            writeZigzag(buffer, bucketOffsets[0]);
+            for (int i = 1; i < bucketOffsets.length; i++) {
+                // offsets are increasing, delta is positive (may be greater than Long.MAX_VALUE, but it is fine for unsigned varint)
+                writeVarint(buffer, bucketOffsets[i] - bucketOffsets[i - 1]);
+            }
+        }
+
+        writeZigzag(buffer, snapshot.getMin());
+        writeZigzag(buffer, snapshot.getMax());
+        writeZigzag(buffer, snapshot.getTotalSum());
+        // limbs of snapshot are normalized: low and middle are 32-bit
+        writeVarint(buffer, snapshot.getSquaresLimb(SumOfSquares.HIGH));
+        writeFixed64(buffer, snapshot.getSquaresLimb(SumOfSquares.LOW) | (snapshot.getSquaresLimb(SumOfSquares.MIDDLE) << 32));
+
+        final int bucketsCount = snapshot.getBucketsCount();
+        int bucket = 0;
+        while (bucket < bucketsCount) {
+            int emptyBuckets = 0;
+            while (bucket < bucketsCount && snapshot.getBucketValue(bucket) == 0) {
+                emptyBuckets++;
+                bucket++;
+            }
+            writeVarint(buffer, emptyBuckets);
+            if (bucket < bucketsCount) {
+                writeVarint(buffer, snapshot.getBucketValue(bucket));
+                bucket++;
+            }
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if buffer does not contain histogram snapshot of supported version
+     *                                  or snapshot is truncated or malformed
+     */
+    public static WindowHistogram.Snapshot decodeHistogramSnapshot(ByteBuffer buffer) {
+        final byte flags = readHeader(buffer, HISTOGRAM_SNAPSHOT);
+        if ((flags & ~(PERCENTILES_BOUNDED_BY_MIN_MAX | SUM_OF_SQUARES_UNKNOWN)) != 0) {
+            throw new IllegalArgumentException("Unsupported flags " + flags);
+        }
+
+        final long[] bucketOffsets = new long[readLength(buffer)];
+        if (bucketOffsets.length > 0) {
+            bucketOffsets[0] = readZigzag(buffer);
+            for (int i = 1; i < bucketOffsets.length; i++) {
+                // delta is unsigned, see encode
+                final long delta = readVarint(buffer);
+                if (delta == 0 || Long.compareUnsigned(delta, Long.MAX_VALUE - bucketOffsets[i - 1]) > 0) {
+                    throw new IllegalArgumentException("Malformed delta " + Long.toUnsignedString(delta) + " of bucket offset " + i);
+                }
+                bucketOffsets[i] = bucketOffsets[i - 1] + delta;
+            }
+        }
+
+        final long min = readZigzag(buffer);
+        final long max = readZigzag(buffer);
+        final long totalSum = readZigzag(buffer);
+        final long squaresHigh = readVarint(buffer);
+        if (squaresHigh < 0) {
+            throw new IllegalArgumentException("Malformed sum of squares");
+        }
+        final long squaresLow64 = readFixed64(buffer);
+
+        final long[] bucketValues = new long[bucketOffsets.length + 1];
+        int bucket = 0;
+        while (bucket < bucketValues.length) {
+            final long emptyBuckets = readVarint(buffer);
+            if (emptyBuckets < 0 || emptyBuckets > bucketValues.length - bucket) {
+                throw new IllegalArgumentException("Malformed bucket values");
+            }
+            bucket += (int) emptyBuckets;
+            if (bucket < bucketValues.length) {
+                final long bucketValue = readVarint(buffer);
+                if (bucketValue < 0) {
+                    throw new IllegalArgumentException("Malformed value of bucket " + bucket);
+                }
+                bucketValues[bucket] = bucketValue;
+                bucket++;
+            }
+        }
+
+        final WindowHistogram.Snapshot snapshot = (flags & SUM_OF_SQUARES_UNKNOWN) != 0 ?
+                new WindowHistogram.Snapshot(min, max, bucketOffsets, bucketValues, totalSum) :
+                new WindowHistogram.Snapshot(min, max, bucketOffsets, bucketValues, totalSum, squaresLow64 & 0xFFFFFFFFL, squaresLow64 >>> 32, squaresHigh);
+        if ((flags & PERCENTILES_BOUNDED_BY_MIN_MAX) != 0) {
+            snapshot.boundPercentilesByMinMax();
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return upper bound of encoded snapshot size in bytes
+     */
+    public static int getMaxEncodedSize(WindowHistogram.Snapshot snapshot) {
+        final int bucketOffsetsCount = snapshot.getBucketOffsets().length;
+        return HEADER_SIZE +
+                MAX_VARINT_SIZE * (1 + bucketOffsetsCount) + // offsets
+                MAX_VARINT_SIZE * 4 + 8 + // min, max, total sum, sum of squares
+                MAX_VARINT_SIZE * 2 * (bucketOffsetsCount + 1); // bucket values, in the worst case each bucket has empty run before
+    }
+
+    /**
+     * @throws java.nio.BufferOverflowException if buffer has not enough space, see {@link #getMaxEncodedSize(WindowCounter.Snapshot)}
+     */
+    public static void encode(WindowCounter.Snapshot snapshot, ByteBuffer buffer) {
+        buffer.put(VERSION);
+        buffer.put(COUNTER_SNAPSHOT);
+        buffer.put(NO_FLAGS);
+
+        writeZigzag(buffer, snapshot.getActualChunkStartTime());
+        writeVarint(buffer, snapshot.getChunkDuration());
+        writeVarint(buffer, snapshot.getChunksCount());
+        for (int i = 0; i < snapshot.getChunksCount(); i++) {
+            writeZigzag(buffer, snapshot.getChunkSum(i));
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if buffer does not contain counter snapshot of supported version
+     *                                  or snapshot is truncated or malformed
+     */
+    public static WindowCounter.Snapshot decodeCounterSnapshot(ByteBuffer buffer) {
+        final byte flags = readHeader(buffer, COUNTER_SNAPSHOT);
+        if (flags != NO_FLAGS) {
+            throw new IllegalArgumentException("Unsupported flags " + flags);
+        }
+
+        final long actualChunkStartTime = readZigzag(buffer);
+        final long chunkDuration = readVarint(buffer);
+        if (chunkDuration <= 0) {
+            throw new IllegalArgumentException("Malformed chunk duration " + Long.toUnsignedString(chunkDuration));
+        }
+        final long[] chunkSums = new long[readLength(buffer)];
+        for (int i = 0; i < chunkSums.length; i++) {
+            chunkSums[i] = readZigzag(buffer);
+        }
+        return new WindowCounter.Snapshot(actualChunkStartTime, chunkDuration, chunkSums);
+    }
+
+    /**
+     * @return upper bound of encoded snapshot size in bytes
+     */
+    public static int getMaxEncodedSize(WindowCounter.Snapshot snapshot) {
+        return HEADER_SIZE + MAX_VARINT_SIZE * (3 + snapshot.getChunksCount());
+    }
+
+    /**
+     * @return flags
+     */
+    private static byte readHeader(ByteBuffer buffer, byte expectedType) {
+        if (buffer.remaining() < HEADER_SIZE) {
+            throw new IllegalArgumentException("Truncated header");
+        }
+        final byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported format version " + version);
+        }
+        final byte type = buffer.get();
+        if (type != expectedType) {
+            throw new IllegalArgumentException("Unexpected snapshot type " + type + ", expected " + expectedType);
+        }
+        return buffer.get();
+    }
+
+    static void writeVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                throw new IllegalArgumentException("Truncated varint");
+            }
+            final byte b = buffer.get();
+            if (shift == 63 && (b & 0xFF) > 1) {
+                // the 10th byte holds only the highest bit of value
+                throw new IllegalArgumentException("Malformed varint");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static void writeFixed64(ByteBuffer buffer, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer.put((byte) (value >>> shift));
+        }
+    }
+
+    private static long readFixed64(ByteBuffer buffer) {
+        if (buffer.remaining() < Long.BYTES) {
+            throw new IllegalArgumentException("Truncated fixed64");
+        }
+        long value = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            value = (value << 8) | (buffer.get() & 0xFF);
+        }
+        return value;
+    }
+
+    static void writeZigzag(ByteBuffer buffer, long value) {
+        writeVarint(buffer, (value << 1) ^ (value >> 63));
+    }
+
+    static long readZigzag(ByteBuffer buffer) {
+        final long value = readVarint(buffer);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * @return length of array, each element of it takes at least one byte
+     */
+    private static int readLength(ByteBuffer buffer) {
+        final long length = readVarint(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Malformed length " + length);
+        }
+        return (int) length;
+    }
+}
@@ -0,0 +1,259 @@
+package fuud.windowstat;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Registry of window stats by name and tags. <br>
+ * All stats of registry have the same window size and chunks count and share one tick source,
+ * histograms share one bucket layout. Stats are created on first lookup and returned on next lookups.
+ * <p>
+ * Lookup by {@link Key} does not allocate, so keys of hot path should be created once:
+ * <pre>
+ *   private static final WindowStatRegistry.Key REQUESTS = WindowStatRegistry.Key.of("requests", "method", "GET");
+ *   ...
+ *   registry.counter(REQUESTS).add(1);
+ * </pre>
+ * or stat itself can be kept as pre-resolved handle.
+ * <p>
+ * Stat is idle if it was not looked up within idle timeout, idle stats are removed by {@link #evictIdle()}.
+ * Lookup and eviction of the same stat are ordered: stat is evicted only if it was idle since its latest lookup,
+ * and lookup that races with eviction creates new stat instead of returning evicted one.
+ * Stat that is kept as handle after eviction still works, but it is not visible via registry anymore,
+ * so handles should be used only for stats that are looked up periodically or registry without idle timeout.
+ */
+public class WindowStatRegistry {
+    private final Duration windowSize;
+    private final int chunkCount;
+    private final BucketLayout bucketLayout;
+    private final TickSource tickSource;
+    /**
+     * in ticks, Long.MAX_VALUE if stats are never evicted
+     */
+    private final long idleTimeout;
+
+    private final Map<Key, Entry<WindowCounter>> counters = new ConcurrentHashMap<>();
+    private final Map<Key, Entry<WindowMinMax>> minMaxes = new ConcurrentHashMap<>();
+    private final Map<Key, Entry<CompactWindowHistogram>> histograms = new ConcurrentHashMap<>();
+
+    private final Function<Key, Entry<WindowCounter>> counterFactory;
+    private final Function<Key, Entry<WindowMinMax>> minMaxFactory;
+    private final Function<Key, Entry<CompactWindowHistogram>> histogramFactory;
+
+    public WindowStatRegistry(Duration windowSize, int chunkCount, BucketLayout bucketLayout) {
+        this(windowSize, chunkCount, bucketLayout, TickSource.cached());
+    }
+
+    /**
+     * Creates registry that never evicts stats
+     */
+    public WindowStatRegistry(Duration windowSize, int chunkCount, BucketLayout bucketLayout, TickSource tickSource) {
+        this(windowSize, chunkCount, bucketLayout, tickSource, null);
+    }
+
+    /**
+     * @param idleTimeout stats that are not looked up within this time are removed by {@link #evictIdle()},
+     *                    null if stats are never evicted
+     */
+    public WindowStatRegistry(Duration windowSize, int chunkCount, BucketLayout bucketLayout, TickSource tickSource, Duration idleTimeout) {
+        // fail fast on wrong window
+        ChunkTimeline.getChunkDuration(windowSize, chunkCount, tickSource.getTickUnit());
+        if (idleTimeout != null && idleTimeout.isNegative()) {
+            throw new IllegalArgumentException("Idle timeout should not be negative: " + idleTimeout);
+        }
+
+        this.windowSize = windowSize;
+        this.chunkCount = chunkCount;
+        this.bucketLayout = bucketLayout;
+        this.tickSource = tickSource;
+        this.idleTimeout = idleTimeout == null ? Long.MAX_VALUE : ChunkTimeline.toTicks(idleTimeout, tickSource.getTickUnit());
+
+        this.counterFactory = key -> new Entry<>(new WindowCounter(windowSize, chunkCount, tickSource));
+        this.minMaxFactory = key -> new Entry<>(new WindowMinMax(windowSize, chunkCount, tickSource));
+        this.histogramFactory = key -> new Entry<>(new CompactWindowHistogram(bucketLayout, windowSize, chunkCount, tickSource));
+    }
+
+    public WindowCounter counter(String name, String... tags) {
+        return counter(Key.of(name, tags));
+    }
+
+    public WindowCounter counter(Key key) {
+        return lookup(counters, key, counterFactory);
+    }
+
+    public WindowMinMax minMax(String name, String... tags) {
+        return minMax(Key.of(name, tags));
+    }
+
+    public WindowMinMax minMax(Key key) {
+        return lookup(minMaxes, key, minMaxFactory);
+    }
+
+    public CompactWindowHistogram histogram(String name, String... tags) {
+        return histogram(Key.of(name, tags));
+    }
+
+    public CompactWindowHistogram histogram(Key key) {
+        return lookup(histograms, key, histogramFactory);
+    }
+
+    /**
+     * Removes stats that were not looked up within idle timeout.
+     *
+     * @return count of removed stats
+     */
+    public int evictIdle() {
+        if (idleTimeout == Long.MAX_VALUE) {
+            return 0;
+        }
+        final long currentTime = tickSource.currentTick();
+        return evictIdle(counters, currentTime) + evictIdle(minMaxes, currentTime) + evictIdle(histograms, currentTime);
+    }
+
+    /**
+     * @return count of stats in registry
+     */
+    public int size() {
+        return counters.size() + minMaxes.size() + histograms.size();
+    }
+
+    public Duration getWindowSize() {
+        return windowSize;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public BucketLayout getBucketLayout() {
+        return bucketLayout;
+    }
+
+    public TickSource getTickSource() {
+        return tickSource;
+    }
+
+    private <T> T lookup(Map<Key, Entry<T>> stats, Key key, Function<Key, Entry<T>> factory) {
+        while (true) {
+            Entry<T> entry = stats.get(key);
+            if (entry == null) {
+                entry = stats.computeIfAbsent(key, factory);
+            }
+            if (idleTimeout == Long.MAX_VALUE || entry.touch(tickSource.currentTick())) {
+                return entry.stat;
+            }
+            // entry is evicted concurrently, let's help to remove it and create new one
+            stats.remove(key, entry);
+        }
+    }
+
+    private <T> int evictIdle(Map<Key, Entry<T>> stats, long currentTime) {
+        int evicted = 0;
+        for (Map.Entry<Key, Entry<T>> mapEntry : stats.entrySet()) {
+            final Entry<T> entry = mapEntry.getValue();
+            if (entry.tryEvict(currentTime)) {
+                stats.remove(mapEntry.getKey(), entry);
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    private class Entry<T> {
+        /**
+         * lookup time of evicted entry, lookups do not return such entry
+         */
+        private static final long EVICTED = Long.MIN_VALUE;
+
+        private final T stat;
+        private final AtomicLong lastLookupTime;
+
+        private Entry(T stat) {
+            this.stat = stat;
+            this.lastLookupTime = new AtomicLong(tickSource.currentTick());
+        }
+
+        /**
+         * @return false if entry is evicted
+         */
+        private boolean touch(long currentTime) {
+            while (true) {
+                final long lastLookupTime = this.lastLookupTime.get();
+                if (lastLookupTime == EVICTED) {
+                    return false;
+                }
+                // skip write if time is the same, so hot stats do not invalidate cache line on each lookup
+                if (lastLookupTime >= currentTime || this.lastLookupTime.compareAndSet(lastLookupTime, currentTime)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Marks entry as evicted if it was not looked up within idle timeout, it fails if entry is looked up concurrently
+         */
+        private boolean tryEvict(long currentTime) {
+            final long lastLookupTime = this.lastLookupTime.get();
+            return lastLookupTime != EVICTED &&
+                    currentTime - lastLookupTime >= idleTimeout &&
+                    this.lastLookupTime.compareAndSet(lastLookupTime, EVICTED);
+        }
+    }
+
+    /**
+     * Name and tags of stat. Tags are compared as ordered array (e.g. key-value pairs in fixed order).
+     * Hash code is computed once, so lookup by key does not hash strings.
+     */
+    public static final class Key {
+        private final String name;
+        private final String[] tags;
+        private final int hashCode;
+
+        private Key(String name, String[] tags) {
+            this.name = name;
+            this.tags = tags;
+            this.hashCode = 31 * name.hashCode() + Arrays.hashCode(tags);
+        }
+
+        public static Key of(String name, String... tags) {
+            if (name == null) {
+                throw new IllegalArgumentException("Name should not be null");
+            }
+            return new Key(name, tags.clone());
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String[] getTags() {
+            return tags.clone();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return hashCode == key.hashCode && name.equals(key.name) && Arrays.equals(tags, key.tags);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public String toString() {
+            return name + Arrays.toString(tags);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package fuud.windowstat;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sum of squares within time window as limbs of {@link SumOfSquares}, it shares chunks with other window stats of the timeline
+ * (see {@link WindowCounter} for algorithm description). <br>
+ * Live limbs of actual and previous chunks are only added to, they are unsigned sums and are normalized on read.
+ * Limbs are normalized when chunk is sealed, so sealed and accumulated sums do not overflow regardless of samples count within window.
+ * Live limbs are never rewritten: thread that sees expired actual chunk reads chunk being sealed as its previous chunk.
+ */
+class WindowSumOfSquares {
+    private final int chunkCount;
+    private final ChunkTimeline timeline;
+    private final Chunk[] chunks;
+
+    WindowSumOfSquares(ChunkTimeline timeline) {
+        this.timeline = timeline;
+        this.chunkCount = timeline.getChunkCount();
+
+        chunks = new Chunk[timeline.getRingSize()];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = new Chunk();
+        }
+        timeline.register(this::rotate);
+    }
+
+    void add(ChunkTimeline.Slot slot, long value, long count) {
+        final Chunk chunk = chunks[slot.index];
+        chunk.add(SumOfSquares.LOW, SumOfSquares.getLowLimb(value, count));
+        chunk.add(SumOfSquares.MIDDLE, SumOfSquares.getMiddleLimb(value, count));
+        chunk.add(SumOfSquares.HIGH, SumOfSquares.getHighLimb(value, count));
+    }
+
+    /**
+     * @param squaresSum limbs of squares of batch, see {@link SampleBatch}
+     */
+    void addAll(ChunkTimeline.Slot slot, long[] squaresSum) {
+        final Chunk chunk = chunks[slot.index];
+        for (int limb = 0; limb < SumOfSquares.LIMBS_COUNT; limb++) {
+            chunk.add(limb, squaresSum[limb]);
+        }
+    }
+
+    /**
+     * @return sum of limbs within window, low and middle limbs are unsigned sums
+     */
+    long getLimb(ChunkTimeline.Slot slot, int limb) {
+        return chunks[slot.index].accumulatedSumExceptThisAndPreviousChunk[limb] +
+                chunks[slot.prevIndex].sum[limb].longValue() +
+                chunks[slot.index].sum[limb].longValue();
+    }
+
+    private void rotate(long fromEpoch, long toEpoch) {
+        // nobody writes to chunks that are neither actual nor previous
+        seal(fromEpoch - 1);
+        if (toEpoch - fromEpoch > 1) {
+            seal(fromEpoch);
+        }
+
+        for (long epoch = timeline.getFirstRecycledEpoch(fromEpoch, toEpoch); epoch <= toEpoch; epoch++) {
+            chunks[timeline.indexOf(epoch)].reset();
+        }
+
+        final Chunk actualChunk = chunks[timeline.indexOf(toEpoch)];
+        if (toEpoch - fromEpoch == 1) {
+            System.arraycopy(
+                    chunks[timeline.indexOf(fromEpoch)].accumulatedSumExceptThisAndPreviousChunk, 0,
+                    actualChunk.accumulatedSumExceptThisAndPreviousChunk, 0,
+                    SumOfSquares.LIMBS_COUNT
+            );
+            accumulate(actualChunk, toEpoch - chunkCount, -1);
+            accumulate(actualChunk, fromEpoch - 1, 1);
+        } else {
+            for (long epoch = toEpoch - chunkCount + 1; epoch < toEpoch - 1; epoch++) {
+                accumulate(actualChunk, epoch, 1);
+            }
+        }
+    }
+
+    /**
+     * adds sealed limbs of chunk with given epoch (multiplied by sign) to accumulated limbs of target chunk
+     */
+    private void accumulate(Chunk target, long epoch, int sign) {
+        if (!timeline.contains(epoch)) {
+            return;
+        }
+        final Chunk chunk = chunks[timeline.indexOf(epoch)];
+        for (int limb = 0; limb < SumOfSquares.LIMBS_COUNT; limb++) {
+            target.accumulatedSumExceptThisAndPreviousChunk[limb] += sign * chunk.sealedSum[limb];
+        }
+    }
+
+    private void seal(long epoch) {
+        if (timeline.contains(epoch)) {
+            chunks[timeline.indexOf(epoch)].seal();
+        }
+    }
+
+    private static class Chunk {
+        private final LongAdder[] sum = new LongAdder[SumOfSquares.LIMBS_COUNT];
+        /**
+         * normalized limbs of this chunk, they are fixed when chunk is neither actual nor previous
+         */
+        private final long[] sealedSum = new long[SumOfSquares.LIMBS_COUNT];
+        /**
+         * limbs of chunks within window except this and previous, valid while chunk is actual
+         */
+        private final long[] accumulatedSumExceptThisAndPreviousChunk = new long[SumOfSquares.LIMBS_COUNT];
+
+        private Chunk() {
+            for (int limb = 0; limb < sum.length; limb++) {
+                sum[limb] = new LongAdder();
+            }
+        }
+
+        private void add(int limb, long delta) {
+            if (delta != 0) {
+                sum[limb].add(delta);
+            }
+        }
+
+        private void seal() {
+            for (int limb = 0; limb < sum.length; limb++) {
+                sealedSum[limb] = sum[limb].longValue();
+            }
+            SumOfSquares.normalize(sealedSum, 0);
+        }
+
+        private void reset() {
+            for (int limb = 0; limb < sum.length; limb++) {
+                sum[limb].reset();
+                sealedSum[limb] = 0;
+                accumulatedSumExceptThisAndPreviousChunk[limb] = 0;
+            }
+        }
+    }
+}
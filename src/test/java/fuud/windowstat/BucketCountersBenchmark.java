@@ -0,0 +1,137 @@
+package fuud.windowstat;
+
+import fuud.windowstat.util.BenchmarkRunnerUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * All threads write to the same hot bucket, the worst case for {@link java.util.concurrent.atomic.AtomicLongArray}.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BucketCountersBenchmark {
+    private static final int BUCKETS = 64;
+    private static final int HOT_BUCKET = 10;
+    private static final long HOT_VALUE = 10;
+
+    @State(Scope.Benchmark)
+    public static class CountersState {
+        public final BucketCounters atomic = BucketCounters.atomic(BUCKETS);
+        public final BucketCounters striped = BucketCounters.striped(BUCKETS);
+    }
+
+    @State(Scope.Benchmark)
+    public static class HistogramState {
+        public final WindowHistogram atomic = new CompactWindowHistogram(BucketLayout.linear(0, 1, BUCKETS), Duration.ofSeconds(60), 6, TickSource.cached(), false);
+        public final WindowHistogram striped = new CompactWindowHistogram(BucketLayout.linear(0, 1, BUCKETS), Duration.ofSeconds(60), 6, TickSource.cached(), true);
+    }
+
+    // counters only
+
+    @Benchmark
+    @Threads(1)
+    public void atomic_01(CountersState state) {
+        state.atomic.add(HOT_BUCKET, 1);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void atomic_04(CountersState state) {
+        state.atomic.add(HOT_BUCKET, 1);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void atomic_16(CountersState state) {
+        state.atomic.add(HOT_BUCKET, 1);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void atomic_64(CountersState state) {
+        state.atomic.add(HOT_BUCKET, 1);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void striped_01(CountersState state) {
+        state.striped.add(HOT_BUCKET, 1);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void striped_04(CountersState state) {
+        state.striped.add(HOT_BUCKET, 1);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void striped_16(CountersState state) {
+        state.striped.add(HOT_BUCKET, 1);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void striped_64(CountersState state) {
+        state.striped.add(HOT_BUCKET, 1);
+    }
+
+    // whole histogram
+
+    @Benchmark
+    @Threads(1)
+    public void histogram_atomic_01(HistogramState state) {
+        state.atomic.add(HOT_VALUE);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void histogram_atomic_04(HistogramState state) {
+        state.atomic.add(HOT_VALUE);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void histogram_atomic_16(HistogramState state) {
+        state.atomic.add(HOT_VALUE);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void histogram_atomic_64(HistogramState state) {
+        state.atomic.add(HOT_VALUE);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void histogram_striped_01(HistogramState state) {
+        state.striped.add(HOT_VALUE);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void histogram_striped_04(HistogramState state) {
+        state.striped.add(HOT_VALUE);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void histogram_striped_16(HistogramState state) {
+        state.striped.add(HOT_VALUE);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void histogram_striped_64(HistogramState state) {
+        state.striped.add(HOT_VALUE);
+    }
+
+    public static class RunBenchmark {
+        public static void main(String[] args) throws Exception {
+            BenchmarkRunnerUtil.runBenchmark(BucketCountersBenchmark.class);
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+package fuud.windowstat;
+
+import fuud.windowstat.util.BenchmarkRunnerUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BucketLayoutBenchmark {
+    private static final int BUCKETS = 256;
+
+    @State(Scope.Benchmark)
+    public static class LayoutState {
+        public final BucketLayout linear = BucketLayout.linear(0, 1000, BUCKETS);
+        public final BucketLayout linearBinarySearch = BucketLayout.of(linear.getBucketOffsets());
+        public final BucketLayout exponential = BucketLayout.exponential(1, 2, 62);
+        public final BucketLayout exponentialBinarySearch = BucketLayout.of(exponential.getBucketOffsets());
+    }
+
+    @State(Scope.Thread)
+    public static class Data {
+        public final long[] linearData = new long[10000];
+        public final long[] exponentialData = new long[10000];
+        public int elemIndex;
+
+        @Setup
+        public void setup() {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < linearData.length; i++) {
+                linearData[i] = random.nextLong(BUCKETS * 1000);
+                exponentialData[i] = (1L << random.nextInt(62)) + random.nextInt(1000);
+            }
+        }
+
+        public long nextLinear() {
+            elemIndex++;
+            return linearData[elemIndex % linearData.length];
+        }
+
+        public long nextExponential() {
+            elemIndex++;
+            return exponentialData[elemIndex % exponentialData.length];
+        }
+    }
+
+    @Benchmark
+    public int linear(LayoutState state, Data data) {
+        return state.linear.getBucketIndex(data.nextLinear());
+    }
+
+    @Benchmark
+    public int linearBinarySearch(LayoutState state, Data data) {
+        return state.linearBinarySearch.getBucketIndex(data.nextLinear());
+    }
+
+    @Benchmark
+    public int exponential(LayoutState state, Data data) {
+        return state.exponential.getBucketIndex(data.nextExponential());
+    }
+
+    @Benchmark
+    public int exponentialBinarySearch(LayoutState state, Data data) {
+        return state.exponentialBinarySearch.getBucketIndex(data.nextExponential());
+    }
+
+    public static class RunBenchmark {
+        public static void main(String[] args) throws Exception {
+            BenchmarkRunnerUtil.runBenchmark(BucketLayoutBenchmark.class);
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+package fuud.windowstat;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BucketLayoutTest {
+    @Test
+    public void testLinear() throws Exception {
+        final BucketLayout layout = BucketLayout.linear(-10, 5, 5);
+        assertArrayEquals(new long[]{-10, -5, 0, 5, 10}, layout.getBucketOffsets());
+        assertEquals(6, layout.getBucketsCount());
+
+        assertEquals(0, layout.getBucketIndex(Long.MIN_VALUE));
+        assertEquals(0, layout.getBucketIndex(-11));
+        assertEquals(1, layout.getBucketIndex(-10));
+        assertEquals(1, layout.getBucketIndex(-6));
+        assertEquals(2, layout.getBucketIndex(-5));
+        assertEquals(3, layout.getBucketIndex(4));
+        assertEquals(5, layout.getBucketIndex(10));
+        assertEquals(5, layout.getBucketIndex(Long.MAX_VALUE));
+
+        assertSameAsBinarySearch(layout);
+        assertSameAsBinarySearch(BucketLayout.linear(0, 1000, 11));
+        assertSameAsBinarySearch(BucketLayout.linear(3, 1024, 200));
+    }
+
+    @Test
+    public void testExponential() throws Exception {
+        final BucketLayout layout = BucketLayout.exponential(1, 4, 4);
+        assertArrayEquals(new long[]{1, 4, 16, 64}, layout.getBucketOffsets());
+
+        assertEquals(0, layout.getBucketIndex(Long.MIN_VALUE));
+        assertEquals(0, layout.getBucketIndex(0));
+        assertEquals(1, layout.getBucketIndex(1));
+        assertEquals(1, layout.getBucketIndex(3));
+        assertEquals(2, layout.getBucketIndex(4));
+        assertEquals(3, layout.getBucketIndex(63));
+        assertEquals(4, layout.getBucketIndex(64));
+        assertEquals(4, layout.getBucketIndex(Long.MAX_VALUE));
+
+        assertSameAsBinarySearch(layout);
+        assertSameAsBinarySearch(BucketLayout.exponential(1000, 2, 40));
+        assertSameAsBinarySearch(BucketLayout.exponential(1024, 2, 40));
+        assertSameAsBinarySearch(BucketLayout.exponential(7, 10, 15));
+        assertSameAsBinarySearch(BucketLayout.exponential(1, 3, 39));
+        assertSameAsBinarySearch(BucketLayout.exponential(5, 7, 20));
+        assertSameAsBinarySearch(BucketLayout.exponential(1, 1000, 6));
+        assertSameAsBinarySearch(BucketLayout.exponential(3, 10, 1));
+    }
+
+    @Test
+    public void testLogLinear() throws Exception {
+        final BucketLayout layout = BucketLayout.logLinear(1, 100, 1);
+        final long[] bucketOffsets = layout.getBucketOffsets();
+        // 32 buckets of width 1, then 16 buckets of width 2, 4, ...
+        assertEquals(31, bucketOffsets[31]);
+        assertEquals(32, bucketOffsets[32]);
+        assertEquals(34, bucketOffsets[33]);
+        assertEquals(64, bucketOffsets[48]);
+        assertEquals(68, bucketOffsets[49]);
+        assertEquals(104, bucketOffsets[bucketOffsets.length - 1]);
+
+        assertEquals(0, layout.getBucketIndex(-1));
+        assertEquals(1, layout.getBucketIndex(0));
+        assertEquals(33, layout.getBucketIndex(33));
+        assertEquals(bucketOffsets.length - 1, layout.getBucketIndex(100));
+        assertEquals(bucketOffsets.length, layout.getBucketIndex(104));
+        assertEquals(bucketOffsets.length, layout.getBucketIndex(Long.MAX_VALUE));
+
+        assertSameAsBinarySearch(layout);
+        assertSameAsBinarySearch(BucketLayout.logLinear(60_000_000_000L, 2));
+        assertSameAsBinarySearch(BucketLayout.logLinear(1000, 60_000_000_000L, 3));
+        assertSameAsBinarySearch(BucketLayout.logLinear(7, 1L << 40, 0));
+
+        // the last bucket is overflow if its upper bound is out of long range
+        final BucketLayout full = BucketLayout.logLinear(Long.MAX_VALUE, 2);
+        assertEquals(full.getBucketOffsets().length, full.getBucketIndex(Long.MAX_VALUE));
+        assertEquals(full.getBucketOffsets().length - 1, full.getBucketIndex(full.getBucketOffsets()[full.getBucketOffsets().length - 1] - 1));
+    }
+
+    @Test
+    public void testLogLinearRelativeError() throws Exception {
+        for (int significantDigits = 0; significantDigits <= 3; significantDigits++) {
+            final long[] bucketOffsets = BucketLayout.logLinear(1L << 50, significantDigits).getBucketOffsets();
+            for (int i = 1; i < bucketOffsets.length; i++) {
+                final double relativeError = (bucketOffsets[i] - bucketOffsets[i - 1] - 1) * 1.0 / Math.max(1, bucketOffsets[i - 1]);
+                assertTrue(significantDigits + " " + bucketOffsets[i - 1], relativeError < Math.pow(10, -significantDigits));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLogLinearTooManyDigits() throws Exception {
+        BucketLayout.logLinear(1000, 6);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotIncreasingOffsets() throws Exception {
+        BucketLayout.of(new long[]{1, 3, 2});
+    }
+
+    private static void assertSameAsBinarySearch(BucketLayout layout) {
+        final long[] bucketOffsets = layout.getBucketOffsets();
+        final Random random = new Random(0);
+        for (long offset : bucketOffsets) {
+            for (long value = offset - 2; value <= offset + 2; value++) {
+                assertEquals(layout + " " + value, getBucketIndexByBinarySearch(bucketOffsets, value), layout.getBucketIndex(value));
+            }
+        }
+        for (int magnitude = 0; magnitude < 63; magnitude++) {
+            for (long value = (1L << magnitude) - 1; value <= (1L << magnitude) + 1; value++) {
+                assertEquals(layout + " " + value, getBucketIndexByBinarySearch(bucketOffsets, value), layout.getBucketIndex(value));
+            }
+        }
+        final long last = bucketOffsets[bucketOffsets.length - 1];
+        for (int i = 0; i < 10_000; i++) {
+            final long value = (long) (random.nextDouble() * last * 1.1) - 10;
+            assertEquals(layout + " " + value, getBucketIndexByBinarySearch(bucketOffsets, value), layout.getBucketIndex(value));
+        }
+    }
+
+    private static int getBucketIndexByBinarySearch(long[] bucketOffsets, long value) {
+        final int bucket = Arrays.binarySearch(bucketOffsets, value);
+        return bucket >= 0 ? bucket + 1 : -bucket - 1;
+    }
+}
@@ -0,0 +1,54 @@
+package fuud.windowstat;
+
+import fuud.windowstat.util.BenchmarkRunnerUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adds batch of values to histogram one by one and by {@link WindowHistogram#addAll(long[], int, int)}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BulkAddBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class HistogramState {
+        @Param({"100", "1000", "10000"})
+        public int batchSize;
+
+        public final CompactWindowHistogram histogram = new CompactWindowHistogram(BucketLayout.linear(0, 100, 100), Duration.ofSeconds(60), 10);
+        public long[] values;
+
+        @Setup
+        public void setup() {
+            final Random random = new Random(0);
+            values = new long[batchSize];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = random.nextInt(10_000);
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void addOneByOne(HistogramState state) {
+        for (long value : state.values) {
+            state.histogram.add(value);
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void addAll(HistogramState state) {
+        state.histogram.addAll(state.values, 0, state.values.length);
+    }
+
+    public static class RunBenchmark {
+        public static void main(String[] args) throws Exception {
+            BenchmarkRunnerUtil.runBenchmark(BulkAddBenchmark.class);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package fuud.windowstat;
+
+import fuud.windowstat.util.BenchmarkRunnerUtil;
+import fuud.windowstat.util.MockClock;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Each operation moves clock to the next chunk, so each add causes rotation. <br>
+ * Run with GC profiler to see allocation rate per rotation (gc.alloc.rate.norm), it should be zero.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChunkRotationBenchmark {
+    private static final long CHUNK_DURATION_MS = 100;
+
+    @State(Scope.Thread)
+    public static class CounterState {
+        public final MockClock clock = new MockClock();
+        public final WindowCounter counter = new WindowCounter(Duration.ofMillis(CHUNK_DURATION_MS * 10), 10, clock);
+    }
+
+    @State(Scope.Thread)
+    public static class MinMaxState {
+        public final MockClock clock = new MockClock();
+        public final WindowMinMax minMax = new WindowMinMax(Duration.ofMillis(CHUNK_DURATION_MS * 10), 10, clock);
+    }
+
+    @State(Scope.Thread)
+    public static class CompactHistState {
+        private final long[] bucketOffsets = {0, 1000, 2000, 3000, 4000, 5000, 6000, 7000, 8000, 9000, 10000};
+        public final MockClock clock = new MockClock();
+        public final CompactWindowHistogram histogram = new CompactWindowHistogram(bucketOffsets, Duration.ofMillis(CHUNK_DURATION_MS * 10), 10, clock);
+    }
+
+    @Benchmark
+    public void rotateCounter(CounterState state) {
+        state.clock.move(CHUNK_DURATION_MS);
+        state.counter.add(1);
+    }
+
+    @Benchmark
+    public void rotateMinMax(MinMaxState state) {
+        state.clock.move(CHUNK_DURATION_MS);
+        state.minMax.register(1);
+    }
+
+    @Benchmark
+    public void rotateCompactHistogram(CompactHistState state) {
+        state.clock.move(CHUNK_DURATION_MS);
+        state.histogram.add(1);
+    }
+
+    public static class RunBenchmark {
+        public static void main(String[] args) throws Exception {
+            BenchmarkRunnerUtil.runBenchmark(ChunkRotationBenchmark.class, GCProfiler.class);
+        }
+    }
+
+}
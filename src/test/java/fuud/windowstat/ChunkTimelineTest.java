@@ -0,0 +1,124 @@
+package fuud.windowstat;
+
+import fuud.windowstat.util.MockTickSource;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ChunkTimelineTest {
+
+    @Test
+    public void testRingWrapAround() {
+        final MockTickSource tickSource = new MockTickSource(TimeUnit.MILLISECONDS);
+        final ChunkTimeline timeline = new ChunkTimeline(Duration.ofSeconds(3), 3, tickSource);
+        assertEquals(5, timeline.getRingSize());
+
+        final List<long[]> rotations = new ArrayList<>();
+        timeline.register((fromEpoch, toEpoch) -> rotations.add(new long[]{fromEpoch, toEpoch}));
+
+        for (int epoch = 0; epoch < 12; epoch++) {
+            final ChunkTimeline.Slot slot = timeline.getActualSlot();
+            assertEquals(epoch, slot.epoch);
+            assertEquals(epoch % 5, slot.index);
+            assertEquals((epoch + 4) % 5, slot.prevIndex);
+            assertEquals((epoch + 1) * 1000, slot.expirationTime);
+            // slots of chunks within window and chunk before window are not recycled yet
+            for (int i = Math.max(0, epoch - 3); i <= epoch; i++) {
+                assertTrue(timeline.contains(i));
+            }
+            assertFalse(timeline.contains(epoch - 5));
+            tickSource.move(1000);
+        }
+
+        assertEquals(11, rotations.size());
+        for (int i = 0; i < rotations.size(); i++) {
+            assertArrayEquals(new long[]{i, i + 1}, rotations.get(i));
+        }
+    }
+
+    @Test
+    public void testChunkCountLessThanTwo() {
+        for (int chunkCount = -1; chunkCount < 2; chunkCount++) {
+            try {
+                new ChunkTimeline(Duration.ofSeconds(3), chunkCount, new MockTickSource(TimeUnit.MILLISECONDS));
+                fail("Chunk count " + chunkCount + " should be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        assertEquals(4, new ChunkTimeline(Duration.ofSeconds(3), 2, new MockTickSource(TimeUnit.MILLISECONDS)).getRingSize());
+    }
+
+    @Test
+    public void testIdleGapLargerThanRing() {
+        final MockTickSource tickSource = new MockTickSource(TimeUnit.MILLISECONDS);
+        final ChunkTimeline timeline = new ChunkTimeline(Duration.ofSeconds(3), 3, tickSource);
+
+        final List<long[]> rotations = new ArrayList<>();
+        timeline.register((fromEpoch, toEpoch) -> rotations.add(new long[]{fromEpoch, toEpoch}));
+
+        tickSource.move(1500);
+        assertEquals(1, timeline.getActualSlot().epoch);
+
+        // idle for 100 chunks: one rotation that recycles every slot once
+        tickSource.move(100_000);
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        assertEquals(101, slot.epoch);
+        assertEquals(102_000, slot.expirationTime);
+        assertArrayEquals(new long[]{1, 101}, rotations.get(rotations.size() - 1));
+        for (long epoch = 97; epoch <= 101; epoch++) {
+            assertTrue(timeline.contains(epoch));
+        }
+        assertFalse(timeline.contains(1));
+        assertFalse(timeline.contains(96));
+    }
+
+    @Test
+    public void testFirstRecycledEpoch() {
+        final ChunkTimeline timeline = new ChunkTimeline(Duration.ofSeconds(3), 3, new MockTickSource(TimeUnit.MILLISECONDS));
+
+        assertEquals(11, timeline.getFirstRecycledEpoch(10, 11));
+        assertEquals(11, timeline.getFirstRecycledEpoch(10, 14));
+        // ring has 5 slots, so at most 5 epochs are recycled
+        assertEquals(11, timeline.getFirstRecycledEpoch(10, 15));
+        assertEquals(12, timeline.getFirstRecycledEpoch(10, 16));
+        assertEquals(96, timeline.getFirstRecycledEpoch(10, 100));
+    }
+
+    @Test
+    public void testOperationsDoNotWaitForRotation() throws InterruptedException {
+        final MockTickSource tickSource = new MockTickSource(TimeUnit.MILLISECONDS);
+        final ChunkTimeline timeline = new ChunkTimeline(Duration.ofSeconds(3), 3, tickSource);
+
+        final CountDownLatch rotationStarted = new CountDownLatch(1);
+        final CountDownLatch finishRotation = new CountDownLatch(1);
+        timeline.register((fromEpoch, toEpoch) -> {
+            rotationStarted.countDown();
+            try {
+                finishRotation.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        tickSource.move(1000);
+        final Thread rotatingThread = new Thread(timeline::getActualSlot);
+        rotatingThread.start();
+        assertTrue(rotationStarted.await(10, TimeUnit.SECONDS));
+
+        // rotating thread is stuck, other threads use expired chunk
+        final ChunkTimeline.Slot slot = timeline.getActualSlot();
+        assertEquals(0, slot.epoch);
+        assertTrue(slot.isExpired(tickSource.currentTick()));
+
+        finishRotation.countDown();
+        rotatingThread.join();
+        assertEquals(1, timeline.getActualSlot().epoch);
+    }
+}
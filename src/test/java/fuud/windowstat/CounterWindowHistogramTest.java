@@ -1,12 +1,82 @@
 package fuud.windowstat;
 
 import fuud.windowstat.util.MockClock;
+import org.junit.Test;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
 
 public class CounterWindowHistogramTest extends WindowHistogramTest {
 
     protected WindowHistogram createHistogram(long[] bucketOffsets, Duration windowSize, int chunkCount, MockClock clock) {
         return new CounterWindowHistogram(bucketOffsets, windowSize, chunkCount, clock);
     }
+
+    @Test
+    public void testPartsRotateTogether() {
+        final MockClock clock = new MockClock();
+        final CounterWindowHistogram histogram = new CounterWindowHistogram(new long[]{0, 10, 20}, Duration.ofSeconds(3), 3, clock);
+
+        // one value per chunk: value of chunk N is N * 5, so it goes to bucket 1, 2 or 3
+        for (int chunk = 0; chunk < 10; chunk++) {
+            histogram.add(chunk * 5);
+            // the first operation after chunk boundary is a read of min-max only
+            clock.move(1000);
+            final long max = histogram.getMax();
+
+            final WindowHistogram.Snapshot snapshot = histogram.getSnapshot();
+            final int firstChunk = Math.max(0, chunk - 1);
+            long expectedTotal = 0;
+            for (int i = firstChunk; i <= chunk; i++) {
+                expectedTotal += i * 5;
+            }
+
+            assertEquals(chunk * 5, max);
+            assertEquals(firstChunk * 5, snapshot.getMin());
+            assertEquals(chunk - firstChunk + 1, snapshot.getSamplesCount());
+            assertEquals(snapshot.getSamplesCount(), histogram.getSamplesCount());
+            assertEquals(expectedTotal, snapshot.getTotalSum());
+
+            long bucketsSum = 0;
+            for (int bucket = 0; bucket < snapshot.getBucketsCount(); bucket++) {
+                bucketsSum += snapshot.getBucketValue(bucket);
+            }
+            assertEquals(snapshot.getSamplesCount(), bucketsSum);
+        }
+    }
+
+    @Test
+    public void testVarianceThroughStaleSlotDuringRotation() {
+        final MockClock clock = new MockClock();
+        final CounterWindowHistogram histogram = new CounterWindowHistogram(new long[]{0}, Duration.ofSeconds(3), 3, clock);
+
+        // low and middle limbs of chunk carry, so sealing normalizes them
+        final long value = 0xFFFFFFFFL;
+        final long count = Integer.MAX_VALUE;
+        for (int i = 0; i < 2; i++) {
+            histogram.add(value, count);
+            histogram.add(-value, count);
+        }
+        clock.move(1000);
+        histogram.add(1);
+
+        // thread that sees this slot after it expires reads the chunk being sealed as its previous chunk
+        final ChunkTimeline.Slot staleSlot = histogram.getTimeline().getActualSlot();
+        final double variance = histogram.getVariance(staleSlot);
+        assertEquals((double) value * value, variance, value * (double) value * 1e-9);
+
+        final List<Double> variancesDuringRotation = new ArrayList<>();
+        // rotatables are called in registration order, so parts of histogram are already rotated
+        histogram.getTimeline().register((fromEpoch, toEpoch) -> variancesDuringRotation.add(histogram.getVariance(staleSlot)));
+        clock.move(1000);
+        histogram.getSamplesCount();
+
+        assertEquals(1, variancesDuringRotation.size());
+        assertEquals(variance, variancesDuringRotation.get(0), 0);
+        assertEquals(variance, histogram.getVariance(staleSlot), 0);
+        assertEquals(variance, histogram.getVariance(), 0);
+    }
 }
@@ -0,0 +1,134 @@
+package fuud.windowstat;
+
+import fuud.windowstat.util.MockClock;
+import org.junit.Test;
+
+import java.nio.LongBuffer;
+import java.time.Duration;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks default methods of {@link WindowHistogram} with implementation that has only methods without defaults
+ */
+public class DefaultMethodsWindowHistogramTest {
+    @Test
+    public void testDefaultMethods() {
+        final MockClock clock = new MockClock();
+        final long[] bucketOffsets = {0, 2, 4, 6};
+        final WindowHistogram expected = new CompactWindowHistogram(bucketOffsets, Duration.ofSeconds(6), 3, clock);
+        final WindowHistogram actual = withoutDefaults(new CompactWindowHistogram(bucketOffsets, Duration.ofSeconds(6), 3, clock));
+
+        for (WindowHistogram histogram : new WindowHistogram[]{expected, actual}) {
+            histogram.add(-1);
+            histogram.add(3, 2);
+            histogram.add(100, 0);
+            histogram.addAll(new long[]{100, 1, 5, 7}, 1, 2);
+            final LongBuffer buffer = LongBuffer.wrap(new long[]{100, 5, 9});
+            buffer.position(1);
+            histogram.addAll(buffer);
+            assertEquals(3, buffer.position());
+        }
+
+        assertEquals(expected.getSamplesCount(), actual.getSamplesCount());
+        assertEquals(expected.getVariance(), actual.getVariance(), 1e-9);
+        assertEquals(expected.getStdDev(), actual.getStdDev(), 1e-9);
+
+        final double[] percentiles = {0.9, 0.1, 0.5, 1};
+        final long[] expectedPercentiles = new long[percentiles.length];
+        final long[] actualPercentiles = new long[percentiles.length];
+        expected.getPercentiles(percentiles, expectedPercentiles);
+        actual.getPercentiles(percentiles, actualPercentiles);
+        assertArrayEquals(expectedPercentiles, actualPercentiles);
+        expected.getInterpolatedPercentiles(percentiles, expectedPercentiles);
+        actual.getInterpolatedPercentiles(percentiles, actualPercentiles);
+        assertArrayEquals(expectedPercentiles, actualPercentiles);
+        assertEquals(expected.getInterpolatedPercentile(0.5), actual.getInterpolatedPercentile(0.5));
+
+        final WindowHistogram.Snapshot expectedSnapshot = new WindowHistogram.Snapshot(bucketOffsets);
+        final WindowHistogram.Snapshot actualSnapshot = new WindowHistogram.Snapshot(bucketOffsets);
+        for (int i = 0; i < 2; i++) {
+            // reused snapshot is replaced, then merged
+            expected.snapshotInto(expectedSnapshot);
+            actual.snapshotInto(actualSnapshot);
+            assertSameSnapshot(expectedSnapshot, actualSnapshot);
+            expected.mergeInto(expectedSnapshot);
+            actual.mergeInto(actualSnapshot);
+            assertSameSnapshot(expectedSnapshot, actualSnapshot);
+        }
+        assertEquals(14, actualSnapshot.getSamplesCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAddWithNegativeCount() {
+        withoutDefaults(new CompactWindowHistogram(new long[]{0}, Duration.ofSeconds(6), 3, new MockClock())).add(1, -1);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testAddAllOutOfArray() {
+        withoutDefaults(new CompactWindowHistogram(new long[]{0}, Duration.ofSeconds(6), 3, new MockClock())).addAll(new long[2], 1, 2);
+    }
+
+    private static void assertSameSnapshot(WindowHistogram.Snapshot expected, WindowHistogram.Snapshot actual) {
+        assertEquals(expected.getSamplesCount(), actual.getSamplesCount());
+        assertEquals(expected.getMin(), actual.getMin());
+        assertEquals(expected.getMax(), actual.getMax());
+        assertEquals(expected.getTotalSum(), actual.getTotalSum());
+        assertEquals(expected.getSumOfSquares(), actual.getSumOfSquares(), 0);
+        for (int i = 0; i < expected.getBucketsCount(); i++) {
+            assertEquals(expected.getBucketValue(i), actual.getBucketValue(i));
+        }
+    }
+
+    /**
+     * @return histogram that implements only methods without defaults by delegation
+     */
+    private static WindowHistogram withoutDefaults(WindowHistogram histogram) {
+        return new WindowHistogram() {
+            @Override
+            public long getMax() {
+                return histogram.getMax();
+            }
+
+            @Override
+            public long getMin() {
+                return histogram.getMin();
+            }
+
+            @Override
+            public long getMean() {
+                return histogram.getMean();
+            }
+
+            @Override
+            public long getPercentile(double percentile) {
+                return histogram.getPercentile(percentile);
+            }
+
+            @Override
+            public boolean isOverflow() {
+                return histogram.isOverflow();
+            }
+
+            @Override
+            public boolean isUnderflow() {
+                return histogram.isUnderflow();
+            }
+
+            @Override
+            public Snapshot getSnapshot() {
+                return histogram.getSnapshot();
+            }
+
+            @Override
+            public long getSamplesCount() {
+                return histogram.getSamplesCount();
+            }
+
+            @Override
+            public void add(long value) {
+                histogram.add(value);
+            }
+        };
+    }
+}
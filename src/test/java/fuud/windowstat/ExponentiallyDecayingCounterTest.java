@@ -0,0 +1,107 @@
+package fuud.windowstat;
+
+import fuud.windowstat.util.MockClock;
+import fuud.windowstat.util.MockTickSource;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class ExponentiallyDecayingCounterTest {
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void testDecay() {
+        final MockClock clock = new MockClock();
+        final ExponentiallyDecayingCounter counter = new ExponentiallyDecayingCounter(Duration.ofSeconds(1), clock);
+        assertEquals(0, counter.getSum(), DELTA);
+
+        counter.add(100);
+        assertEquals(100, counter.getSum(), DELTA);
+
+        clock.move(1000);
+        assertEquals(50, counter.getSum(), DELTA);
+
+        counter.add(50);
+        clock.move(500);
+        assertEquals(100 / Math.sqrt(2), counter.getSum(), DELTA);
+
+        clock.move(1500);
+        assertEquals(25, counter.getSum(), DELTA);
+    }
+
+    @Test
+    public void testRate() {
+        final MockTickSource tickSource = new MockTickSource(TimeUnit.MILLISECONDS);
+        final ExponentiallyDecayingCounter counter = new ExponentiallyDecayingCounter(Duration.ofSeconds(1), tickSource);
+
+        // 100 per second for 30 half-lives
+        for (int i = 0; i < 30_000; i++) {
+            tickSource.move(1);
+            if (i % 10 == 0) {
+                counter.add(1);
+            }
+        }
+        assertEquals(100, counter.getRate(TimeUnit.SECONDS), 1);
+        assertEquals(6000, counter.getRate(TimeUnit.MINUTES), 60);
+
+        // rate follows step change smoothly: half of difference in half-life
+        tickSource.move(1000);
+        assertEquals(50, counter.getRate(TimeUnit.SECONDS), 1);
+    }
+
+    @Test
+    public void testRescale() {
+        final MockTickSource tickSource = new MockTickSource(TimeUnit.MILLISECONDS);
+        final ExponentiallyDecayingCounter counter = new ExponentiallyDecayingCounter(Duration.ofMillis(10), tickSource);
+
+        // landmark is moved every 320 ms
+        double expected = 0;
+        for (int i = 0; i < 1000; i++) {
+            tickSource.move(7);
+            expected = expected * Math.pow(2, -0.7) + i;
+            counter.add(i);
+            assertEquals(expected, counter.getSum(), expected * 1e-9);
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void testAddDuringRescaleByAnotherThread() {
+        final MockTickSource tickSource = new MockTickSource(TimeUnit.MILLISECONDS);
+        final ExponentiallyDecayingCounter counter = new ExponentiallyDecayingCounter(Duration.ofMillis(10), tickSource);
+
+        counter.add(100);
+        tickSource.move(400);
+        // another thread won the race for rescale, writer does not wait for it
+        counter.rescaleInProgress.set(true);
+        counter.add(100);
+        assertEquals(100 + 100 * Math.pow(2, -40), counter.getSum(), DELTA);
+
+        // measurement added to old landmark is kept after rescale
+        counter.rescaleInProgress.set(false);
+        counter.add(100);
+        assertEquals(200 + 100 * Math.pow(2, -40), counter.getSum(), DELTA);
+        tickSource.move(10);
+        assertEquals(100 + 50 * Math.pow(2, -40), counter.getSum(), DELTA);
+    }
+
+    @Test
+    public void testAddAfterLongIdle() {
+        final MockTickSource tickSource = new MockTickSource(TimeUnit.MILLISECONDS);
+        final ExponentiallyDecayingCounter counter = new ExponentiallyDecayingCounter(Duration.ofMillis(1), tickSource);
+
+        counter.add(100);
+        tickSource.move(TimeUnit.DAYS.toMillis(365));
+        assertEquals(0, counter.getSum(), DELTA);
+
+        counter.add(100);
+        assertEquals(100, counter.getSum(), DELTA);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHalfLifeShorterThanTick() {
+        new ExponentiallyDecayingCounter(Duration.ofNanos(100), new MockClock());
+    }
+}
@@ -0,0 +1,95 @@
+package fuud.windowstat;
+
+import fuud.windowstat.util.MockClock;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LogLinearWindowHistogramTest {
+
+    @Test
+    public void testPercentilesHaveBoundedRelativeError() {
+        final MockClock clock = new MockClock();
+        final long highestTrackableValue = TimeUnit.MINUTES.toNanos(1);
+        final LogLinearWindowHistogram histogram = new LogLinearWindowHistogram(highestTrackableValue, 2, Duration.ofSeconds(3), 3, TickSource.of(clock));
+
+        // latencies from nanoseconds to a minute
+        final Random random = new Random(0);
+        final long[] values = new long[10_000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.pow(highestTrackableValue, random.nextDouble());
+            histogram.add(values[i]);
+        }
+        Arrays.sort(values);
+
+        final double[] percentiles = {0.0, 0.1, 0.5, 0.9, 0.99, 0.999, 1.0};
+        final long[] out = new long[percentiles.length];
+        histogram.getPercentiles(percentiles, out);
+        for (int i = 0; i < percentiles.length; i++) {
+            final long expected = values[(int) Math.max(0, WindowHistogram.Snapshot.getCountUnderPercentile(values.length, percentiles[i]) - 1)];
+            assertEquals(out[i], histogram.getPercentile(percentiles[i]));
+            assertTrue(percentiles[i] + ": " + out[i] + " vs " + expected, out[i] <= expected);
+            assertTrue(percentiles[i] + ": " + out[i] + " vs " + expected, out[i] >= expected * (1 - 0.01));
+        }
+        assertEquals(values[0], histogram.getPercentile(0.0));
+    }
+
+    @Test
+    public void testOverflowIsReportedAsMax() {
+        final MockClock clock = new MockClock();
+        final LogLinearWindowHistogram histogram = new LogLinearWindowHistogram(1000, 2, Duration.ofSeconds(3), 3, TickSource.of(clock));
+
+        assertEquals(0, histogram.getPercentile(0.5));
+
+        histogram.add(10);
+        histogram.add(1_000_000);
+        histogram.add(2_000_000);
+        assertTrue(histogram.isOverflow());
+        assertEquals(10, histogram.getPercentile(0.3));
+        assertEquals(2_000_000, histogram.getPercentile(0.99));
+
+        histogram.add(-5);
+        assertTrue(histogram.isUnderflow());
+        assertEquals(-5, histogram.getPercentile(0.0));
+
+        clock.move(3000);
+        assertEquals(0, histogram.getPercentile(0.99));
+    }
+
+    @Test
+    public void testSnapshotPercentilesAreBoundedByMinMax() {
+        final MockClock clock = new MockClock();
+        final LogLinearWindowHistogram histogram = new LogLinearWindowHistogram(1000, 2, Duration.ofSeconds(3), 3, TickSource.of(clock));
+        histogram.add(-5);
+        histogram.add(10);
+        histogram.add(2_000_000);
+
+        final WindowHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(-5, snapshot.getPercentile(0.0));
+        assertEquals(10, snapshot.getPercentile(0.67));
+        assertEquals(2_000_000, snapshot.getPercentile(1.0));
+        final long[] out = new long[2];
+        snapshot.getPercentiles(new double[]{0.0, 1.0}, out);
+        assertArrayEquals(new long[]{-5, 2_000_000}, out);
+
+        // merged snapshot and snapshot filled by snapshotInto are bounded as well
+        final WindowHistogram.Snapshot merged = new WindowHistogram.Snapshot(snapshot.getBucketOffsets()).merge(snapshot);
+        assertEquals(2_000_000, merged.getPercentile(1.0));
+        final WindowHistogram.Snapshot reused = new WindowHistogram.Snapshot(snapshot.getBucketOffsets());
+        histogram.snapshotInto(reused);
+        assertEquals(-5, reused.getPercentile(0.0));
+
+        // snapshot that is refilled by histogram without bounds reports overflow as usual
+        final CompactWindowHistogram compact = new CompactWindowHistogram(BucketLayout.of(snapshot.getBucketOffsets()), Duration.ofSeconds(3), 3, TickSource.of(clock));
+        compact.add(2_000_000);
+        compact.snapshotInto(reused);
+        assertEquals(Long.MAX_VALUE, reused.getPercentile(1.0));
+    }
+}
@@ -0,0 +1,141 @@
+package fuud.windowstat;
+
+import fuud.windowstat.util.MockClock;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class OffHeapWindowHistogramTest extends WindowHistogramTest {
+
+    protected WindowHistogram createHistogram(long[] bucketOffsets, Duration windowSize, int chunkCount, MockClock clock) {
+        return new OffHeapWindowHistogram(BucketLayout.of(bucketOffsets), windowSize, chunkCount, TickSource.of(clock));
+    }
+
+    @Test
+    public void testHistogramsShareBuffer() {
+        final MockClock clock = new MockClock();
+        final BucketLayout layout = BucketLayout.linear(0, 10, 10);
+        final int size = OffHeapWindowHistogram.getRequiredBufferSize(layout, 3);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(size * 2);
+
+        final WindowHistogram first = new OffHeapWindowHistogram(layout, Duration.ofSeconds(3), 3, TickSource.of(clock), ChunkAlignment.CREATION_TIME, buffer);
+        buffer.position(size);
+        final WindowHistogram second = new OffHeapWindowHistogram(layout, Duration.ofSeconds(3), 3, TickSource.of(clock), ChunkAlignment.CREATION_TIME, buffer);
+
+        for (int i = 0; i < 5; i++) {
+            first.add(15);
+            second.add(55);
+            second.add(56);
+            clock.move(1000);
+        }
+
+        // window contains two last chunks with values and actual empty chunk
+        assertEquals(2, first.getSamplesCount());
+        assertEquals(4, second.getSamplesCount());
+        assertEquals(15, first.getMax());
+        assertEquals(55, second.getMin());
+        assertEquals(6, first.getSnapshot().merge(second.getSnapshot()).getSamplesCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBufferIsTooSmall() {
+        final BucketLayout layout = BucketLayout.linear(0, 10, 10);
+        final ByteBuffer buffer = ByteBuffer.allocate(OffHeapWindowHistogram.getRequiredBufferSize(layout, 3) - 1);
+        new OffHeapWindowHistogram(layout, Duration.ofSeconds(3), 3, TickSource.of(new MockClock()), ChunkAlignment.CREATION_TIME, buffer);
+    }
+
+    @Test
+    public void testReattach() {
+        final MockClock clock = new MockClock();
+        final BucketLayout layout = BucketLayout.linear(0, 10, 10);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(OffHeapWindowHistogram.getRequiredBufferSize(layout, 3));
+
+        final OffHeapWindowHistogram histogram = new OffHeapWindowHistogram(layout, Duration.ofSeconds(3), 3, TickSource.of(clock), ChunkAlignment.CREATION_TIME, buffer, true);
+        for (int i = 0; i < 3; i++) {
+            histogram.add(15 + i * 10);
+            clock.move(1000);
+        }
+        histogram.add(45);
+        histogram.flush();
+
+        // restart within the same chunk: all values are kept
+        final OffHeapWindowHistogram restarted = new OffHeapWindowHistogram(layout, Duration.ofSeconds(3), 3, TickSource.of(clock), ChunkAlignment.CREATION_TIME, buffer, true);
+        assertEquals(3, restarted.getSamplesCount());
+        assertEquals(25, restarted.getMin());
+        assertEquals(45, restarted.getMax());
+        assertEquals(105, restarted.getSnapshot().getTotalSum());
+
+        // restart after one more chunk: the oldest value is expired
+        clock.move(1000);
+        final OffHeapWindowHistogram restartedLater = new OffHeapWindowHistogram(layout, Duration.ofSeconds(3), 3, TickSource.of(clock), ChunkAlignment.CREATION_TIME, buffer, true);
+        assertEquals(2, restartedLater.getSamplesCount());
+        assertEquals(35, restartedLater.getMin());
+        restartedLater.add(55);
+        assertEquals(3, restartedLater.getSamplesCount());
+
+        // restart after window: all values are expired
+        clock.move(10_000);
+        final OffHeapWindowHistogram restartedAfterWindow = new OffHeapWindowHistogram(layout, Duration.ofSeconds(3), 3, TickSource.of(clock), ChunkAlignment.CREATION_TIME, buffer, true);
+        assertEquals(0, restartedAfterWindow.getSamplesCount());
+    }
+
+    @Test
+    public void testReattachWithOtherConfiguration() {
+        final MockClock clock = new MockClock();
+        final BucketLayout layout = BucketLayout.linear(0, 10, 10);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(OffHeapWindowHistogram.getRequiredBufferSize(layout, 3));
+
+        final OffHeapWindowHistogram histogram = new OffHeapWindowHistogram(layout, Duration.ofSeconds(3), 3, TickSource.of(clock), ChunkAlignment.CREATION_TIME, buffer, true);
+        histogram.add(15);
+        histogram.flush();
+
+        final BucketLayout otherLayout = BucketLayout.linear(0, 20, 10);
+        assertEquals(0, new OffHeapWindowHistogram(otherLayout, Duration.ofSeconds(3), 3, TickSource.of(clock), ChunkAlignment.CREATION_TIME, buffer, true).getSamplesCount());
+        assertEquals(0, new OffHeapWindowHistogram(layout, Duration.ofSeconds(6), 3, TickSource.of(clock), ChunkAlignment.CREATION_TIME, buffer, true).getSamplesCount());
+    }
+
+    @Test
+    public void testMappedFile() throws Exception {
+        final MockClock clock = new MockClock();
+        final BucketLayout layout = BucketLayout.linear(0, 10, 10);
+        final Path file = Files.createTempFile("window-histogram", ".bin");
+        try {
+            final OffHeapWindowHistogram histogram = OffHeapWindowHistogram.mapped(file, layout, Duration.ofSeconds(3), 3, TickSource.of(clock));
+            histogram.add(15);
+            clock.move(1000);
+            histogram.add(25);
+            histogram.flush();
+
+            clock.move(500);
+            final OffHeapWindowHistogram restarted = OffHeapWindowHistogram.mapped(file, layout, Duration.ofSeconds(3), 3, TickSource.of(clock));
+            assertEquals(2, restarted.getSamplesCount());
+            assertEquals(25, restarted.getMax());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testMappedFileWithNanoTimeIsRejected() throws Exception {
+        final Path file = Files.createTempFile("window-histogram", ".bin");
+        Files.delete(file);
+        try {
+            OffHeapWindowHistogram.mapped(file, BucketLayout.linear(0, 10, 10), Duration.ofSeconds(3), 3, TickSource.nanoTime());
+            fail();
+        } catch (IllegalArgumentException e) {
+            // ticks of nano time are not comparable between processes
+        }
+        assertFalse(Files.exists(file));
+
+        // not persisted histogram can use nano time
+        final ByteBuffer buffer = ByteBuffer.allocate(OffHeapWindowHistogram.getRequiredBufferSize(BucketLayout.linear(0, 10, 10), 3));
+        new OffHeapWindowHistogram(BucketLayout.linear(0, 10, 10), Duration.ofSeconds(3), 3, TickSource.nanoTime(), ChunkAlignment.CREATION_TIME, buffer, false).add(1);
+    }
+}
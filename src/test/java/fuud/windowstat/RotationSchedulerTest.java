@@ -0,0 +1,162 @@
+package fuud.windowstat;
+
+import fuud.windowstat.util.MockClock;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+
+public class RotationSchedulerTest {
+
+    @Test
+    public void testSchedulerRotatesWindowStats() throws Exception {
+        final MockClock clock = new MockClock();
+        final WindowCounter counter = new WindowCounter(Duration.ofSeconds(3), 3, TickSource.of(clock));
+        final WindowHistogram histogram = new CompactWindowHistogram(BucketLayout.linear(0, 10, 10), Duration.ofSeconds(3), 3, TickSource.of(clock));
+
+        try (RotationScheduler scheduler = new RotationScheduler()) {
+            scheduler.schedule(counter);
+            scheduler.schedule(histogram);
+            counter.add(100);
+            histogram.add(15);
+
+            clock.move(5000);
+            // actual slot can be recycled in place, so rotation is finished when chunks are reset, not when epoch is changed
+            waitUntil(() -> counter.getSum() == 0, "Counter was not rotated");
+            waitUntil(() -> histogram.getSamplesCount() == 0, "Histogram was not rotated");
+            assertEquals(5, counter.getTimeline().peekActualSlot().epoch);
+            assertEquals(5, ((CompactWindowHistogram) histogram).getTimeline().peekActualSlot().epoch);
+
+            counter.add(200);
+            assertEquals(200, counter.getSum());
+        }
+    }
+
+    @Test
+    public void testSleepUntilNearestExpiration() {
+        final MockClock clock = new MockClock();
+        final WindowCounter counter = new WindowCounter(Duration.ofMillis(300), 3, TickSource.of(clock));
+        final WindowMinMax minMax = new WindowMinMax(Duration.ofMillis(600), 3, TickSource.of(clock));
+
+        try (RotationScheduler scheduler = new RotationScheduler()) {
+            scheduler.schedule(counter);
+            scheduler.schedule(minMax);
+
+            // counter chunk expires at 300, min-max chunk at 400
+            clock.setTime(250);
+            assertEquals(TimeUnit.MILLISECONDS.toNanos(50), scheduler.rotateExpired());
+            clock.setTime(320);
+            assertEquals(TimeUnit.MILLISECONDS.toNanos(80), scheduler.rotateExpired());
+        }
+    }
+
+    @Test
+    public void testSleepUntilNearestExpirationWithSharedTickSource() {
+        final MockClock clock = new MockClock();
+        final TickSource tickSource = TickSource.of(clock);
+        final WindowCounter first = new WindowCounter(Duration.ofMillis(300), 3, tickSource);
+        final WindowCounter second = new WindowCounter(Duration.ofMillis(600), 3, tickSource);
+        final WindowCounter third = new WindowCounter(Duration.ofMillis(900), 3, tickSource);
+
+        try (RotationScheduler scheduler = new RotationScheduler()) {
+            scheduler.schedule(third);
+            scheduler.schedule(second);
+            scheduler.schedule(first);
+
+            // chunks expire at 100, 200 and 300
+            clock.setTime(150);
+            assertEquals(TimeUnit.MILLISECONDS.toNanos(50), scheduler.rotateExpired());
+            clock.setTime(250);
+            assertEquals(TimeUnit.MILLISECONDS.toNanos(50), scheduler.rotateExpired());
+            assertEquals(2, first.getTimeline().peekActualSlot().epoch);
+            assertEquals(1, second.getTimeline().peekActualSlot().epoch);
+            assertEquals(0, third.getTimeline().peekActualSlot().epoch);
+        }
+    }
+
+    @Test
+    public void testWindowStatIsScheduledOnce() {
+        final MockClock clock = new MockClock();
+        final WindowCounter counter = new WindowCounter(Duration.ofSeconds(3), 3, TickSource.of(clock));
+
+        try (RotationScheduler first = new RotationScheduler(); RotationScheduler second = new RotationScheduler()) {
+            first.schedule(counter);
+            // ignored, counter stays rotated by the first scheduler
+            second.schedule(counter);
+            first.close();
+
+            counter.add(100);
+            clock.move(5000);
+            assertEquals(0, counter.getSum());
+        }
+    }
+
+    @Test
+    public void testWindowStatRotatesItselfAfterClose() {
+        final MockClock clock = new MockClock();
+        final WindowCounter counter = new WindowCounter(Duration.ofSeconds(3), 3, TickSource.of(clock));
+
+        final RotationScheduler scheduler = new RotationScheduler();
+        scheduler.schedule(counter);
+        scheduler.close();
+
+        counter.add(100);
+        clock.move(5000);
+        assertEquals(0, counter.getSum());
+    }
+
+    @Test
+    public void testScheduleConcurrentWithClose() throws InterruptedException {
+        final MockClock clock = new MockClock();
+        for (int i = 0; i < 100; i++) {
+            final List<WindowCounter> counters = new CopyOnWriteArrayList<>();
+            final RotationScheduler scheduler = new RotationScheduler();
+            final Thread[] threads = new Thread[4];
+            for (int j = 0; j < threads.length; j++) {
+                threads[j] = new Thread(() -> {
+                    try {
+                        while (true) {
+                            final WindowCounter counter = new WindowCounter(Duration.ofSeconds(3), 3, TickSource.of(clock));
+                            counters.add(counter);
+                            scheduler.schedule(counter);
+                            // duplicate is ignored
+                            scheduler.schedule(counter);
+                        }
+                    } catch (IllegalStateException e) {
+                        // scheduler is closed
+                    }
+                });
+                threads[j].start();
+            }
+            Thread.yield();
+            scheduler.close();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            // counters rotate themselves whether they were scheduled before close or not
+            for (WindowCounter counter : counters) {
+                counter.add(100);
+            }
+            clock.move(5000);
+            for (WindowCounter counter : counters) {
+                assertEquals(0, counter.getSum());
+            }
+        }
+    }
+
+    private static void waitUntil(BooleanSupplier condition, String message) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError(message);
+            }
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package fuud.windowstat;
+
+import fuud.windowstat.util.MockClock;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+
+public class StripedCompactWindowHistogramTest extends WindowHistogramTest {
+
+    protected WindowHistogram createHistogram(long[] bucketOffsets, Duration windowSize, int chunkCount, MockClock clock) {
+        return new CompactWindowHistogram(BucketLayout.of(bucketOffsets), windowSize, chunkCount, TickSource.of(clock), true);
+    }
+
+    @Test
+    public void testConcurrentAddToSameBucket() throws InterruptedException {
+        final MockClock clock = new MockClock();
+        final WindowHistogram histogram = createHistogram(new long[]{0, 10, 20}, Duration.ofSeconds(6), 3, clock);
+
+        final int threadsCount = 8;
+        final int addsPerThread = 100_000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[threadsCount];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                for (int j = 0; j < addsPerThread; j++) {
+                    histogram.add(15);
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        final WindowHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(threadsCount * addsPerThread, snapshot.getSamplesCount());
+        assertEquals(threadsCount * addsPerThread, snapshot.getBucketValue(2));
+
+        // stripes are reset together with chunk
+        clock.move(6000);
+        histogram.add(5);
+        clock.move(2000);
+        assertEquals(1, histogram.getSamplesCount());
+        assertEquals(1, histogram.getSnapshot().getBucketValue(1));
+    }
+}
@@ -0,0 +1,31 @@
+package fuud.windowstat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StripingTest {
+    @Test
+    public void testRehashVisitsAllStripes() throws Exception {
+        final boolean[] visited = new boolean[Striping.STRIPES_COUNT];
+        visited[Striping.getStripe()] = true;
+        for (int i = 0; i < 100 * Striping.STRIPES_COUNT; i++) {
+            final int stripe = Striping.rehashStripe();
+            assertTrue(stripe >= 0 && stripe < Striping.STRIPES_COUNT);
+            assertEquals(stripe, Striping.getStripe());
+            visited[stripe] = true;
+        }
+        for (boolean stripeVisited : visited) {
+            assertTrue(stripeVisited);
+        }
+    }
+
+    @Test
+    public void testStripeIsKeptWithoutRehash() throws Exception {
+        final int stripe = Striping.getStripe();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(stripe, Striping.getStripe());
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package fuud.windowstat;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SumOfSquaresTest {
+    @Test
+    public void testLimbsOfSquare() throws Exception {
+        assertLimbs(0);
+        assertLimbs(1);
+        assertLimbs(-1);
+        assertLimbs(0xFFFF);
+        assertLimbs(0x10000);
+        assertLimbs(0xFFFFFFFFL);
+        assertLimbs(0x100000000L);
+        assertLimbs(Long.MAX_VALUE);
+        assertLimbs(Long.MIN_VALUE);
+        assertLimbs(Long.MIN_VALUE + 1);
+
+        final Random random = new Random(0);
+        for (int i = 0; i < 10000; i++) {
+            assertLimbs(random.nextLong());
+            assertLimbs(random.nextLong() >> random.nextInt(64));
+        }
+    }
+
+    @Test
+    public void testSumOfSquaresDoesNotOverflow() throws Exception {
+        final long[] values = {Long.MAX_VALUE, Long.MIN_VALUE, 3_000_000_000L, -3_000_000_000L, 12345};
+        long low = 0;
+        long middle = 0;
+        long high = 0;
+        BigInteger expected = BigInteger.ZERO;
+        for (long value : values) {
+            low += SumOfSquares.getLowLimb(value);
+            middle += SumOfSquares.getMiddleLimb(value);
+            high += SumOfSquares.getHighLimb(value);
+            expected = expected.add(BigInteger.valueOf(value).pow(2));
+        }
+        assertEquals(expected, toBigInteger(low, middle, high));
+        assertEquals(expected.doubleValue(), SumOfSquares.toDouble(low, middle, high), expected.doubleValue() * 1e-15);
+    }
+
+    @Test
+    public void testLimbsOfWeightedSquare() throws Exception {
+        final long[] values = {1, -1, 0xFFFF, 0xFFFFFFFFL, 3_000_000_000L, Integer.MIN_VALUE};
+        for (long value : values) {
+            for (long count : new long[]{1, 2, 0xFFFF, Integer.MAX_VALUE}) {
+                final long low = SumOfSquares.getLowLimb(value, count);
+                final long middle = SumOfSquares.getMiddleLimb(value, count);
+                assertTrue(low >>> 32 == 0);
+                assertTrue(middle >>> 32 == 0);
+                assertEquals(
+                        "square of " + value + " * " + count,
+                        BigInteger.valueOf(value).pow(2).multiply(BigInteger.valueOf(count)),
+                        toBigInteger(low, middle, SumOfSquares.getHighLimb(value, count))
+                );
+            }
+        }
+    }
+
+    @Test
+    public void testNormalizedSumDoesNotOverflow() throws Exception {
+        final long value = 0xFFFFFFFFL;
+        final long count = Integer.MAX_VALUE;
+        final long[] sum = new long[SumOfSquares.LIMBS_COUNT];
+        BigInteger expected = BigInteger.ZERO;
+        for (int i = 0; i < 100; i++) {
+            // unnormalized limbs of chunk, their sum is more than 2^64
+            final long[] chunk = new long[SumOfSquares.LIMBS_COUNT];
+            for (int j = 0; j < 3; j++) {
+                chunk[SumOfSquares.LOW] += SumOfSquares.getLowLimb(value, count);
+                chunk[SumOfSquares.MIDDLE] += SumOfSquares.getMiddleLimb(value, count);
+                chunk[SumOfSquares.HIGH] += SumOfSquares.getHighLimb(value, count);
+                expected = expected.add(BigInteger.valueOf(value).pow(2).multiply(BigInteger.valueOf(count)));
+            }
+            if (i % 2 == 0) {
+                SumOfSquares.normalize(chunk, 0);
+                assertTrue(chunk[SumOfSquares.LOW] >>> 32 == 0);
+                assertTrue(chunk[SumOfSquares.MIDDLE] >>> 32 == 0);
+            }
+            SumOfSquares.add(sum, 0, chunk[SumOfSquares.LOW], chunk[SumOfSquares.MIDDLE], chunk[SumOfSquares.HIGH]);
+        }
+        assertEquals(expected, toBigInteger(sum[SumOfSquares.LOW], sum[SumOfSquares.MIDDLE], sum[SumOfSquares.HIGH]));
+        assertEquals(
+                expected.doubleValue(),
+                SumOfSquares.toDouble(sum[SumOfSquares.LOW], sum[SumOfSquares.MIDDLE], sum[SumOfSquares.HIGH]),
+                expected.doubleValue() * 1e-15
+        );
+    }
+
+    @Test
+    public void testUnsignedLimbsToDouble() throws Exception {
+        assertEquals(0x1p64 - 1, SumOfSquares.toDouble(-1, 0, 0), 0);
+        assertEquals((0x1p64 - 1) * 0x1p32 + 0x1p64, SumOfSquares.toDouble(0, -1, 1), 0);
+    }
+
+    @Test
+    public void testVarianceIsExact() throws Exception {
+        final Random random = new Random(0);
+        for (int i = 0; i < 1000; i++) {
+            // values close to each other, far from each other and near long range bounds
+            final long base = random.nextBoolean() ? random.nextLong() >> random.nextInt(64) : (long) Math.pow(10, random.nextInt(13));
+            final int spread = random.nextInt(62);
+            final int samplesCount = 1 + random.nextInt(100);
+            final long[] limbs = new long[SumOfSquares.LIMBS_COUNT];
+            long totalSum = 0;
+            BigInteger exactTotalSum = BigInteger.ZERO;
+            BigInteger exactSumOfSquares = BigInteger.ZERO;
+            for (int j = 0; j < samplesCount; j++) {
+                final long value = (base >> 7) + (random.nextLong() >> (63 - spread));
+                totalSum += value;
+                exactTotalSum = exactTotalSum.add(BigInteger.valueOf(value));
+                exactSumOfSquares = exactSumOfSquares.add(BigInteger.valueOf(value).pow(2));
+                SumOfSquares.add(limbs, 0, SumOfSquares.getLowLimb(value), SumOfSquares.getMiddleLimb(value), SumOfSquares.getHighLimb(value));
+            }
+            if (!exactTotalSum.equals(BigInteger.valueOf(totalSum)) || exactSumOfSquares.bitLength() > 126) {
+                continue; // total sum overflows long or sum of squares is out of limbs range, see SumOfSquares
+            }
+
+            final BigInteger n = BigInteger.valueOf(samplesCount);
+            final double expected = new BigDecimal(exactSumOfSquares.multiply(n).subtract(exactTotalSum.pow(2)))
+                    .divide(new BigDecimal(n.pow(2)), MathContext.DECIMAL64)
+                    .doubleValue();
+            final double actual = SumOfSquares.getVariance(samplesCount, totalSum, limbs[SumOfSquares.LOW], limbs[SumOfSquares.MIDDLE], limbs[SumOfSquares.HIGH]);
+            assertEquals("variance of " + samplesCount + " samples around " + base, expected, actual, Math.max(expected * 1e-12, 1e-12));
+        }
+    }
+
+    @Test
+    public void testVarianceOfCloseLargeValues() throws Exception {
+        for (long base : new long[]{1_000_000, 1_000_000_000, 1_000_000_000_000L, -1_000_000_000_000L}) {
+            long low = 0;
+            long middle = 0;
+            long high = 0;
+            long totalSum = 0;
+            for (int i = 0; i < 1000; i++) {
+                final long value = base + i % 2;
+                low += SumOfSquares.getLowLimb(value);
+                middle += SumOfSquares.getMiddleLimb(value);
+                high += SumOfSquares.getHighLimb(value);
+                totalSum += value;
+            }
+            assertEquals("variance around " + base, 0.25, SumOfSquares.getVariance(1000, totalSum, low, middle, high), 1e-12);
+        }
+    }
+
+    @Test
+    public void testUnsignedMultiplyHigh() throws Exception {
+        final Random random = new Random(0);
+        final long[] values = {0, 1, -1, Long.MAX_VALUE, Long.MIN_VALUE, 0xFFFFFFFFL, 0x100000000L};
+        for (long a : values) {
+            for (long b : values) {
+                assertMultiplyHigh(a, b);
+            }
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertMultiplyHigh(random.nextLong(), random.nextLong() >>> random.nextInt(64));
+        }
+    }
+
+    @Test
+    public void testFromDouble() throws Exception {
+        for (double value : new double[]{0, 1, 12345, 0x1p53, 0x1p63, 0x1p64 - 2048, 0x1p64, 0x1.fffffffffffffp126, 1e30}) {
+            final long[] limbs = new long[SumOfSquares.LIMBS_COUNT];
+            SumOfSquares.fromDouble(value, limbs, 0);
+            assertTrue(limbs[SumOfSquares.LOW] >>> 32 == 0);
+            assertTrue(limbs[SumOfSquares.MIDDLE] >>> 32 == 0);
+            assertEquals(new BigDecimal(value).toBigInteger(), toBigInteger(limbs[SumOfSquares.LOW], limbs[SumOfSquares.MIDDLE], limbs[SumOfSquares.HIGH]));
+        }
+
+        final long[] limbs = new long[SumOfSquares.LIMBS_COUNT];
+        SumOfSquares.fromDouble(2.5, limbs, 0);
+        assertEquals(2, limbs[SumOfSquares.LOW]);
+
+        for (double value : new double[]{-1, Double.POSITIVE_INFINITY, Double.NaN, 0x1p127}) {
+            try {
+                SumOfSquares.fromDouble(value, limbs, 0);
+                fail("sum of squares " + value + " is accepted");
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+    }
+
+    private static void assertMultiplyHigh(long a, long b) {
+        final BigInteger product = new BigInteger(Long.toUnsignedString(a)).multiply(new BigInteger(Long.toUnsignedString(b)));
+        assertEquals(a + " * " + b, product.shiftRight(64).longValue(), SumOfSquares.unsignedMultiplyHigh(a, b));
+    }
+
+    private static void assertLimbs(long value) {
+        final BigInteger square = BigInteger.valueOf(value).pow(2);
+        final BigInteger actual = toBigInteger(SumOfSquares.getLowLimb(value), SumOfSquares.getMiddleLimb(value), SumOfSquares.getHighLimb(value));
+        assertEquals("square of " + value, square, actual);
+    }
+
+    private static BigInteger toBigInteger(long low, long middle, long high) {
+        return BigInteger.valueOf(high).shiftLeft(64)
+                .add(BigInteger.valueOf(middle).shiftLeft(32))
+                .add(BigInteger.valueOf(low));
+    }
+}
@@ -0,0 +1,116 @@
+package fuud.windowstat;
+
+import fuud.windowstat.util.MockClock;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ThreadLocalWindowHistogramTest extends WindowHistogramTest {
+
+    protected WindowHistogram createHistogram(long[] bucketOffsets, Duration windowSize, int chunkCount, MockClock clock) {
+        return new ThreadLocalWindowHistogram(bucketOffsets, windowSize, chunkCount, TickSource.of(clock));
+    }
+
+    @Test
+    public void testConcurrentWriters() throws InterruptedException {
+        final MockClock clock = new MockClock();
+        final ThreadLocalWindowHistogram histogram = new ThreadLocalWindowHistogram(new long[]{0, 10, 20}, Duration.ofSeconds(6), 3, TickSource.of(clock));
+
+        final int threadsCount = 8;
+        final int addsPerThread = 100_000;
+        final Thread[] threads = new Thread[threadsCount];
+        for (int i = 0; i < threads.length; i++) {
+            final long value = i;
+            threads[i] = new Thread(() -> {
+                final ThreadLocalWindowHistogram.Recorder recorder = histogram.getRecorder();
+                for (int j = 0; j < addsPerThread; j++) {
+                    recorder.add(value + 10);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        final WindowHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(threadsCount * addsPerThread, snapshot.getSamplesCount());
+        assertEquals(threadsCount * addsPerThread, snapshot.getBucketValue(2));
+        assertEquals(10, snapshot.getMin());
+        assertEquals(10 + threadsCount - 1, snapshot.getMax());
+
+        // chunks of terminated threads leave window as usual
+        clock.move(2000);
+        histogram.add(5);
+        assertEquals(threadsCount * addsPerThread + 1, histogram.getSamplesCount());
+        clock.move(4000);
+        assertEquals(1, histogram.getSamplesCount());
+        assertEquals(5, histogram.getMax());
+    }
+
+    @Test
+    public void testReadsReuseArraysOfReaderThread() {
+        final MockClock clock = new MockClock();
+        final ThreadLocalWindowHistogram small = new ThreadLocalWindowHistogram(new long[]{0, 10}, Duration.ofSeconds(6), 3, TickSource.of(clock));
+        final ThreadLocalWindowHistogram large = new ThreadLocalWindowHistogram(BucketLayout.linear(0, 10, 10), Duration.ofSeconds(6), 3, TickSource.of(clock));
+        small.add(5);
+        large.add(15);
+        large.add(95);
+
+        final WindowHistogram.Snapshot snapshot = small.getSnapshot();
+        assertEquals(1, small.getSamplesCount());
+        assertEquals(2, large.getSamplesCount());
+        assertEquals(95, large.getMax());
+        assertEquals(5, small.getMax());
+
+        // snapshot returned to user is not changed by getters
+        assertEquals(1, snapshot.getSamplesCount());
+        assertEquals(5, snapshot.getMax());
+
+        // scratch arrays of reader thread fit histograms of any bucket count
+        final WindowHistogram.Snapshot merged = new WindowHistogram.Snapshot(BucketLayout.linear(0, 10, 10).getBucketOffsets());
+        small.mergeInto(new WindowHistogram.Snapshot(new long[]{0, 10}));
+        large.mergeInto(merged);
+        large.mergeInto(merged);
+        assertEquals(4, merged.getSamplesCount());
+        assertEquals(15, merged.getMin());
+    }
+
+    @Test
+    public void testHistogramIsCollectableWhileWriterThreadIsAlive() throws InterruptedException {
+        final AtomicReference<ThreadLocalWindowHistogram> histogram = new AtomicReference<>(
+                new ThreadLocalWindowHistogram(new long[]{0, 10, 20}, Duration.ofSeconds(6), 3));
+        final WeakReference<ThreadLocalWindowHistogram> reference = new WeakReference<>(histogram.get());
+
+        final CountDownLatch added = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final Thread writer = new Thread(() -> {
+            // writer keeps its thread local value, but not histogram
+            histogram.getAndSet(null).add(15);
+            added.countDown();
+            try {
+                finished.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        writer.start();
+        try {
+            added.await();
+            for (int i = 0; i < 100 && reference.get() != null; i++) {
+                System.gc();
+                Thread.sleep(10);
+            }
+            assertNull(reference.get());
+        } finally {
+            finished.countDown();
+            writer.join();
+        }
+    }
+}
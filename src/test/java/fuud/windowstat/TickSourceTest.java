@@ -0,0 +1,48 @@
+package fuud.windowstat;
+
+import fuud.windowstat.util.MockClock;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TickSourceTest {
+    @Test
+    public void testClockTickSource() throws Exception {
+        MockClock clock = new MockClock();
+        TickSource tickSource = TickSource.of(clock);
+
+        assertEquals(0, tickSource.currentTick());
+        clock.setTime(1500);
+        assertEquals(1500, tickSource.currentTick());
+    }
+
+    @Test
+    public void testCachedTickSourceFollowsCurrentTime() throws Exception {
+        TickSource tickSource = TickSource.cached();
+        assertSame(tickSource, TickSource.cached());
+
+        final long before = System.currentTimeMillis();
+        Thread.sleep(50);
+        final long tick = tickSource.currentTick();
+        final long after = System.currentTimeMillis();
+
+        assertTrue(tick > before);
+        assertTrue(tick <= after);
+    }
+
+    @Test
+    public void testNanoTimeTickSource() throws Exception {
+        TickSource tickSource = TickSource.nanoTime();
+        assertEquals(TimeUnit.NANOSECONDS, tickSource.getTickUnit());
+        assertEquals(TimeUnit.MILLISECONDS, TickSource.of(new MockClock()).getTickUnit());
+        assertEquals(TimeUnit.MILLISECONDS, TickSource.cached().getTickUnit());
+
+        final long before = System.nanoTime();
+        final long tick = tickSource.currentTick();
+        final long after = System.nanoTime();
+        assertTrue(tick >= before);
+        assertTrue(tick <= after);
+    }
+}
@@ -37,6 +37,22 @@ public class WindowCounterBenchmark {
         public final WindowCounter counter = new WindowCounter(Duration.ofSeconds(3), 3, Clock.systemDefaultZone());
     }
 
+    @State(Scope.Group)
+    public static class ScheduledCounterState {
+        public final WindowCounter counter = new WindowCounter(Duration.ofSeconds(3), 3, Clock.systemDefaultZone());
+        private final RotationScheduler scheduler = new RotationScheduler();
+
+        @Setup
+        public void setup() {
+            scheduler.schedule(counter);
+        }
+
+        @TearDown
+        public void tearDown() {
+            scheduler.close();
+        }
+    }
+
     @State(Scope.Group)
     public static class MetricsCoreHdrCounterState {
         public final SmoothlyDecayingRollingCounter counter = new SmoothlyDecayingRollingCounter(Duration.ofSeconds(3), 3);
@@ -86,6 +102,13 @@ public class WindowCounterBenchmark {
         state.counter.add(1);
     }
 
+    @Benchmark
+    @Group("window_counter_add_scheduled")
+    @GroupThreads(THREAD_PER_OPERATION)
+    public void benchmarkAddToScheduledCounter(ScheduledCounterState state) {
+        state.counter.add(1);
+    }
+
     @Benchmark
     @Group("window_counter_add_read")
     @GroupThreads(THREAD_PER_OPERATION)
@@ -1,9 +1,13 @@
 package fuud.windowstat;
 
 import fuud.windowstat.util.MockClock;
+import fuud.windowstat.util.MockTickSource;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
 import java.time.Duration;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -174,4 +178,169 @@ public class WindowCounterTest {
 
         //--------------------------------
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testCatchUpAfterIdlePeriod() throws Exception {
+        MockClock clock = new MockClock();
+
+        WindowCounter counter = new WindowCounter(Duration.ofSeconds(3), 3, clock);
+        counter.add(100);
+
+        clock.setTime(1500);
+        counter.add(10);
+
+        // chunk [1000, 2000) is still within window, chunk [0, 1000) is before window
+        clock.setTime(3500);
+        assertEquals(10, counter.getSum());
+        assertEquals(60, counter.getSmoothlySum());
+
+        // one hour of silence: all chunks are expired
+        clock.setTime(3_600_000 + 500);
+        assertEquals(0, counter.getSum());
+        assertEquals(0, counter.getSmoothlySum());
+
+        counter.add(300);
+        assertEquals(300, counter.getSum());
+
+        // new chunks are aligned to the initial chunk boundaries
+        clock.setTime(3_600_000 + 999);
+        counter.add(5);
+        clock.setTime(3_600_000 + 3_000);
+        assertEquals(0, counter.getSum());
+        assertEquals(305, counter.getSmoothlySum());
+    }
+
+    @Test
+    public void testNanosecondTicks() throws Exception {
+        MockTickSource tickSource = new MockTickSource(TimeUnit.NANOSECONDS);
+
+        // 50 ms window with 100 chunks: chunk is 500 us
+        WindowCounter counter = new WindowCounter(Duration.ofMillis(50), 100, tickSource);
+        counter.add(10);
+
+        tickSource.setTime(250_000);
+        counter.add(20);
+        assertEquals(30, counter.getSum());
+
+        tickSource.setTime(49_999_999);
+        assertEquals(30, counter.getSum());
+
+        // first chunk [0, 500 us) leaves window
+        tickSource.setTime(50_000_000);
+        assertEquals(0, counter.getSum());
+        assertEquals(30, counter.getSmoothlySum());
+
+        tickSource.setTime(50_250_000);
+        assertEquals(15, counter.getSmoothlySum());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testChunkShorterThanTickIsRejected() throws Exception {
+        new WindowCounter(Duration.ofMillis(50), 100, new MockClock());
+    }
+
+    @Test
+    public void testEpochAlignedChunks() throws Exception {
+        MockClock clock = new MockClock();
+        clock.setTime(10_000);
+        WindowCounter first = new WindowCounter(Duration.ofSeconds(3), 3, TickSource.of(clock), ChunkAlignment.EPOCH);
+        clock.setTime(10_037);
+        WindowCounter second = new WindowCounter(Duration.ofSeconds(3), 3, TickSource.of(clock), ChunkAlignment.EPOCH);
+        WindowCounter notAligned = new WindowCounter(Duration.ofSeconds(3), 3, TickSource.of(clock));
+
+        first.add(1);
+        second.add(1);
+        notAligned.add(1);
+
+        // all chunks started at 10_000, except not aligned one that started at 10_037
+        clock.setTime(13_000);
+        assertEquals(0, first.getSum());
+        assertEquals(0, second.getSum());
+        assertEquals(1, notAligned.getSum());
+
+        clock.setTime(13_037);
+        assertEquals(0, notAligned.getSum());
+    }
+
+    @Test
+    public void testEpochAlignedChunksBeforeEpoch() throws Exception {
+        MockClock clock = new MockClock();
+        clock.setTime(-1500);
+        WindowCounter counter = new WindowCounter(Duration.ofSeconds(3), 3, TickSource.of(clock), ChunkAlignment.EPOCH);
+        counter.add(1);
+
+        // first chunk is [-2000, -1000)
+        clock.setTime(999);
+        assertEquals(1, counter.getSum());
+        clock.setTime(1000);
+        assertEquals(0, counter.getSum());
+    }
+
+    @Test
+    public void testReattach() {
+        final MockClock clock = new MockClock();
+        final ByteBuffer buffer = ByteBuffer.allocate(WindowCounter.getRequiredBufferSize(3));
+
+        final WindowCounter counter = new WindowCounter(Duration.ofSeconds(3), 3, TickSource.of(clock), ChunkAlignment.CREATION_TIME, buffer, true);
+        for (int i = 0; i < 3; i++) {
+            counter.add(100 << i);
+            clock.move(1000);
+        }
+        counter.add(800);
+        counter.flush();
+
+        final WindowCounter restarted = new WindowCounter(Duration.ofSeconds(3), 3, TickSource.of(clock), ChunkAlignment.CREATION_TIME, buffer, true);
+        assertEquals(200 + 400 + 800, restarted.getSum());
+
+        clock.move(1000);
+        final WindowCounter restartedLater = new WindowCounter(Duration.ofSeconds(3), 3, TickSource.of(clock), ChunkAlignment.CREATION_TIME, buffer, true);
+        assertEquals(400 + 800, restartedLater.getSum());
+        restartedLater.add(1);
+        assertEquals(400 + 800 + 1, restartedLater.getSum());
+
+        // other chunks count, buffer is cleared
+        final ByteBuffer otherBuffer = ByteBuffer.allocate(WindowCounter.getRequiredBufferSize(4));
+        otherBuffer.put(buffer.duplicate());
+        otherBuffer.clear();
+        assertEquals(0, new WindowCounter(Duration.ofSeconds(4), 4, TickSource.of(clock), ChunkAlignment.CREATION_TIME, otherBuffer, true).getSum());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReattachWithNanoTimeIsRejected() {
+        final ByteBuffer buffer = ByteBuffer.allocate(WindowCounter.getRequiredBufferSize(3));
+        new WindowCounter(Duration.ofSeconds(3), 3, TickSource.nanoTime(), ChunkAlignment.CREATION_TIME, buffer, true);
+    }
+
+    @Test
+    public void testAddAll() {
+        final MockClock clock = new MockClock();
+        final WindowCounter counter = new WindowCounter(Duration.ofSeconds(3), 3, clock);
+
+        counter.addAll(new long[]{1000, 1, 2, 3, 1000}, 1, 3);
+        final LongBuffer buffer = LongBuffer.wrap(new long[]{1000, 4, 5});
+        buffer.position(1);
+        counter.addAll(buffer);
+        assertEquals(3, buffer.position());
+        assertEquals(15, counter.getSum());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSingleChunk() {
+        new WindowCounter(Duration.ofSeconds(1), 1, new MockClock());
+    }
+
+    @Test
+    public void testTwoChunksDropExpiredData() {
+        final MockClock clock = new MockClock();
+        final WindowCounter counter = new WindowCounter(Duration.ofSeconds(2), 2, clock);
+
+        for (int i = 0; i < 10; i++) {
+            counter.add(1);
+            assertEquals(Math.min(i + 1, 2), counter.getSum());
+            clock.move(1000);
+        }
+        assertEquals(1, counter.getSum());
+        clock.move(1000);
+        assertEquals(0, counter.getSum());
+    }
+}
@@ -46,6 +46,18 @@ public class WindowHistogramBenchmark {
         public final WindowHistogram windowHistogram = new CompactWindowHistogram(bucketOffsets, Duration.ofSeconds(3), 3, Clock.systemDefaultZone());
     }
 
+    @State(Scope.Group)
+    public static class WindowCompactHistCachedTickState {
+        private final long[] bucketOffsets = {0, 1000, 2000, 3000, 4000, 5000, 6000, 7000, 8000, 9000, 10000};
+        public final WindowHistogram windowHistogram = new CompactWindowHistogram(bucketOffsets, Duration.ofSeconds(3), 3, TickSource.cached());
+    }
+
+    @State(Scope.Group)
+    public static class WindowThreadLocalHistState {
+        private final long[] bucketOffsets = {0, 1000, 2000, 3000, 4000, 5000, 6000, 7000, 8000, 9000, 10000};
+        public final WindowHistogram windowHistogram = new ThreadLocalWindowHistogram(bucketOffsets, Duration.ofSeconds(3), 3, TickSource.cached());
+    }
+
     @State(Scope.Group)
     public static class HdrHistState {
         public final Histogram histogram = new Histogram(
@@ -90,6 +102,12 @@ public class WindowHistogramBenchmark {
         return System.currentTimeMillis();
     }
 
+    @Benchmark
+    @Threads(THREAD_PER_OPERATION)
+    public long baseLineCachedTick() {
+        return TickSource.cached().currentTick();
+    }
+
     @Benchmark
     @Threads(THREAD_PER_OPERATION)
     public long baseLineIncrementAtomic(IncrementAtomicState state) {
@@ -137,6 +155,34 @@ public class WindowHistogramBenchmark {
         state.windowHistogram.add(datas.nextValue());
     }
 
+    @Benchmark
+    @Group("window_compact_hist_cached_tick_add_read")
+    @GroupThreads(THREAD_PER_OPERATION)
+    public void benchmarkAddRead_compact_cached_tick_read(WindowCompactHistCachedTickState state) {
+        state.windowHistogram.getPercentile(0.5);
+    }
+
+    @Benchmark
+    @Group("window_compact_hist_cached_tick_add_read")
+    @GroupThreads(THREAD_PER_OPERATION)
+    public void benchmarkAddRead_compact_cached_tick_write(WindowCompactHistCachedTickState state, WindowMinMaxData datas) {
+        state.windowHistogram.add(datas.nextValue());
+    }
+
+    @Benchmark
+    @Group("window_thread_local_hist_add_read")
+    @GroupThreads(THREAD_PER_OPERATION)
+    public void benchmarkAddRead_thread_local_read(WindowThreadLocalHistState state) {
+        state.windowHistogram.getPercentile(0.5);
+    }
+
+    @Benchmark
+    @Group("window_thread_local_hist_add_read")
+    @GroupThreads(THREAD_PER_OPERATION)
+    public void benchmarkAddRead_thread_local_write(WindowThreadLocalHistState state, WindowMinMaxData datas) {
+        state.windowHistogram.add(datas.nextValue());
+    }
+
     @Benchmark
     @Group("hdr_hist_add_read")
     @GroupThreads(THREAD_PER_OPERATION)
@@ -3,7 +3,11 @@ package fuud.windowstat;
 import fuud.windowstat.util.MockClock;
 import org.junit.Test;
 
+import java.nio.LongBuffer;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
@@ -311,6 +315,405 @@ public abstract class WindowHistogramTest {
                 }});
     }
 
+    @Test
+    public void testCatchUpAfterIdlePeriod() {
+        final MockClock clock = new MockClock();
+        long bucketOffsets[] = new long[]{0, 2, 4, 6};
+        WindowHistogram windowHistogram = createHistogram(bucketOffsets, Duration.ofSeconds(6), 3, clock);
+
+        windowHistogram.add(1);
+        clock.setTime(2500);
+        windowHistogram.add(5);
+
+        // chunk [0, 2000) is out of window, chunk [2000, 4000) is still within window
+        clock.setTime(6500);
+        assertEquals(1, windowHistogram.getSamplesCount());
+        assertEquals(5, windowHistogram.getMin());
+        assertEquals(5, windowHistogram.getMax());
+        assertEquals(5, windowHistogram.getMean());
+
+        // one hour of silence: all chunks are expired
+        clock.setTime(3_600_000 + 500);
+        assertEquals(0, windowHistogram.getSamplesCount());
+        assertEquals(0, windowHistogram.getMax());
+        assertEquals(0, windowHistogram.getPercentile(0.5));
+
+        windowHistogram.add(3);
+        assertEquals(1, windowHistogram.getSamplesCount());
+        assertEquals(3, windowHistogram.getMean());
+        assertEquals(2, windowHistogram.getPercentile(0.5));
+    }
+
+    @Test
+    public void testRotationsAndJumps() {
+        final MockClock clock = new MockClock();
+        final long[] bucketOffsets = new long[]{0, 2, 4, 6};
+        final int chunkCount = 3;
+        WindowHistogram windowHistogram = createHistogram(bucketOffsets, Duration.ofSeconds(chunkCount), chunkCount, clock);
+
+        // chunks within window get accumulated sums after one-chunk rotations and after jumps over several chunks
+        final Random random = new Random(0);
+        final List<long[]> samples = new ArrayList<>(); // epoch and value
+        long epoch = 0;
+        for (int step = 0; step < 1000; step++) {
+            final int value = random.nextInt(8);
+            windowHistogram.add(value);
+            samples.add(new long[]{epoch, value});
+
+            epoch += random.nextInt(3) == 0 ? random.nextInt(7) : 1;
+            clock.setTime(epoch * 1000);
+
+            final long[] expectedBucketValues = new long[bucketOffsets.length + 1];
+            for (long[] sample : samples) {
+                if (sample[0] > epoch - chunkCount) {
+                    expectedBucketValues[(int) sample[1] / 2 + 1]++;
+                }
+            }
+            final WindowHistogram.Snapshot snapshot = windowHistogram.getSnapshot();
+            for (int bucket = 0; bucket < expectedBucketValues.length; bucket++) {
+                assertEquals("step " + step + ", bucket " + bucket, expectedBucketValues[bucket], snapshot.getBucketValue(bucket));
+            }
+        }
+    }
+
+    @Test
+    public void testSnapshotInto() {
+        final MockClock clock = new MockClock();
+        long bucketOffsets[] = new long[]{0, 2, 4, 6};
+        WindowHistogram windowHistogram = createHistogram(bucketOffsets, Duration.ofSeconds(6), 3, clock);
+
+        final WindowHistogram.Snapshot snapshot = new WindowHistogram.Snapshot(bucketOffsets);
+        windowHistogram.add(1);
+        windowHistogram.add(5);
+        windowHistogram.snapshotInto(snapshot);
+
+        final WindowHistogram.Snapshot immutableSnapshot = windowHistogram.getSnapshot();
+
+        assertEquals(2, snapshot.getSamplesCount());
+        assertEquals(6, snapshot.getTotalSum());
+        assertEquals(5, snapshot.getBucketsCount());
+        assertEquals(1, snapshot.getBucketValue(1));
+        assertEquals(1, snapshot.getBucketValue(3));
+
+        windowHistogram.add(7);
+        windowHistogram.snapshotInto(snapshot);
+
+        assertEquals(3, snapshot.getSamplesCount());
+        assertEquals(7, snapshot.getMax());
+        assertTrue(snapshot.isOverflow());
+
+        assertEquals(2, immutableSnapshot.getSamplesCount());
+        assertEquals(5, immutableSnapshot.getMax());
+        assertFalse(immutableSnapshot.isOverflow());
+    }
+
+    @Test
+    public void testVariance() {
+        final MockClock clock = new MockClock();
+        WindowHistogram windowHistogram = createHistogram(new long[]{0, 2, 4, 6}, Duration.ofSeconds(3), 3, clock);
+
+        assertEquals(0, windowHistogram.getVariance(), 0);
+        assertEquals(0, windowHistogram.getStdDev(), 0);
+
+        windowHistogram.add(2);
+        windowHistogram.add(4);
+        clock.move(1000);
+        windowHistogram.add(4);
+        windowHistogram.add(4);
+        clock.move(1000);
+        windowHistogram.add(5);
+        windowHistogram.add(5);
+        windowHistogram.add(7);
+        windowHistogram.add(9);
+
+        // mean = 5
+        assertEquals(4, windowHistogram.getVariance(), 1e-9);
+        assertEquals(2, windowHistogram.getStdDev(), 1e-9);
+        assertEquals(4, windowHistogram.getSnapshot().getVariance(), 1e-9);
+        assertEquals(2, windowHistogram.getSnapshot().getStdDev(), 1e-9);
+
+        // values 2, 4 leave window: 4, 4, 5, 5, 7, 9, mean = 34 / 6
+        clock.move(1000);
+        final double mean = 34.0 / 6;
+        final double variance = (16 + 16 + 25 + 25 + 49 + 81) / 6.0 - mean * mean;
+        assertEquals(variance, windowHistogram.getVariance(), 1e-9);
+
+        // values that have squares out of long range
+        clock.move(3000);
+        windowHistogram.add(3_000_000_000L);
+        windowHistogram.add(-3_000_000_000L);
+        assertEquals(3e9, windowHistogram.getStdDev(), 1e-3);
+    }
+
+    @Test
+    public void testVarianceOfCloseLargeValues() {
+        final MockClock clock = new MockClock();
+        WindowHistogram windowHistogram = createHistogram(new long[]{0, 2, 4, 6}, Duration.ofSeconds(3), 3, clock);
+
+        // sum of squares / n and mean^2 are equal as doubles, variance is lost if it is calculated as their difference
+        for (long base : new long[]{1_000_000_000L, 1_000_000_000_000L}) {
+            for (int i = 0; i < 1000; i++) {
+                windowHistogram.add(base + i % 2);
+            }
+            assertEquals(0.25, windowHistogram.getVariance(), 1e-9);
+            assertEquals(0.25, windowHistogram.getSnapshot().getVariance(), 1e-9);
+            assertEquals(0.25, windowHistogram.getSnapshot().merge(new WindowHistogram.Snapshot(windowHistogram.getSnapshot().getBucketOffsets())).getVariance(), 1e-9);
+            clock.move(3000);
+        }
+    }
+
+    @Test
+    public void testMerge() {
+        final MockClock clock = new MockClock();
+        long bucketOffsets[] = new long[]{0, 2, 4, 6};
+        WindowHistogram first = createHistogram(bucketOffsets, Duration.ofSeconds(6), 3, clock);
+        WindowHistogram second = createHistogram(bucketOffsets.clone(), Duration.ofSeconds(6), 3, clock);
+        WindowHistogram empty = createHistogram(bucketOffsets, Duration.ofSeconds(6), 3, clock);
+
+        first.add(1);
+        first.add(3);
+        second.add(-1);
+        second.add(5);
+        second.add(7);
+
+        final WindowHistogram.Snapshot snapshot = new WindowHistogram.Snapshot(bucketOffsets);
+        empty.mergeInto(snapshot);
+        first.mergeInto(snapshot);
+        empty.mergeInto(snapshot);
+        second.mergeInto(snapshot);
+
+        assertMerged(snapshot);
+        assertMerged(first.getSnapshot().merge(second.getSnapshot()));
+        assertMerged(empty.getSnapshot().merge(first.getSnapshot()).merge(second.getSnapshot()).merge(empty.getSnapshot()));
+
+        // merge does not change merged snapshots
+        final WindowHistogram.Snapshot firstSnapshot = first.getSnapshot();
+        firstSnapshot.merge(second.getSnapshot());
+        assertEquals(2, firstSnapshot.getSamplesCount());
+        assertEquals(3, firstSnapshot.getMax());
+
+        // snapshotInto replaces merged values
+        first.snapshotInto(snapshot);
+        assertEquals(2, snapshot.getSamplesCount());
+        assertEquals(1, snapshot.getMin());
+    }
+
+    private static void assertMerged(WindowHistogram.Snapshot snapshot) {
+        assertEquals(5, snapshot.getSamplesCount());
+        assertEquals(15, snapshot.getTotalSum());
+        assertEquals(3, snapshot.getMean());
+        assertEquals(-1, snapshot.getMin());
+        assertEquals(7, snapshot.getMax());
+        assertEquals(1 + 9 + 1 + 25 + 49, snapshot.getSumOfSquares(), 0);
+        assertEquals(1, snapshot.getBucketValue(0));
+        assertEquals(1, snapshot.getBucketValue(1));
+        assertEquals(1, snapshot.getBucketValue(2));
+        assertEquals(1, snapshot.getBucketValue(3));
+        assertEquals(1, snapshot.getBucketValue(4));
+        assertTrue(snapshot.isOverflow());
+        assertTrue(snapshot.isUnderflow());
+        assertEquals(2, snapshot.getPercentile(0.6));
+    }
+
+    @Test
+    public void testAddAll() {
+        final MockClock clock = new MockClock();
+        WindowHistogram windowHistogram = createHistogram(new long[]{0, 2, 4, 6}, Duration.ofSeconds(6), 3, clock);
+
+        windowHistogram.addAll(new long[]{100, 1, 3, -1, 100}, 1, 3);
+        windowHistogram.addAll(new long[0], 0, 0);
+        final LongBuffer buffer = LongBuffer.wrap(new long[]{100, 5, 7});
+        buffer.position(1);
+        windowHistogram.addAll(buffer);
+        assertEquals(3, buffer.position());
+        windowHistogram.addAll(buffer);
+
+        assertMerged(windowHistogram.getSnapshot());
+
+        clock.move(6000);
+        assertEquals(0, windowHistogram.getSamplesCount());
+    }
+
+    @Test
+    public void testAddWithCount() {
+        final MockClock clock = new MockClock();
+        WindowHistogram windowHistogram = createHistogram(new long[]{0, 2, 4, 6}, Duration.ofSeconds(6), 3, clock);
+
+        windowHistogram.add(1, 3);
+        windowHistogram.add(5, 1);
+        windowHistogram.add(100, 0);
+        assertEquals(4, windowHistogram.getSamplesCount());
+        assertEquals(2, windowHistogram.getMean());
+        assertEquals(5, windowHistogram.getMax());
+        assertEquals(3, windowHistogram.getSnapshot().getBucketValue(1));
+        assertEquals(3, windowHistogram.getVariance(), 1e-9);
+        assertEquals(8, windowHistogram.getSnapshot().getTotalSum());
+
+        // values that have squares out of long range
+        clock.move(6000);
+        windowHistogram.add(3_000_000_000L, 1000);
+        windowHistogram.add(-3_000_000_000L, 1000);
+        assertEquals(3e9, windowHistogram.getStdDev(), 1e-3);
+    }
+
+    @Test
+    public void testSumOfSquaresOfManySamples() {
+        final MockClock clock = new MockClock();
+        WindowHistogram windowHistogram = createHistogram(new long[]{0, 2, 4, 6}, Duration.ofSeconds(6), 6, clock);
+
+        // each weighted add contributes about 2^63 to middle limb, so limb sums within window exceed 2^64
+        final long value = 0xFFFFFFFFL;
+        final long count = Integer.MAX_VALUE;
+        for (int chunk = 0; chunk < 4; chunk++) {
+            windowHistogram.add(value, count);
+            windowHistogram.add(-value, count);
+            clock.move(1000);
+        }
+        assertEquals(8 * count, windowHistogram.getSamplesCount());
+        assertEquals(value, windowHistogram.getStdDev(), value * 1e-9);
+        assertEquals(value, windowHistogram.getSnapshot().getStdDev(), value * 1e-9);
+
+        // the first two chunks leave window
+        clock.move(3000);
+        windowHistogram.add(0, count);
+        assertEquals(5 * count, windowHistogram.getSamplesCount());
+        final double square = (double) value * value;
+        assertEquals(square * 4 / 5, windowHistogram.getVariance(), square * 1e-9);
+    }
+
+    @Test
+    public void testInterpolatedPercentile() {
+        final MockClock clock = new MockClock();
+        long bucketOffsets[] = new long[]{0, 1000, 2000, 3000, 4000, 5000, 6000, 7000, 8000, 9000, 10000};
+        WindowHistogram windowHistogram = createHistogram(bucketOffsets, Duration.ofSeconds(6), 3, clock);
+        assertEquals(0, windowHistogram.getInterpolatedPercentile(0.75));
+
+        clock.move(1000);
+        for (long value = 0; value < 10000; value++) {
+            windowHistogram.add(value);
+        }
+
+        assertEquals(7000, windowHistogram.getPercentile(0.75));
+        assertEquals(7499, windowHistogram.getInterpolatedPercentile(0.75));
+        assertEquals(4999, windowHistogram.getInterpolatedPercentile(0.5));
+        assertEquals(0, windowHistogram.getInterpolatedPercentile(0));
+        assertEquals(9999, windowHistogram.getInterpolatedPercentile(1));
+
+        final double[] percentiles = {0, 0.5, 0.75, 1};
+        final long[] out = new long[percentiles.length];
+        windowHistogram.getInterpolatedPercentiles(percentiles, out);
+        assertArrayEquals(new long[]{0, 4999, 7499, 9999}, out);
+
+        final WindowHistogram.Snapshot snapshot = windowHistogram.getSnapshot();
+        assertEquals(7499, snapshot.getInterpolatedPercentile(0.75));
+        snapshot.getInterpolatedPercentiles(percentiles, out);
+        assertArrayEquals(new long[]{0, 4999, 7499, 9999}, out);
+    }
+
+    @Test
+    public void testInterpolatedPercentileIsBoundedByMinMax() {
+        final MockClock clock = new MockClock();
+        WindowHistogram windowHistogram = createHistogram(new long[]{0, 2, 4, 6}, Duration.ofSeconds(6), 3, clock);
+
+        clock.move(1000);
+        windowHistogram.add(100);
+        windowHistogram.add(200);
+        windowHistogram.add(-50);
+
+        assertEquals(Long.MAX_VALUE, windowHistogram.getPercentile(1));
+        assertEquals(200, windowHistogram.getInterpolatedPercentile(1));
+        assertEquals(6, windowHistogram.getInterpolatedPercentile(0.7));
+        assertEquals(Long.MIN_VALUE, windowHistogram.getPercentile(0.1));
+        final long underflow = windowHistogram.getInterpolatedPercentile(0.1);
+        assertTrue(underflow >= -50 && underflow < 0);
+    }
+
+    @Test
+    public void testSnapshotIsReadOnly() {
+        final MockClock clock = new MockClock();
+        WindowHistogram windowHistogram = createHistogram(new long[]{0, 2, 4, 6}, Duration.ofSeconds(6), 3, clock);
+        windowHistogram.add(3);
+
+        final WindowHistogram.Snapshot snapshot = windowHistogram.getSnapshot();
+        final WindowHistogram.Snapshot merged = snapshot.merge(windowHistogram.getSnapshot());
+        windowHistogram.add(5);
+        for (WindowHistogram.Snapshot readOnly : new WindowHistogram.Snapshot[]{snapshot, merged}) {
+            try {
+                windowHistogram.snapshotInto(readOnly);
+                fail();
+            } catch (IllegalStateException expected) {
+            }
+            try {
+                windowHistogram.mergeInto(readOnly);
+                fail();
+            } catch (IllegalStateException expected) {
+            }
+        }
+        assertEquals(1, snapshot.getSamplesCount());
+        assertEquals(3, snapshot.getMax());
+        assertEquals(2, merged.getSamplesCount());
+
+        // snapshot created by constructor can be reused
+        final WindowHistogram.Snapshot reused = new WindowHistogram.Snapshot(new long[]{0, 2, 4, 6});
+        windowHistogram.snapshotInto(reused);
+        windowHistogram.mergeInto(reused);
+        assertEquals(4, reused.getSamplesCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAddWithNegativeCount() {
+        WindowHistogram windowHistogram = createHistogram(new long[]{0, 2, 4, 6}, Duration.ofSeconds(6), 3, new MockClock());
+        windowHistogram.add(1, -1);
+    }
+
+    @Test
+    public void testAddWithTooLargeCount() {
+        WindowHistogram windowHistogram = createHistogram(new long[]{0, 2, 4, 6}, Duration.ofSeconds(6), 3, new MockClock());
+        assertAddRejected(windowHistogram, 1, 1L << 31);
+        assertAddRejected(windowHistogram, 1L << 33, 1L << 30);
+        assertAddRejected(windowHistogram, Long.MIN_VALUE, 2);
+        assertEquals(0, windowHistogram.getSamplesCount());
+
+        // the largest count and sum that fit
+        windowHistogram.add(1, (1L << 31) - 1);
+        windowHistogram.add(-(1L << 33), 1L << 30);
+        final WindowHistogram.Snapshot snapshot = windowHistogram.getSnapshot();
+        assertEquals((1L << 31) - 1 + (1L << 30), snapshot.getSamplesCount());
+        assertEquals(Long.MIN_VALUE + (1L << 31) - 1, snapshot.getTotalSum());
+    }
+
+    private static void assertAddRejected(WindowHistogram windowHistogram, long value, long count) {
+        try {
+            windowHistogram.add(value, count);
+            fail("Add of " + value + " " + count + " times should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testAddAllOutOfRange() {
+        WindowHistogram windowHistogram = createHistogram(new long[]{0, 2, 4, 6}, Duration.ofSeconds(6), 3, new MockClock());
+        windowHistogram.addAll(new long[3], 2, 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeWithOtherBuckets() {
+        final MockClock clock = new MockClock();
+        WindowHistogram first = createHistogram(new long[]{0, 2, 4, 6}, Duration.ofSeconds(6), 3, clock);
+        WindowHistogram second = createHistogram(new long[]{0, 2, 4, 8}, Duration.ofSeconds(6), 3, clock);
+
+        first.getSnapshot().merge(second.getSnapshot());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSnapshotIntoWithOtherBuckets() {
+        final MockClock clock = new MockClock();
+        WindowHistogram windowHistogram = createHistogram(new long[]{0, 2, 4, 6}, Duration.ofSeconds(6), 3, clock);
+
+        windowHistogram.snapshotInto(new WindowHistogram.Snapshot(new long[]{0, 2, 4}));
+    }
+
     private void assertHistogram(WindowHistogram windowHistogram, ReferenceData referenceData) {
         assertEquals(referenceData.max, windowHistogram.getMax());
         assertEquals(referenceData.min, windowHistogram.getMin());
@@ -331,6 +734,30 @@ public abstract class WindowHistogramTest {
         assertEquals(referenceData.overflow, windowHistogram.isOverflow());
         assertEquals(referenceData.underflow, windowHistogram.isUnderflow());
 
+        final double[] percentiles = {0.0, 0.1, 0.2, 0.3, 0.4, 0.5, 0.6, 0.7, 0.8, 0.9, 1.0, 0.5, 0.1};
+        final long[] expectedPercentiles = {
+                referenceData.percentile_00, referenceData.percentile_10, referenceData.percentile_20,
+                referenceData.percentile_30, referenceData.percentile_40, referenceData.percentile_50,
+                referenceData.percentile_60, referenceData.percentile_70, referenceData.percentile_80,
+                referenceData.percentile_90, referenceData.percentile_100,
+                referenceData.percentile_50, referenceData.percentile_10};
+        final long[] actualPercentiles = new long[percentiles.length];
+        windowHistogram.getPercentiles(percentiles, actualPercentiles);
+        assertArrayEquals(expectedPercentiles, actualPercentiles);
+
+        final WindowHistogram.Snapshot snapshot = windowHistogram.getSnapshot();
+        snapshot.getPercentiles(percentiles, actualPercentiles);
+        assertArrayEquals(expectedPercentiles, actualPercentiles);
+
+        assertEquals(referenceData.max, snapshot.getMax());
+        assertEquals(referenceData.min, snapshot.getMin());
+        assertEquals(referenceData.mean, snapshot.getMean());
+        assertEquals(referenceData.samplesCount, snapshot.getSamplesCount());
+        assertEquals(referenceData.percentile_50, snapshot.getPercentile(0.5));
+        assertEquals(referenceData.percentile_100, snapshot.getPercentile(1.0));
+        assertEquals(referenceData.overflow, snapshot.isOverflow());
+        assertEquals(referenceData.underflow, snapshot.isUnderflow());
+
 
         for (double i = 0.0; i < 0.10; i = i + 0.1) {
             assertTrue(windowHistogram.getPercentile(i) >= referenceData.percentile_00);
@@ -56,6 +56,28 @@ public class WindowMaxMinBenchmark {
         }
     }
 
+    /**
+     * Values trend upward (e.g. queue depth), so each value changes max
+     */
+    @State(Scope.Thread)
+    public static class IncreasingData {
+        public long value;
+
+        public long nextValue() {
+            return ++value;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class SharedWindowMinMaxState {
+        public final WindowMinMax counter = new WindowMinMax(Duration.ofSeconds(3), 3, Clock.systemDefaultZone());
+    }
+
+    @State(Scope.Benchmark)
+    public static class MaxAtomicState {
+        AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+    }
+
     @State(Scope.Benchmark)
     public static class IncrementAtomicState {
         AtomicLong sum = new AtomicLong();
@@ -93,6 +115,27 @@ public class WindowMaxMinBenchmark {
         return state.sum.longValue();
     }
 
+    @Benchmark
+    @Threads(THREAD_PER_OPERATION)
+    public void baseLineCasMaxIncreasing(MaxAtomicState state, IncreasingData data) {
+        final long value = data.nextValue();
+        while (true) {
+            final long currentMaxValue = state.max.get();
+            if (currentMaxValue > value) {
+                break;
+            }
+            if (state.max.compareAndSet(currentMaxValue, value)) {
+                break;
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(THREAD_PER_OPERATION)
+    public void registerIncreasing(SharedWindowMinMaxState state, IncreasingData data) {
+        state.counter.register(data.nextValue());
+    }
+
     @Benchmark
     @Group("window_counter_add_read")
     @GroupThreads(THREAD_PER_OPERATION)
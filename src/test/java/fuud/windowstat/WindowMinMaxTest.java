@@ -3,7 +3,9 @@ package fuud.windowstat;
 import fuud.windowstat.util.MockClock;
 import org.junit.Test;
 
+import java.nio.LongBuffer;
 import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
 
 import static org.junit.Assert.*;
 
@@ -190,4 +192,88 @@ public class WindowMinMaxTest {
 
         //--------------------------------
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testCatchUpAfterIdlePeriod() throws Exception {
+        MockClock clock = new MockClock();
+
+        WindowMinMax counter = new WindowMinMax(Duration.ofSeconds(3), 3, clock);
+        counter.register(100);
+
+        clock.setTime(1500);
+        counter.register(10);
+
+        clock.setTime(3500);
+        assertEquals(10, counter.getMin());
+        assertEquals(10, counter.getMax());
+
+        // one hour of silence: all chunks are expired
+        clock.setTime(3_600_000 + 500);
+        assertEquals(0, counter.getMin());
+        assertEquals(0, counter.getMax());
+
+        counter.register(300);
+        assertEquals(300, counter.getMin());
+        assertEquals(300, counter.getMax());
+
+        // new chunks are aligned to the initial chunk boundaries
+        clock.setTime(3_600_000 + 2_999);
+        assertEquals(300, counter.getMax());
+        clock.setTime(3_600_000 + 3_000);
+        assertEquals(0, counter.getMax());
+    }
+
+    @Test
+    public void testConcurrentIncreasingValues() throws InterruptedException {
+        MockClock clock = new MockClock();
+        WindowMinMax counter = new WindowMinMax(Duration.ofSeconds(3), 3, clock);
+
+        final int threadsCount = 8;
+        final int valuesPerThread = 100_000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[threadsCount];
+        for (int i = 0; i < threads.length; i++) {
+            final int thread = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                for (int value = 1; value <= valuesPerThread; value++) {
+                    counter.register(value * threadsCount + thread);
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(threadsCount, counter.getMin());
+        assertEquals(valuesPerThread * threadsCount + threadsCount - 1, counter.getMax());
+
+        // stripes are reset together with chunk
+        clock.move(3000);
+        counter.register(-5);
+        clock.move(1000);
+        assertEquals(-5, counter.getMin());
+        assertEquals(-5, counter.getMax());
+    }
+
+    @Test
+    public void testRegisterAll() {
+        MockClock clock = new MockClock();
+        WindowMinMax minMax = new WindowMinMax(Duration.ofSeconds(3), 3, clock);
+
+        minMax.registerAll(new long[]{1000, 5, -3, 7, -1000}, 1, 3);
+        minMax.registerAll(new long[0], 0, 0);
+        assertEquals(7, minMax.getMax());
+        assertEquals(-3, minMax.getMin());
+
+        minMax.registerAll(LongBuffer.wrap(new long[]{-5, 2}));
+        assertEquals(7, minMax.getMax());
+        assertEquals(-5, minMax.getMin());
+    }
+}
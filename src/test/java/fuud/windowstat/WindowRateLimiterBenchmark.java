@@ -0,0 +1,56 @@
+package fuud.windowstat;
+
+import fuud.windowstat.util.BenchmarkRunnerUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link WindowRateLimiter#tryAcquire()} with check-then-add on {@link WindowCounter}
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WindowRateLimiterBenchmark {
+    private static final long LIMIT = 1_000_000;
+
+    @State(Scope.Benchmark)
+    public static class LimiterState {
+        @Param({"STRICT", "SMOOTH"})
+        public WindowRateLimiter.Mode mode;
+
+        public WindowRateLimiter limiter;
+
+        @Setup
+        public void setup() {
+            limiter = new WindowRateLimiter(LIMIT, Duration.ofSeconds(1), 10, mode, TickSource.cached());
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class CounterState {
+        public final WindowCounter counter = new WindowCounter(Duration.ofSeconds(1), 10, TickSource.cached());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean tryAcquire(LimiterState state) {
+        return state.limiter.tryAcquire();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean counterCheckThenAdd(CounterState state) {
+        if (state.counter.getSum() < LIMIT) {
+            state.counter.add(1);
+            return true;
+        }
+        return false;
+    }
+
+    public static class RunBenchmark {
+        public static void main(String[] args) throws Exception {
+            BenchmarkRunnerUtil.runBenchmark(WindowRateLimiterBenchmark.class);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package fuud.windowstat;
+
+import fuud.windowstat.util.MockClock;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class WindowRateLimiterTest {
+
+    @Test
+    public void testStrict() {
+        final MockClock clock = new MockClock();
+        final WindowRateLimiter limiter = new WindowRateLimiter(10, Duration.ofSeconds(3), 3, WindowRateLimiter.Mode.STRICT, clock);
+
+        assertTrue(limiter.tryAcquire(6));
+        clock.move(1000);
+        assertTrue(limiter.tryAcquire(3));
+        assertFalse(limiter.tryAcquire(2));
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        assertEquals(10, limiter.getAcquired());
+        assertEquals(0, limiter.getAvailable());
+
+        // denied acquires are not recorded
+        clock.move(1000);
+        assertFalse(limiter.tryAcquire());
+        assertEquals(10, limiter.getAcquired());
+
+        // the first chunk leaves window, all its permits are released at once
+        clock.move(1000);
+        assertEquals(4, limiter.getAcquired());
+        assertTrue(limiter.tryAcquire(6));
+        assertFalse(limiter.tryAcquire());
+
+        clock.move(10_000);
+        assertEquals(10, limiter.getAvailable());
+        assertTrue(limiter.tryAcquire(0));
+        assertFalse(limiter.tryAcquire(11));
+    }
+
+    @Test
+    public void testSmooth() {
+        final MockClock clock = new MockClock();
+        final WindowRateLimiter limiter = new WindowRateLimiter(10, Duration.ofSeconds(3), 3, WindowRateLimiter.Mode.SMOOTH, clock);
+
+        assertTrue(limiter.tryAcquire(10));
+        clock.move(2000);
+        assertFalse(limiter.tryAcquire());
+
+        // the first chunk has left window, its permits are released during the next chunk
+        clock.move(1000);
+        assertEquals(10, limiter.getAcquired());
+        assertFalse(limiter.tryAcquire());
+        clock.move(500);
+        assertEquals(5, limiter.getAcquired());
+        assertTrue(limiter.tryAcquire(5));
+        assertFalse(limiter.tryAcquire());
+        clock.move(500);
+        assertEquals(5, limiter.getAcquired());
+    }
+
+    @Test
+    public void testConcurrentAcquireDoesNotExceedLimit() throws InterruptedException {
+        final WindowRateLimiter limiter = new WindowRateLimiter(100_000, Duration.ofSeconds(3), 3, WindowRateLimiter.Mode.STRICT, new MockClock());
+
+        final AtomicLong acquired = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                for (int j = 0; j < 50_000; j++) {
+                    if (limiter.tryAcquire()) {
+                        acquired.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(100_000, acquired.get());
+        assertEquals(100_000, limiter.getAcquired());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativePermits() {
+        new WindowRateLimiter(10, Duration.ofSeconds(3), 3).tryAcquire(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeLimit() {
+        new WindowRateLimiter(-1, Duration.ofSeconds(3), 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSingleChunk() {
+        new WindowRateLimiter(10, Duration.ofSeconds(1), 1, WindowRateLimiter.Mode.STRICT, new MockClock());
+    }
+
+    @Test
+    public void testTwoChunksReleaseExpiredPermits() {
+        final MockClock clock = new MockClock();
+        final WindowRateLimiter limiter = new WindowRateLimiter(10, Duration.ofSeconds(2), 2, WindowRateLimiter.Mode.STRICT, clock);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire(5));
+            clock.move(1000);
+        }
+        assertEquals(5, limiter.getAcquired());
+        clock.move(1000);
+        assertEquals(10, limiter.getAvailable());
+        assertTrue(limiter.tryAcquire(10));
+    }
+}
@@ -0,0 +1,109 @@
+package fuud.windowstat;
+
+import fuud.windowstat.util.BenchmarkRunnerUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode/decode throughput for typical latency distribution (log-normal around 200 us). <br>
+ * Encoded sizes are printed by {@link PrintEncodedSizes}.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WindowStatCodecBenchmark {
+
+    @State(Scope.Thread)
+    public static class SnapshotState {
+        public WindowHistogram.Snapshot exponential;
+        public WindowHistogram.Snapshot linear;
+        public ByteBuffer buffer;
+        public ByteBuffer encodedExponential;
+        public ByteBuffer encodedLinear;
+
+        @Setup
+        public void setup() {
+            // nanoseconds: 1 us ... 9 min, factor 2
+            exponential = createSnapshot(BucketLayout.exponential(1_000, 2, 30));
+            // nanoseconds: 0 ... 100 ms, 100 us width
+            linear = createSnapshot(BucketLayout.linear(0, 100_000, 1000));
+
+            buffer = ByteBuffer.allocate(WindowStatCodec.getMaxEncodedSize(linear));
+            encodedExponential = encode(exponential);
+            encodedLinear = encode(linear);
+        }
+
+        private static WindowHistogram.Snapshot createSnapshot(BucketLayout layout) {
+            final WindowHistogram histogram = new CompactWindowHistogram(layout, Duration.ofSeconds(60), 6);
+            final Random random = new Random(0);
+            for (int i = 0; i < 100_000; i++) {
+                histogram.add((long) Math.exp(Math.log(200_000) + random.nextGaussian()));
+            }
+            return histogram.getSnapshot();
+        }
+
+        private static ByteBuffer encode(WindowHistogram.Snapshot snapshot) {
+            final ByteBuffer buffer = ByteBuffer.allocate(WindowStatCodec.getMaxEncodedSize(snapshot));
+            WindowStatCodec.encode(snapshot, buffer);
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer encodeExponential(SnapshotState state) {
+        state.buffer.clear();
+        WindowStatCodec.encode(state.exponential, state.buffer);
+        return state.buffer;
+    }
+
+    @Benchmark
+    public WindowHistogram.Snapshot decodeExponential(SnapshotState state) {
+        return WindowStatCodec.decodeHistogramSnapshot(state.encodedExponential.duplicate());
+    }
+
+    @Benchmark
+    public ByteBuffer encodeLinear(SnapshotState state) {
+        state.buffer.clear();
+        WindowStatCodec.encode(state.linear, state.buffer);
+        return state.buffer;
+    }
+
+    @Benchmark
+    public WindowHistogram.Snapshot decodeLinear(SnapshotState state) {
+        return WindowStatCodec.decodeHistogramSnapshot(state.encodedLinear.duplicate());
+    }
+
+    @Benchmark
+    public ByteBuffer baseLineRawLongsLinear(SnapshotState state) {
+        state.buffer.clear();
+        for (int i = 0; i < state.linear.getBucketsCount(); i++) {
+            state.buffer.putLong(state.linear.getBucketValue(i));
+        }
+        return state.buffer;
+    }
+
+    public static class RunBenchmark {
+        public static void main(String[] args) throws Exception {
+            BenchmarkRunnerUtil.runBenchmark(WindowStatCodecBenchmark.class);
+        }
+    }
+
+    public static class PrintEncodedSizes {
+        public static void main(String[] args) throws Exception {
+            final SnapshotState state = new SnapshotState();
+            state.setup();
+            print("exponential", state.exponential, state.encodedExponential);
+            print("linear", state.linear, state.encodedLinear);
+        }
+
+        private static void print(String name, WindowHistogram.Snapshot snapshot, ByteBuffer encoded) {
+            System.out.println(name + ": " + snapshot.getBucketsCount() + " buckets, " +
+                    encoded.remaining() + " bytes encoded, " + snapshot.getBucketsCount() * 8 + " bytes as long[]");
+        }
+    }
+
+}
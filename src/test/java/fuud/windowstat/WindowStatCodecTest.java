@@ -0,0 +1,290 @@
+package fuud.windowstat;
+
+import fuud.windowstat.util.MockClock;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Duration;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class WindowStatCodecTest {
+    @Test
+    public void testVarint() throws Exception {
+        final long[] values = {0, 1, -1, 63, 64, -64, -65, 127, 128, Integer.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+        final ByteBuffer buffer = ByteBuffer.allocate(1024);
+        for (long value : values) {
+            WindowStatCodec.writeVarint(buffer, value);
+            WindowStatCodec.writeZigzag(buffer, value);
+        }
+        buffer.flip();
+        for (long value : values) {
+            assertEquals(value, WindowStatCodec.readVarint(buffer));
+            assertEquals(value, WindowStatCodec.readZigzag(buffer));
+        }
+        assertFalse(buffer.hasRemaining());
+
+        buffer.clear();
+        WindowStatCodec.writeZigzag(buffer, -1);
+        WindowStatCodec.writeVarint(buffer, 127);
+        assertEquals(2, buffer.position());
+    }
+
+    @Test
+    public void testHistogramSnapshot() throws Exception {
+        final MockClock clock = new MockClock();
+        final long[] bucketOffsets = {-100, 0, 10, 100, 1000, Long.MAX_VALUE - 1};
+        final WindowHistogram histogram = new CompactWindowHistogram(bucketOffsets, Duration.ofSeconds(3), 3, clock);
+        histogram.add(-200);
+        histogram.add(50);
+        histogram.add(70);
+        histogram.add(Long.MAX_VALUE);
+
+        assertSameAfterEncoding(histogram.getSnapshot(), ByteBuffer.allocate(1024));
+        assertSameAfterEncoding(histogram.getSnapshot(), ByteBuffer.allocateDirect(1024).order(ByteOrder.LITTLE_ENDIAN));
+        assertSameAfterEncoding(new CompactWindowHistogram(bucketOffsets, Duration.ofSeconds(3), 3, clock).getSnapshot(), ByteBuffer.allocate(1024));
+        assertSameAfterEncoding(new WindowHistogram.Snapshot(0, 0, new long[0], new long[]{0}, 0, 0), ByteBuffer.allocate(1024));
+        assertSameAfterEncoding(new WindowHistogram.Snapshot(1, 3, new long[]{2}, new long[]{1, 1}, 4), ByteBuffer.allocate(1024));
+    }
+
+    @Test
+    public void testRandomHistogramSnapshots() throws Exception {
+        final Random random = new Random(0);
+        final BucketLayout layout = BucketLayout.exponential(1, 2, 40);
+        for (int i = 0; i < 100; i++) {
+            final WindowHistogram histogram = new CompactWindowHistogram(layout, Duration.ofSeconds(3), 3, TickSource.of(new MockClock()));
+            final int samples = random.nextInt(1000);
+            for (int j = 0; j < samples; j++) {
+                histogram.add(random.nextInt(1 << random.nextInt(30)));
+            }
+            final WindowHistogram.Snapshot snapshot = histogram.getSnapshot();
+            assertSameAfterEncoding(snapshot, ByteBuffer.allocate(WindowStatCodec.getMaxEncodedSize(snapshot)));
+        }
+    }
+
+    @Test
+    public void testVarianceOfCloseLargeValues() throws Exception {
+        final WindowHistogram histogram = new CompactWindowHistogram(new long[]{0}, Duration.ofSeconds(3), 3, new MockClock());
+        for (int i = 0; i < 1000; i++) {
+            histogram.add(1_000_000_000_000L + i % 2);
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(WindowStatCodec.getMaxEncodedSize(histogram.getSnapshot()));
+        WindowStatCodec.encode(histogram.getSnapshot(), buffer);
+        buffer.flip();
+        assertEquals(0.25, WindowStatCodec.decodeHistogramSnapshot(buffer).getVariance(), 1e-9);
+    }
+
+    @Test
+    public void testEmptyBucketsAreCompact() throws Exception {
+        final WindowHistogram histogram = new CompactWindowHistogram(BucketLayout.linear(0, 1, 1000), Duration.ofSeconds(3), 3, TickSource.of(new MockClock()));
+        histogram.add(500);
+
+        final ByteBuffer buffer = ByteBuffer.allocate(WindowStatCodec.getMaxEncodedSize(histogram.getSnapshot()));
+        WindowStatCodec.encode(histogram.getSnapshot(), buffer);
+        // header + offsets (count, first offset and 1 byte per delta) + min, max, total sum + sum of squares (high and low bits)
+        // + runs (501 empty buckets, value 1, 499 empty buckets)
+        assertEquals(3 + 1002 + 6 + 1 + 8 + 5, buffer.position());
+    }
+
+    @Test
+    public void testPercentilesBoundedByMinMax() throws Exception {
+        final LogLinearWindowHistogram histogram = new LogLinearWindowHistogram(1000, 2, Duration.ofSeconds(3), 3, TickSource.of(new MockClock()));
+        for (int i = 0; i < 10; i++) {
+            histogram.add(5);
+            histogram.add(5000);
+        }
+        final WindowHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertTrue(snapshot.isOverflow());
+        assertEquals(5000, snapshot.getPercentile(0.99));
+
+        final ByteBuffer buffer = ByteBuffer.allocate(WindowStatCodec.getMaxEncodedSize(snapshot));
+        WindowStatCodec.encode(snapshot, buffer);
+        buffer.flip();
+        final WindowHistogram.Snapshot decoded = WindowStatCodec.decodeHistogramSnapshot(buffer);
+        assertEquals(5000, decoded.getPercentile(0.99));
+        assertEquals(5, decoded.getPercentile(0.0));
+    }
+
+    @Test
+    public void testCounterSnapshot() throws Exception {
+        final MockClock clock = new MockClock();
+        final WindowCounter counter = new WindowCounter(Duration.ofSeconds(3), 3, clock);
+        counter.add(5);
+        clock.setTime(1500);
+        counter.add(-7);
+        clock.setTime(2500);
+        counter.add(1000);
+
+        final WindowCounter.Snapshot snapshot = counter.getSnapshot();
+        assertEquals(2000, snapshot.getActualChunkStartTime());
+        assertEquals(1000, snapshot.getChunkDuration());
+        assertEquals(998, snapshot.getSum());
+
+        final ByteBuffer buffer = ByteBuffer.allocate(WindowStatCodec.getMaxEncodedSize(snapshot));
+        WindowStatCodec.encode(snapshot, buffer);
+        buffer.flip();
+        final WindowCounter.Snapshot decoded = WindowStatCodec.decodeCounterSnapshot(buffer);
+        assertFalse(buffer.hasRemaining());
+
+        assertEquals(snapshot.getActualChunkStartTime(), decoded.getActualChunkStartTime());
+        assertEquals(snapshot.getChunkDuration(), decoded.getChunkDuration());
+        assertEquals(3, decoded.getChunksCount());
+        assertEquals(5, decoded.getChunkSum(0));
+        assertEquals(-7, decoded.getChunkSum(1));
+        assertEquals(1000, decoded.getChunkSum(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedVersion() throws Exception {
+        WindowStatCodec.decodeCounterSnapshot(ByteBuffer.wrap(new byte[]{WindowStatCodec.VERSION + 1, WindowStatCodec.COUNTER_SNAPSHOT, 0, 0, 0, 0}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedFlags() throws Exception {
+        WindowStatCodec.decodeCounterSnapshot(ByteBuffer.wrap(new byte[]{WindowStatCodec.VERSION, WindowStatCodec.COUNTER_SNAPSHOT, 1, 0, 0, 0}));
+    }
+
+    @Test
+    public void testTruncatedSnapshot() throws Exception {
+        final WindowHistogram histogram = new CompactWindowHistogram(new long[]{0, 10, 100}, Duration.ofSeconds(3), 3, new MockClock());
+        histogram.add(50);
+        final ByteBuffer histogramBuffer = ByteBuffer.allocate(1024);
+        WindowStatCodec.encode(histogram.getSnapshot(), histogramBuffer);
+        histogramBuffer.flip();
+        for (int length = 0; length < histogramBuffer.limit(); length++) {
+            final ByteBuffer truncated = truncate(histogramBuffer, length);
+            assertMalformed(() -> WindowStatCodec.decodeHistogramSnapshot(truncated));
+        }
+
+        final ByteBuffer counterBuffer = ByteBuffer.allocate(1024);
+        WindowStatCodec.encode(new WindowCounter.Snapshot(0, 1000, new long[]{1, -1000, 1000_000}), counterBuffer);
+        counterBuffer.flip();
+        for (int length = 0; length < counterBuffer.limit(); length++) {
+            final ByteBuffer truncated = truncate(counterBuffer, length);
+            assertMalformed(() -> WindowStatCodec.decodeCounterSnapshot(truncated));
+        }
+    }
+
+    @Test
+    public void testMalformedBucketOffsets() throws Exception {
+        // offsets 10, 10, 10
+        assertMalformed(() -> WindowStatCodec.decodeHistogramSnapshot((ByteBuffer) histogramSnapshot(3, 20, 0, 0).flip()));
+        // offsets 10, 10 + Long.MAX_VALUE
+        assertMalformed(() -> WindowStatCodec.decodeHistogramSnapshot((ByteBuffer) histogramSnapshot(2, 20, Long.MAX_VALUE).flip()));
+        // offsets 10, 10 - 1 (unsigned delta 2^64 - 1)
+        assertMalformed(() -> WindowStatCodec.decodeHistogramSnapshot((ByteBuffer) histogramSnapshot(2, 20, -1).flip()));
+
+        // offsets Long.MIN_VALUE, Long.MAX_VALUE (unsigned delta 2^64 - 1) are fine
+        final ByteBuffer buffer = histogramSnapshot(2, -1, -1, 0, 0, 0, 0);
+        buffer.put(new byte[8]);
+        WindowStatCodec.writeVarint(buffer, 3);
+        buffer.flip();
+        assertArrayEquals(new long[]{Long.MIN_VALUE, Long.MAX_VALUE}, WindowStatCodec.decodeHistogramSnapshot(buffer).getBucketOffsets());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeBucketValue() throws Exception {
+        // offsets 0, 10, min, max, total sum, high bits of sum of squares
+        final ByteBuffer buffer = histogramSnapshot(2, 0, 10, 0, 0, 0, 0);
+        buffer.put(new byte[8]); // low bits of sum of squares
+        WindowStatCodec.writeVarint(buffer, 0);
+        WindowStatCodec.writeVarint(buffer, -1);
+        WindowStatCodec.writeVarint(buffer, 2);
+        buffer.flip();
+        WindowStatCodec.decodeHistogramSnapshot(buffer);
+    }
+
+    @Test
+    public void testMalformedChunkDuration() throws Exception {
+        assertMalformed(() -> WindowStatCodec.decodeCounterSnapshot(ByteBuffer.wrap(
+                new byte[]{WindowStatCodec.VERSION, WindowStatCodec.COUNTER_SNAPSHOT, WindowStatCodec.NO_FLAGS, 0, 0, 0}
+        )));
+
+        final ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put(WindowStatCodec.VERSION);
+        buffer.put(WindowStatCodec.COUNTER_SNAPSHOT);
+        buffer.put(WindowStatCodec.NO_FLAGS);
+        WindowStatCodec.writeZigzag(buffer, 0);
+        WindowStatCodec.writeVarint(buffer, -1000);
+        WindowStatCodec.writeVarint(buffer, 0);
+        buffer.flip();
+        assertMalformed(() -> WindowStatCodec.decodeCounterSnapshot(buffer));
+    }
+
+    @Test
+    public void testOverlongVarint() throws Exception {
+        final byte continuation = (byte) 0xFF;
+        // the 10th byte has payload above bit 63
+        assertMalformed(() -> WindowStatCodec.readVarint(ByteBuffer.wrap(
+                new byte[]{continuation, continuation, continuation, continuation, continuation, continuation, continuation, continuation, continuation, 2}
+        )));
+        // the 10th byte has continuation bit
+        assertMalformed(() -> WindowStatCodec.readVarint(ByteBuffer.wrap(
+                new byte[]{continuation, continuation, continuation, continuation, continuation, continuation, continuation, continuation, continuation, (byte) 0x81, 0}
+        )));
+        assertEquals(-1, WindowStatCodec.readVarint(ByteBuffer.wrap(
+                new byte[]{continuation, continuation, continuation, continuation, continuation, continuation, continuation, continuation, continuation, 1}
+        )));
+    }
+
+    /**
+     * @return buffer with header of histogram snapshot and given varints, it is not flipped
+     */
+    private static ByteBuffer histogramSnapshot(long... varints) {
+        final ByteBuffer buffer = ByteBuffer.allocate(1024);
+        buffer.put(WindowStatCodec.VERSION);
+        buffer.put(WindowStatCodec.HISTOGRAM_SNAPSHOT);
+        buffer.put(WindowStatCodec.NO_FLAGS);
+        for (long varint : varints) {
+            WindowStatCodec.writeVarint(buffer, varint);
+        }
+        return buffer;
+    }
+
+    private static ByteBuffer truncate(ByteBuffer buffer, int length) {
+        final ByteBuffer truncated = buffer.duplicate();
+        truncated.limit(length);
+        return truncated;
+    }
+
+    private static void assertMalformed(Runnable decode) {
+        try {
+            decode.run();
+            fail("malformed snapshot is decoded");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongType() throws Exception {
+        final ByteBuffer buffer = ByteBuffer.allocate(64);
+        WindowStatCodec.encode(new WindowCounter.Snapshot(0, 1, new long[]{1}), buffer);
+        buffer.flip();
+        WindowStatCodec.decodeHistogramSnapshot(buffer);
+    }
+
+    private static void assertSameAfterEncoding(WindowHistogram.Snapshot snapshot, ByteBuffer buffer) {
+        WindowStatCodec.encode(snapshot, buffer);
+        assertTrue(buffer.position() <= WindowStatCodec.getMaxEncodedSize(snapshot));
+        buffer.flip();
+        final WindowHistogram.Snapshot decoded = WindowStatCodec.decodeHistogramSnapshot(buffer);
+        assertFalse(buffer.hasRemaining());
+
+        assertArrayEquals(snapshot.getBucketOffsets(), decoded.getBucketOffsets());
+        assertEquals(snapshot.getBucketsCount(), decoded.getBucketsCount());
+        for (int i = 0; i < snapshot.getBucketsCount(); i++) {
+            assertEquals(snapshot.getBucketValue(i), decoded.getBucketValue(i));
+        }
+        assertEquals(snapshot.getMin(), decoded.getMin());
+        assertEquals(snapshot.getMax(), decoded.getMax());
+        assertEquals(snapshot.getMean(), decoded.getMean());
+        assertEquals(snapshot.getTotalSum(), decoded.getTotalSum());
+        assertEquals(snapshot.getSamplesCount(), decoded.getSamplesCount());
+        assertEquals(snapshot.getSumOfSquares(), decoded.getSumOfSquares(), 0);
+        assertEquals(snapshot.getVariance(), decoded.getVariance(), 0);
+    }
+}
@@ -0,0 +1,106 @@
+package fuud.windowstat;
+
+import fuud.windowstat.util.MockClock;
+import fuud.windowstat.util.MockTickSource;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class WindowStatRegistryTest {
+
+    @Test
+    public void testSameInstanceForSameKey() {
+        final WindowStatRegistry registry = new WindowStatRegistry(Duration.ofSeconds(3), 3, BucketLayout.linear(0, 10, 10), TickSource.of(new MockClock()));
+
+        final WindowCounter counter = registry.counter("requests", "method", "GET");
+        assertSame(counter, registry.counter("requests", "method", "GET"));
+        assertSame(counter, registry.counter(WindowStatRegistry.Key.of("requests", "method", "GET")));
+        assertNotSame(counter, registry.counter("requests", "method", "POST"));
+        assertNotSame(counter, registry.counter("requests"));
+
+        assertSame(registry.minMax("latency"), registry.minMax("latency"));
+        assertSame(registry.histogram("latency"), registry.histogram("latency"));
+        assertEquals(5, registry.size());
+    }
+
+    @Test
+    public void testStatsShareTickSource() {
+        final MockClock clock = new MockClock();
+        final WindowStatRegistry registry = new WindowStatRegistry(Duration.ofSeconds(3), 3, BucketLayout.linear(0, 10, 10), TickSource.of(clock));
+
+        registry.counter("requests").add(1);
+        registry.histogram("latency").add(15);
+        clock.move(5000);
+        assertEquals(0, registry.counter("requests").getSum());
+        assertEquals(0, registry.histogram("latency").getSamplesCount());
+    }
+
+    @Test
+    public void testEvictIdle() {
+        final MockClock clock = new MockClock();
+        final WindowStatRegistry registry = new WindowStatRegistry(Duration.ofSeconds(3), 3, BucketLayout.linear(0, 10, 10), TickSource.of(clock), Duration.ofSeconds(10));
+
+        final WindowCounter idle = registry.counter("idle");
+        final WindowCounter active = registry.counter("active");
+        registry.histogram("idle");
+
+        clock.move(6000);
+        assertEquals(0, registry.evictIdle());
+        registry.counter("active");
+
+        clock.move(6000);
+        assertEquals(2, registry.evictIdle());
+        assertEquals(1, registry.size());
+        assertSame(active, registry.counter("active"));
+        assertNotSame(idle, registry.counter("idle"));
+    }
+
+    @Test
+    public void testNoEvictionWithoutIdleTimeout() {
+        final MockClock clock = new MockClock();
+        final WindowStatRegistry registry = new WindowStatRegistry(Duration.ofSeconds(3), 3, BucketLayout.linear(0, 10, 10), TickSource.of(clock));
+
+        registry.counter("requests");
+        clock.move(Long.MAX_VALUE / 2);
+        assertEquals(0, registry.evictIdle());
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void testLookupConcurrentWithEviction() {
+        final MockTickSource ticks = new MockTickSource(TimeUnit.MILLISECONDS);
+        final AtomicReference<Runnable> onNextTick = new AtomicReference<>();
+        // eviction runs inside lookup: after lookup has found stat and before it has refreshed lookup time
+        final TickSource tickSource = new TickSource() {
+            @Override
+            public long currentTick() {
+                final Runnable action = onNextTick.getAndSet(null);
+                if (action != null) {
+                    action.run();
+                }
+                return ticks.currentTick();
+            }
+
+            @Override
+            public TimeUnit getTickUnit() {
+                return ticks.getTickUnit();
+            }
+        };
+        final WindowStatRegistry registry = new WindowStatRegistry(Duration.ofSeconds(3), 3, BucketLayout.linear(0, 10, 10), tickSource, Duration.ofMillis(1));
+
+        final WindowCounter idle = registry.counter("requests");
+        ticks.move(1);
+        final AtomicInteger evicted = new AtomicInteger();
+        onNextTick.set(() -> evicted.set(registry.evictIdle()));
+        final WindowCounter counter = registry.counter("requests");
+        assertEquals(1, evicted.get());
+        assertNotSame(idle, counter);
+        assertSame(counter, registry.counter("requests"));
+        assertEquals(1, registry.size());
+    }
+}
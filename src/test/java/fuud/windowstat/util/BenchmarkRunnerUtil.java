@@ -17,9 +17,11 @@
 
 package fuud.windowstat.util;
 
+import org.openjdk.jmh.profile.Profiler;
 import org.openjdk.jmh.results.format.ResultFormatType;
 import org.openjdk.jmh.runner.Runner;
 import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
 import org.openjdk.jmh.runner.options.Options;
 import org.openjdk.jmh.runner.options.OptionsBuilder;
 import org.openjdk.jmh.runner.options.TimeValue;
@@ -31,18 +33,22 @@ import java.nio.file.Files;
 
 public class BenchmarkRunnerUtil {
 
-    public static void runBenchmark(Class benchmarkClass) throws Exception {
+    @SafeVarargs
+    public static void runBenchmark(Class<?> benchmarkClass, Class<? extends Profiler>... profilers) throws Exception {
         final File tempFile = File.createTempFile("results", "json");
 
-        Options opt = new OptionsBuilder()
+        ChainedOptionsBuilder optBuilder = new OptionsBuilder()
                 .include(benchmarkClass.getSimpleName())
                 .warmupIterations(5)
                 .measurementIterations(5)
                 .measurementTime(TimeValue.seconds(6))
                 .resultFormat(ResultFormatType.JSON)
                 .result(tempFile.getAbsolutePath())
-                .forks(1)
-                .build();
+                .forks(1);
+        for (Class<? extends Profiler> profiler : profilers) {
+            optBuilder = optBuilder.addProfiler(profiler);
+        }
+        Options opt = optBuilder.build();
         new Runner(opt).run();
 
         final String result = new String(Files.readAllBytes(tempFile.toPath()));
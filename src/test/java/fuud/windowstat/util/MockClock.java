@@ -35,6 +35,11 @@ public class MockClock extends Clock {
         return Instant.ofEpochMilli(millis.get());
     }
 
+    @Override
+    public long millis() {
+        return millis.get();
+    }
+
     public void setTime(long timeMs) {
         millis.set(timeMs);
     }
@@ -0,0 +1,33 @@
+package fuud.windowstat.util;
+
+import fuud.windowstat.TickSource;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MockTickSource implements TickSource {
+    private final AtomicLong ticks = new AtomicLong();
+    private final TimeUnit tickUnit;
+
+    public MockTickSource(TimeUnit tickUnit) {
+        this.tickUnit = tickUnit;
+    }
+
+    @Override
+    public long currentTick() {
+        return ticks.get();
+    }
+
+    @Override
+    public TimeUnit getTickUnit() {
+        return tickUnit;
+    }
+
+    public void setTime(long ticks) {
+        this.ticks.set(ticks);
+    }
+
+    public void move(long ticks) {
+        this.ticks.addAndGet(ticks);
+    }
+}